@@ -0,0 +1,128 @@
+package org.project;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Compares how many waiting clients each way of running them can keep at the same time. It doesn't open any sockets (the
+number of open files runs out long before anything else does), it only keeps the clients waiting the way the server does:
+
+1) PLATFORM and VIRTUAL: every client is a task of the ExecutionMode's client executor that sleeps between pings until the
+room is full, like RoomClientHandler.run().
+2) MULTIPLEXED: every client is a heartbeat in a HeartbeatWheel that reschedules itself, like a multiplexed RoomClientHandler.
+
+For each number of clients, it reports whether all of them got to wait within 30 seconds, how long it took, and how many
+threads and how much heap it took. A mode stops being tried after the first number of clients it can't handle.
+
+It lives with the benchmarks rather than in the server, but it isn't a JMH benchmark: it counts how many clients fit instead
+of timing something that's done over and over.
+
+Usage: java -cp benchmarks/target/benchmarks.jar org.project.ExecutionModeComparison [number of clients...]
+ */
+public class ExecutionModeComparison {
+    static final int heartbeatIntervalInMS = 4000;
+    static final int startTimeoutInSeconds = 30;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] numbersOfClients = {1000, 5000, 10000, 20000, 50000, 100000};
+        if(args.length > 0){
+            numbersOfClients = new int[args.length];
+            for(int i = 0; i < args.length; i++){
+                numbersOfClients[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %s", "mode", "clients", "waiting", "millis", "threads", "heap MB"));
+        for(String mode: new String[]{"PLATFORM", "VIRTUAL", "MULTIPLEXED"}){
+            for(int numberOfClients: numbersOfClients){
+                if(!trial(mode, numberOfClients)){
+                    break;
+                }
+            }
+        }
+    }
+
+    //Keep 'numberOfClients' clients waiting, print how it went and let them all go again. Returns false if they couldn't all wait.
+    static boolean trial(String mode, int numberOfClients) throws InterruptedException {
+        System.gc();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        CountDownLatch waiting = new CountDownLatch(numberOfClients);
+        CountDownLatch roomFull = new CountDownLatch(1);
+        AtomicInteger pings = new AtomicInteger();
+        ExecutorService clientThreads = null;
+        HeartbeatWheel heartbeats = null;
+        String failure = null;
+
+        long start = System.nanoTime();
+        try{
+            if(mode.equals("MULTIPLEXED")){
+                heartbeats = new HeartbeatWheel();
+                heartbeats.start();
+                for(int i = 0; i < numberOfClients; i++){
+                    scheduleHeartbeat(heartbeats, waiting, roomFull, pings, true);
+                }
+            }else{
+                //a room of 'numberOfClients' players: with platform threads, that's also the size of its pool
+                clientThreads = ExecutionMode.valueOf(mode).newClientExecutor(numberOfClients);
+                long deadline = start + TimeUnit.SECONDS.toNanos(startTimeoutInSeconds);
+                for(int i = 0; i < numberOfClients && System.nanoTime() < deadline; i++){ //starting platform threads can take that long on its own
+                    clientThreads.submit(() -> {
+                        waiting.countDown();
+                        try{
+                            while(!roomFull.await(heartbeatIntervalInMS, TimeUnit.MILLISECONDS)){
+                                pings.incrementAndGet(); //the next ping would be sent here
+                            }
+                        }catch(InterruptedException e){
+                            //let go
+                        }
+                    });
+                }
+            }
+            long timeLeft = start + TimeUnit.SECONDS.toNanos(startTimeoutInSeconds) - System.nanoTime();
+            if(!waiting.await(Math.max(timeLeft, 0), TimeUnit.NANOSECONDS)){
+                failure = "only " + (numberOfClients - waiting.getCount()) + " waiting after " + startTimeoutInSeconds + "s";
+            }
+        }catch(Throwable e){ //usually "unable to create native thread"
+            failure = e.toString();
+        }
+        long elapsedInMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore; //platform threads it took
+        long heapInMB = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
+
+        //the room is full: let everyone go
+        roomFull.countDown();
+        if(clientThreads != null){
+            clientThreads.shutdownNow();
+            clientThreads.awaitTermination(startTimeoutInSeconds, TimeUnit.SECONDS);
+        }
+        if(heartbeats != null){
+            heartbeats.stop();
+        }
+        //give the threads of this trial the time to exit before the next one counts its own
+        for(int i = 0; i < 100 && ManagementFactory.getThreadMXBean().getThreadCount() > threadsBefore + 2; i++){
+            Thread.sleep(100);
+        }
+
+        long waitingClients = numberOfClients - waiting.getCount();
+        System.out.println(String.format("%-12s %10d %10d %10d %10d %d", mode, numberOfClients, waitingClients, elapsedInMS, threads, heapInMB)
+                + (failure == null ? "" : "   FAILED: " + failure));
+        return failure == null;
+    }
+
+    static void scheduleHeartbeat(HeartbeatWheel heartbeats, CountDownLatch waiting, CountDownLatch roomFull, AtomicInteger pings, boolean first){
+        //the first heartbeat is right away, the others every heartbeatIntervalInMS until the room is full
+        heartbeats.schedule(() -> {
+            if(first){
+                waiting.countDown();
+            }else{
+                pings.incrementAndGet();
+            }
+            if(roomFull.getCount() > 0){
+                scheduleHeartbeat(heartbeats, waiting, roomFull, pings, false);
+            }
+        }, first ? 0 : heartbeatIntervalInMS, TimeUnit.MILLISECONDS);
+    }
+}
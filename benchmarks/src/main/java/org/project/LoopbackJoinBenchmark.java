@@ -0,0 +1,128 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+A whole join over loopback, the way a Client does it: "list" to the lobby, "connect Room 1" to the lobby, "connect" to the room
+and "connect <cookie>" with the cookie it answers, until the client has the port of its RoomClientHandler. The client then
+leaves ("-1") so that the room never fills up, and the next join can come from the same socket.
+
+The server runs in the same process, with its lobby on its own thread, in both the one-socket-per-client mode and the
+multiplexed mode. The EventLog only keeps errors while it runs, so the joins and leaves of the room aren't logged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackJoinBenchmark {
+    static final int lobbyPort = 38850;
+    static final int roomSize = 16; //every client leaves before the next joins
+
+    @Param({"false", "true"})
+    boolean multiplexed;
+
+    RoomServer roomServer;
+    Room room;
+    EventLog.Level logLevel;
+
+    //the client: one socket and its messages, used for every join
+    @State(Scope.Thread)
+    public static class Player {
+        MessageSocket socket;
+        InetAddress server;
+        Message msgToServer = new Message();
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            socket = new MessageSocket(new DatagramSocket());
+            socket.setSoTimeout(2000);
+            server = InetAddress.getLoopbackAddress();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            socket.close();
+        }
+
+        //The next message that is what we're waiting for. Pings from the handler of the last join can still be on their way.
+        Message receive(Opcode expected) throws IOException {
+            Message msg;
+            while(!(msg = socket.receive()).is(expected)){
+                //not the answer to our request, skip it
+            }
+            return msg;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        logLevel = EventLog.console.level;
+        EventLog.console.level = EventLog.Level.ERROR;
+        ServerConfig config = new ServerConfig(lobbyPort);
+        config.multiplexed = multiplexed;
+        config.persistent = true;
+        roomServer = new RoomServer(config, false);
+        room = roomServer.createRoom("finger war", roomSize);
+        Thread lobby = new Thread(() -> roomServer.handleRoomThreads(lobbyPort), "lobby");
+        lobby.setDaemon(true);
+        lobby.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        room.close();
+        roomServer.shutdown();
+        EventLog.console.level = logLevel;
+    }
+
+    @Benchmark
+    public int join(Player player) throws IOException {
+        MessageSocket socket = player.socket;
+        Message msgToServer = player.msgToServer;
+
+        socket.send(msgToServer.set(Opcode.LIST), player.server, lobbyPort);
+        player.receive(Opcode.ROOMS);
+
+        socket.send(msgToServer.set(Opcode.CONNECT).putText(room.serverName), player.server, lobbyPort);
+        int roomPort = player.receive(Opcode.PORT).getInt();
+
+        int handlerPort;
+        do{
+            //0 means that the room still has us from the last join: its handler hasn't removed us yet. It doesn't ask for a cookie then.
+            socket.send(msgToServer.set(Opcode.CONNECT), player.server, roomPort);
+            Message reply;
+            while(!(reply = player.socket.receive()).is(Opcode.COOKIE) && !reply.is(Opcode.PORT)){
+                //a ping from the handler of the last join
+            }
+            if(reply.is(Opcode.COOKIE)){
+                socket.send(msgToServer.set(Opcode.CONNECT).putText(reply.getText()), player.server, roomPort);
+                reply = player.receive(Opcode.PORT);
+            }
+            handlerPort = reply.getInt();
+        }while(handlerPort == 0);
+
+        socket.send(msgToServer.set(Opcode.DISCONNECT), player.server, handlerPort);
+        if(!multiplexed){
+            player.receive(Opcode.DISCONNECT); //the handler's thread answers when it's done with us
+        }
+        return handlerPort;
+    }
+}
@@ -0,0 +1,106 @@
+package org.project;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Encoding and decoding a message the way every send and receive of a MessageSocket does, in both protocols. The "strings"
+benchmarks do the same thing the way sendString() and receiveString() used to, with a new String, byte array and DatagramPacket
+for every packet, to compare against.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+    Message ping = new Message(8);
+    Message connect = new Message();
+    Message received = new Message();
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    ByteBuffer textPing = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    ByteBuffer binaryPing = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    ByteBuffer textConnect = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    DatagramPacket receivedPacket;
+    InetAddress address;
+
+    @Setup
+    public void setup() throws Exception {
+        ping.set(Opcode.PING);
+        ping.sessionId = 7;
+        ping.sequence = 42;
+        connect.set(Opcode.CONNECT).putText("Room 12");
+
+        MessageCodec.encode(ping, textPing);
+        ping.binary = true;
+        MessageCodec.encode(ping, binaryPing);
+        ping.binary = false;
+        MessageCodec.encode(connect, textConnect);
+
+        address = InetAddress.getLoopbackAddress();
+        byte[] bytes = "ping".getBytes();
+        receivedPacket = new DatagramPacket(bytes, bytes.length);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeTextPing(){
+        ping.binary = false;
+        MessageCodec.encode(ping, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinaryPing(){
+        ping.binary = true;
+        MessageCodec.encode(ping, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Message decodeTextPing(){
+        textPing.rewind();
+        MessageCodec.decode(textPing, received);
+        return received;
+    }
+
+    @Benchmark
+    public Message decodeBinaryPing(){
+        binaryPing.rewind();
+        MessageCodec.decode(binaryPing, received);
+        return received;
+    }
+
+    @Benchmark
+    public Message decodeTextConnect(){
+        textConnect.rewind();
+        MessageCodec.decode(textConnect, received);
+        return received;
+    }
+
+    //what sendString("ping") did before the codec
+    @Benchmark
+    public DatagramPacket encodeWithStrings(){
+        byte[] bytes = "ping".getBytes();
+        return new DatagramPacket(bytes, bytes.length, address, 38950);
+    }
+
+    //what receiveString() did before the codec
+    @Benchmark
+    public boolean decodeWithStrings(){
+        String msg = new String(receivedPacket.getData(), 0, receivedPacket.getLength());
+        return msg.equals("ping");
+    }
+}
@@ -0,0 +1,93 @@
+package org.project;
+
+import java.net.DatagramSocket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Answering "list" with 10 to 10,000 rooms in the lobby:
+
+1) cached: nothing changed since the last list, which is what a flood of list requests costs,
+2) rebuilt: a room changed since the last list, so its pages are built again first,
+3) stringBuilder: the whole list built with a StringBuilder, the way returnRoomsString() did it for every request.
+
+The rooms don't have sockets, the listing only needs their names, games and occupancy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomListingBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int numberOfRooms;
+
+    RoomServer roomServer;
+    RoomRegistry rooms;
+    RoomListing listing;
+    RoomListing.Request firstPage = RoomListing.Request.parse("");
+    RoomListing.Request sinceCurrent;
+    Message reply = new Message();
+
+    @Setup
+    public void setup(){
+        ServerConfig config = new ServerConfig(39998); //the rooms' ports start at 40000
+        config.persistent = true;
+        roomServer = new RoomServer(config, false);
+        rooms = new RoomRegistry();
+        for(int i = 1; i <= numberOfRooms; i++){
+            Room room = new Room(roomServer, (DatagramSocket) null, "127.0.0.1", "finger war", "Room " + i, 4, 40000 + i);
+            room.roomId = i;
+            rooms.add(room);
+        }
+        listing = new RoomListing(rooms);
+        listing.answer(firstPage, reply);
+        sinceCurrent = RoomListing.Request.parse("since " + listing.version());
+    }
+
+    @TearDown
+    public void tearDown(){
+        roomServer.shutdown();
+    }
+
+    @Benchmark
+    public Message cached(){
+        listing.answer(firstPage, reply);
+        return reply;
+    }
+
+    @Benchmark
+    public Message notModified(){
+        listing.answer(sinceCurrent, reply);
+        return reply;
+    }
+
+    @Benchmark
+    public Message rebuilt(){
+        listing.changed();
+        listing.answer(firstPage, reply);
+        return reply;
+    }
+
+    @Benchmark
+    public Message stringBuilder(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Available rooms:\n");
+        for(Room room: rooms.rooms()){
+            sb.append(room.roomId + ", name: "+room.serverName+", game: "+room.serverGame+".\n");
+        }
+        return reply.set(Opcode.ROOMS).putText(sb.toString());
+    }
+}
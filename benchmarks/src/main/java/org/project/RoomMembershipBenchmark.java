@@ -0,0 +1,127 @@
+package org.project;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Room.addClient(), removeClient() and the PortAllocator's allocate() with several threads joining and leaving the same room at
+the same time, the way the lobby shards and the selector thread do under load. Every client leaves right after it joins, so the
+room never fills up.
+
+Rooms log their status on every join and leave. The EventLog is set to only keep errors while it runs, so what's measured is
+the membership and not the log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomMembershipBenchmark {
+    static final int roomSize = 64;
+
+    RoomServer roomServer;
+    Room room;
+    InetAddress address;
+    EventLog.Level logLevel;
+
+    //every thread pretends to be clients from its own range of source ports
+    @State(Scope.Thread)
+    public static class ClientPorts {
+        static int nextRange = 0;
+        int first;
+        int next;
+
+        @Setup
+        public void setup(){
+            synchronized(ClientPorts.class){
+                first = 1024 + (nextRange++ % 60) * 1000;
+            }
+            next = first;
+        }
+
+        int nextPort(){
+            next = next + 1 < first + 1000 ? next + 1 : first;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setup(){
+        logLevel = EventLog.console.level;
+        EventLog.console.level = EventLog.Level.ERROR;
+        ServerConfig config = new ServerConfig(39998); //the rooms' ports start at 40000
+        config.persistent = true;
+        roomServer = new RoomServer(config, false);
+        room = new Room(roomServer, (DatagramSocket) null, "127.0.0.1", "finger war", "Room 1", roomSize, 40000);
+        address = InetAddress.getLoopbackAddress();
+    }
+
+    @TearDown
+    public void tearDown(){
+        EventLog.console.level = logLevel;
+        roomServer.shutdown();
+    }
+
+    //a client joins with its own port and leaves again
+    private boolean joinAndLeave(ClientPorts ports){
+        int port = roomServer.ports.allocate();
+        RoomClientHandler client = new RoomClientHandler(room, null, address, port, ports.nextPort());
+        boolean added = room.addClient(client);
+        if(added){
+            room.removeClient(client);
+        }
+        roomServer.ports.free(port); //removeClient() only frees it for clients that have a socket
+        return added;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean joinAndLeaveAlone(ClientPorts ports){
+        return joinAndLeave(ports);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean joinAndLeave4Threads(ClientPorts ports){
+        return joinAndLeave(ports);
+    }
+
+    //the room is read (is it full? how many?) while others join and leave
+    @Benchmark
+    @Group("readWhileJoining")
+    @GroupThreads(3)
+    public boolean joining(ClientPorts ports){
+        return joinAndLeave(ports);
+    }
+
+    @Benchmark
+    @Group("readWhileJoining")
+    @GroupThreads(1)
+    public int reading(){
+        return room.numberOfClients() + room.freeSeats();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int allocatePort(){
+        int port = roomServer.ports.allocate();
+        roomServer.ports.free(port);
+        return port;
+    }
+}
@@ -0,0 +1,110 @@
+package org.project;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+How much the RoomServer answers to whom. Without it, anyone can send "list" as fast as their link allows, and every one of those
+costs a reply that's much bigger than the request: the server does the work, and if the source address was spoofed, it sends
+its bigger replies at someone else.
+
+1) Every source address has a token bucket, counted in bytes: every packet that's let in costs minimumCostInBytes, and a reply
+costs what's sent. A source can use up its bucket in a burst, and then gets sourceBytesPerSecond. So a source can't get more
+than that out of the server, however small its requests are, and a request that isn't answered still costs something.
+2) On top of that, there's a global budget for all of the sources together, for floods that come from many addresses at once
+(or pretend to).
+3) The buckets are a fixed table, indexed by a hash of the address with a seed chosen at startup: its memory doesn't grow with
+the number of sources, and nobody can pick addresses that land on someone else's bucket on purpose. Sources that land on the
+same bucket by chance share it.
+4) A bucket is a single long, the time at which it will be full again (GCRA, the "generic cell rate algorithm"): a packet is let
+in if that time isn't more than a burst ahead of now, and pushes it further by its cost. It's updated with a compare-and-set,
+so the lobby shards and the rooms never wait on each other for it.
+
+The server's own machine isn't limited: it's trusted with "admin" already, and it's where SwarmClient usually runs from. Only
+packets from strangers go through here. The rooms let their clients' pings in without asking.
+ */
+public class AdmissionControl {
+    public static final long defaultSourceBytesPerSecond = 16 * 1024;
+    public static final long defaultGlobalBytesPerSecond = 4 * 1024 * 1024;
+    static final int minimumCostInBytes = 64;
+    static final long sourceBurstInNanos = 2_000_000_000L; //a source's bucket holds 2 seconds of its rate
+    static final long globalBurstInNanos = 500_000_000L;
+    static final int slotBits = 14;
+
+    long sourceNanosPerByte; //0 if sources aren't limited
+    long globalNanosPerByte; //0 if there's no global budget
+    AtomicLongArray sourceBuckets = new AtomicLongArray(1 << slotBits);
+    AtomicLongArray globalBucket = new AtomicLongArray(1);
+    int seed = ThreadLocalRandom.current().nextInt();
+
+    LongAdder overSourceLimit = new LongAdder(); //packets dropped because their source had used up its bucket
+    LongAdder overGlobalBudget = new LongAdder(); //packets dropped because all of the sources together had
+
+    //Rates in bytes per second. 0 turns that limit off.
+    public AdmissionControl(long sourceBytesPerSecond, long globalBytesPerSecond){
+        this.sourceNanosPerByte = sourceBytesPerSecond <= 0 ? 0 : Math.max(1, 1_000_000_000L / sourceBytesPerSecond);
+        this.globalNanosPerByte = globalBytesPerSecond <= 0 ? 0 : Math.max(1, 1_000_000_000L / globalBytesPerSecond);
+        long now = System.nanoTime(); //every bucket starts full
+        for(int i = 0; i < sourceBuckets.length(); i++){
+            sourceBuckets.set(i, now);
+        }
+        globalBucket.set(0, now);
+    }
+
+    //Is a packet from this source let in? It has been charged minimumCostInBytes if it is.
+    public boolean admit(InetAddress source){
+        if(source.isLoopbackAddress()){
+            return true;
+        }
+        long now = System.nanoTime();
+        int slot = slotOf(source);
+        if(sourceNanosPerByte > 0 && !take(sourceBuckets, slot, minimumCostInBytes * sourceNanosPerByte, sourceBurstInNanos, now)){
+            overSourceLimit.increment();
+            return false;
+        }
+        if(globalNanosPerByte > 0 && !take(globalBucket, 0, minimumCostInBytes * globalNanosPerByte, globalBurstInNanos, now)){
+            overGlobalBudget.increment();
+            return false;
+        }
+        return true;
+    }
+
+    //A reply of this many bytes was sent to a source that was let in: the part over minimumCostInBytes is charged too. It's
+    //charged even if the bucket is empty now, so the source's next packets wait for it.
+    public void charge(InetAddress source, int replyBytes){
+        int extra = replyBytes - minimumCostInBytes;
+        if(extra <= 0 || source.isLoopbackAddress()){
+            return;
+        }
+        long now = System.nanoTime();
+        if(sourceNanosPerByte > 0){
+            take(sourceBuckets, slotOf(source), extra * sourceNanosPerByte, Long.MAX_VALUE, now);
+        }
+        if(globalNanosPerByte > 0){
+            take(globalBucket, 0, extra * globalNanosPerByte, Long.MAX_VALUE, now);
+        }
+    }
+
+    //Push the bucket's "full again" time by 'cost', unless it's already more than 'burst' ahead of now.
+    private static boolean take(AtomicLongArray buckets, int slot, long cost, long burst, long now){
+        long fullAt;
+        long from;
+        do{
+            fullAt = buckets.get(slot);
+            from = fullAt - now > 0 ? fullAt : now; //a bucket that's been full for a while doesn't save up more than full
+            if(from - now > burst){
+                return false;
+            }
+        }while(!buckets.compareAndSet(slot, fullAt, from + cost));
+        return true;
+    }
+
+    private int slotOf(InetAddress source){
+        int h = source.hashCode() ^ seed;
+        h = (h ^ (h >>> 16)) * 0x85EBCA6B;
+        h = (h ^ (h >>> 13)) * 0xC2B2AE35;
+        return (h ^ (h >>> 16)) >>> (32 - slotBits);
+    }
+}
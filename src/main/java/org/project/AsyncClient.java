@@ -0,0 +1,418 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+A client for programs, not for a console: the same list, join and wait as Client, but every step is a CompletableFuture or a
+callback instead of a blocking receive(), and any number of AsyncClients share the thread of one ClientLoop. Client does all of
+it in play(), waits 6 seconds for anything that was lost, and needs a thread for every player.
+
+    ClientLoop loop = new ClientLoop();
+    AsyncClient client = new AsyncClient(loop, new InetSocketAddress("127.0.0.1", 38950));
+    client.onGameStart(() -> ...).onState(snapshot -> client.input("3"));
+    client.quickJoin("finger war").thenAccept(room -> ...);
+    client.ended().join(); //the last snapshot of the game
+
+1) Every request is sent with a sequence number of its own, and the lobby and the rooms answer with the same one, so a client
+can have several of them in flight at once: listRooms() asks for every page of a big listing as soon as it knows how many there
+are, instead of one after the other.
+2) A request that isn't answered is sent again after a backoff that doubles every time (from initialBackoffInMS up to
+maxBackoffInMS), with a random half of it taken off so that clients that lost their packets at the same time don't all try again
+at the same time. After maxAttempts, its future fails.
+3) Once seated, the client answers the room's pings and its "done" by itself, and onGameStart() is called. The snapshots of the
+game are given to onState(), and ended() completes with the last one. If the room or the game stays silent for longer than
+silenceTimeoutInMS, ended() fails.
+
+The client talks the binary protocol, since the text protocol has no sequence numbers to match the answers with. Every
+AsyncClient has its own channel: the rooms and the TickEngine tell their players apart by their address, so several players
+can't share a port, but they do share the loop's thread, its buffers and its timers.
+ */
+public class AsyncClient {
+    static final long initialBackoffInMS = 200;
+    static final long maxBackoffInMS = 3200;
+    static final int maxAttempts = 6;
+    static final int maxCookies = 3;
+    static final long silenceTimeoutInMS = 20000;
+    static final long watchdogIntervalInMS = 1000;
+
+    enum State { IDLE, JOINING, WAITING, PLAYING, ENDED }
+
+    //a request that hasn't been answered yet
+    private static final class Request {
+        int sequence;
+        Opcode opcode;
+        String text;
+        InetSocketAddress to;
+        int attempts = 0;
+        Consumer<Message> onAnswer;
+        Consumer<Exception> onFailure;
+        ClientLoop.Timer retry;
+    }
+
+    ClientLoop loop;
+    DatagramChannel channel;
+    InetSocketAddress lobby;
+    State state = State.IDLE;
+    int sessionId = 0; //given by the room with our seat
+    int nextSequence = 1;
+    InetSocketAddress room; //where our room talks to us from, once we're seated
+    InetSocketAddress game; //where the snapshots come from
+    int player = -1; //which player of the game we are
+    boolean gameStarted = false;
+    long lastHeardAt;
+    ClientLoop.Timer watchdog;
+    int cookies = 0;
+
+    //the pings we got, and the gaps in the sequence numbers of what the room and the game sent us
+    long pings = 0;
+    int lastPing = -1;
+    long pingsLost = 0;
+    int lastTick = -1;
+    long snapshotsLost = 0;
+
+    private final HashMap<Integer, Request> requests = new HashMap<Integer, Request>(); //in flight, by sequence number
+    private CompletableFuture<InetSocketAddress> seated;
+    private final CompletableFuture<String> ended = new CompletableFuture<String>();
+    private Runnable onGameStart = () -> {};
+    private Consumer<String> onState = snapshot -> {};
+
+    //A client of the lobby at this address, on a port the system picks.
+    public AsyncClient(ClientLoop loop, InetSocketAddress lobby) throws IOException {
+        this.loop = loop;
+        this.lobby = lobby;
+        this.channel = DatagramChannel.open();
+        channel.bind(null);
+        channel.configureBlocking(false);
+        loop.execute(() -> {
+            try{
+                loop.register(channel, this);
+            }catch(IOException e){
+                end(e); //closed before it was registered
+            }
+        });
+    }
+
+    //Called on the loop's thread when the room says the game starts. It mustn't block.
+    public AsyncClient onGameStart(Runnable callback){
+        this.onGameStart = callback;
+        return this;
+    }
+
+    //Called on the loop's thread with every snapshot of the game. It mustn't block.
+    public AsyncClient onState(Consumer<String> callback){
+        this.onState = callback;
+        return this;
+    }
+
+    //Every room of the lobby, every page of it.
+    public CompletableFuture<String> listRooms(){
+        CompletableFuture<String> listing = new CompletableFuture<String>();
+        loop.execute(() -> request(Opcode.LIST, "", lobby, firstPage -> {
+            int pages = RoomListing.numberOfPages(firstPage.getText());
+            String[] texts = new String[pages];
+            texts[0] = firstPage.getText();
+            int[] missing = {pages - 1};
+            if(missing[0] == 0){
+                listing.complete(texts[0]);
+                return;
+            }
+            for(int page = 2; page <= pages; page++){
+                int index = page - 1;
+                request(Opcode.LIST, "page " + page, lobby, nextPage -> {
+                    texts[index] = nextPage.getText();
+                    if(--missing[0] == 0){
+                        listing.complete(String.join("\n", texts));
+                    }
+                }, listing::completeExceptionally);
+            }
+        }, listing::completeExceptionally));
+        return listing;
+    }
+
+    //Take a seat in this room. Completes with where the room talks to us from, once we have it.
+    public CompletableFuture<InetSocketAddress> join(String roomName){
+        return start(Opcode.CONNECT, roomName);
+    }
+
+    //Take a seat in the room of this game that the lobby picks for us.
+    public CompletableFuture<InetSocketAddress> quickJoin(String gameName){
+        return start(Opcode.QUICK_JOIN, gameName);
+    }
+
+    //The last snapshot of the game, once it's over. Fails if the client left, or lost its room or its game.
+    public CompletableFuture<String> ended(){
+        return ended;
+    }
+
+    //Send the game some input ("3" taps in FingerWar). Dropped if the game hasn't sent us anything yet.
+    public void input(String input){
+        loop.execute(() -> {
+            if(state == State.PLAYING && game != null){
+                send(Opcode.INPUT, input, nextSequence++, game);
+            }
+        });
+    }
+
+    //Leave the room before the game starts. Once it has started, the game is played to its end.
+    public void leave(){
+        loop.execute(() -> {
+            if(state == State.WAITING && room != null){
+                send(Opcode.DISCONNECT, "", nextSequence++, room);
+            }
+            if(state != State.PLAYING){
+                end(null);
+            }
+        });
+    }
+
+    //Leave, and close our channel.
+    public void close(){
+        loop.execute(() -> {
+            if(state == State.WAITING && room != null){
+                send(Opcode.DISCONNECT, "", nextSequence++, room);
+            }
+            end(null);
+            try{
+                channel.close();
+            }catch(IOException e){
+                //it's closed anyway
+            }
+        });
+    }
+
+    private CompletableFuture<InetSocketAddress> start(Opcode opcode, String argument){
+        CompletableFuture<InetSocketAddress> seat = new CompletableFuture<InetSocketAddress>();
+        loop.execute(() -> {
+            if(state != State.IDLE){
+                seat.completeExceptionally(new IllegalStateException("This client has joined a room already."));
+                return;
+            }
+            state = State.JOINING;
+            seated = seat;
+            askLobby(opcode, argument, lobby);
+        });
+        return seat;
+    }
+
+    //"connect <room>" or "quick join <game>" to a lobby. A lobby of a Federation can send us to another one.
+    private void askLobby(Opcode opcode, String argument, InetSocketAddress lobby){
+        request(opcode, argument, lobby, answer -> {
+            if(answer.is(Opcode.PORT)){
+                connect(new InetSocketAddress(lobby.getAddress(), answer.getInt()), "");
+            }else if(answer.is(Opcode.REDIRECT)){
+                //"127.0.0.1:39950 Room 2"
+                String[] redirect = answer.getText().split(" ", 2);
+                askLobby(Opcode.CONNECT, redirect[1], Federation.parseNode(redirect[0]));
+            }else{
+                end(new IOException(answer.getText()));
+            }
+        }, this::end);
+    }
+
+    //"connect" to the room itself: it answers a stranger with a cookie, and takes it in when it connects again with it.
+    private void connect(InetSocketAddress roomAddress, String cookie){
+        request(Opcode.CONNECT, cookie, roomAddress, answer -> {
+            if(answer.is(Opcode.COOKIE)){
+                if(++cookies > maxCookies){
+                    end(new IOException("The room didn't take any of its cookies back."));
+                    return;
+                }
+                connect(roomAddress, answer.getText());
+            }else if(answer.is(Opcode.PORT)){
+                int port = answer.getInt();
+                if(port == 0){
+                    //we're in the room already: our connect was answered, but that answer was lost. Our session and the
+                    //room's port come with its first ping.
+                    seat(0, null);
+                }else{
+                    seat(answer.sessionId, new InetSocketAddress(roomAddress.getAddress(), port));
+                }
+            }else{
+                end(new IOException(answer.getText()));
+            }
+        }, this::end);
+    }
+
+    private void seat(int sessionId, InetSocketAddress roomAddress){
+        state = State.WAITING;
+        this.sessionId = sessionId;
+        this.room = roomAddress;
+        heard();
+        watchdog = loop.schedule(TimeUnit.MILLISECONDS.toNanos(watchdogIntervalInMS), this::checkSilence);
+        if(roomAddress != null){
+            seated.complete(roomAddress);
+        }
+    }
+
+    private void heard(){
+        lastHeardAt = System.nanoTime();
+    }
+
+    private void checkSilence(){
+        if(state != State.WAITING && state != State.PLAYING){
+            return;
+        }
+        if(System.nanoTime() - lastHeardAt > TimeUnit.MILLISECONDS.toNanos(silenceTimeoutInMS)){
+            end(new SocketTimeoutException(state == State.WAITING ? "The room stopped pinging us." : "The game stopped sending us anything."));
+            return;
+        }
+        watchdog = loop.schedule(TimeUnit.MILLISECONDS.toNanos(watchdogIntervalInMS), this::checkSilence);
+    }
+
+    //Every packet that comes in on our channel, on the loop's thread.
+    void onMessage(Message msg, InetSocketAddress sender){
+        if(isAnswer(msg)){
+            Request request = requests.remove(msg.sequence);
+            if(request != null){
+                request.retry.cancel();
+                request.onAnswer.accept(msg);
+                return;
+            }
+        }
+        switch(state){
+            case WAITING:
+                waiting(msg, sender);
+                break;
+            case PLAYING:
+                playing(msg, sender);
+                break;
+            default:
+                break; //a late answer, or a ping from a room we've left
+        }
+    }
+
+    private static boolean isAnswer(Message msg){
+        return msg.is(Opcode.ROOMS) || msg.is(Opcode.PORT) || msg.is(Opcode.COOKIE) || msg.is(Opcode.REDIRECT) || msg.is(Opcode.TEXT);
+    }
+
+    private void waiting(Message msg, InetSocketAddress sender){
+        if(room == null && (msg.is(Opcode.PING) || msg.is(Opcode.DONE))){
+            //we were in the room already (see connect()): now we know where it talks to us from, and with which session
+            sessionId = msg.sessionId;
+            room = sender;
+            seated.complete(room);
+        }
+        if(!sender.equals(room)){
+            return;
+        }
+        heard();
+        if(msg.is(Opcode.PING)){
+            pings++;
+            if(lastPing >= 0 && msg.sequence - lastPing > 1){
+                pingsLost += msg.sequence - lastPing - 1;
+            }
+            lastPing = msg.sequence;
+            send(Opcode.GOT_PING, "", msg.sequence, room); //the sequence number tells the room which ping this answers
+        }else if(msg.is(Opcode.DONE)){
+            send(Opcode.DONE_ACK, "", msg.sequence, room);
+            state = State.PLAYING;
+            gameStarted = true;
+            onGameStart.run();
+        }else if(msg.is(Opcode.DISCONNECT)){
+            end(new IOException("The room disconnected us."));
+        }
+    }
+
+    private void playing(Message msg, InetSocketAddress sender){
+        if(msg.is(Opcode.DONE)){
+            send(Opcode.DONE_ACK, "", msg.sequence, room); //our ack was lost, the room sends "done" until it gets one
+            return;
+        }
+        if(msg.is(Opcode.GAME)){
+            //"2 4 20 finger war": we're player 2 of 4
+            heard();
+            game = sender;
+            player = Integer.parseInt(msg.getText().split(" ", 2)[0]);
+            return;
+        }
+        if(!msg.is(Opcode.STATE)){
+            return;
+        }
+        heard();
+        game = sender;
+        if(lastTick >= 0 && msg.sequence - lastTick > 1){
+            snapshotsLost += msg.sequence - lastTick - 1;
+        }
+        lastTick = msg.sequence;
+        String snapshot = msg.getText();
+        onState.accept(snapshot);
+        if(snapshot.contains(" over winner ")){
+            state = State.ENDED;
+            ended.complete(snapshot);
+            end(null);
+        }
+    }
+
+    //Send a request, and send it again until it's answered or until it has been sent maxAttempts times.
+    private void request(Opcode opcode, String text, InetSocketAddress to, Consumer<Message> onAnswer, Consumer<Exception> onFailure){
+        Request request = new Request();
+        request.sequence = nextSequence++;
+        request.opcode = opcode;
+        request.text = text;
+        request.to = to;
+        request.onAnswer = onAnswer;
+        request.onFailure = onFailure;
+        requests.put(request.sequence, request);
+        attempt(request);
+    }
+
+    private void attempt(Request request){
+        if(request.attempts == maxAttempts){
+            requests.remove(request.sequence);
+            request.onFailure.accept(new SocketTimeoutException("No answer from " + request.to + " after " + maxAttempts + " attempts."));
+            return;
+        }
+        send(request.opcode, request.text, request.sequence, request.to);
+        long backoff = Math.min(maxBackoffInMS, initialBackoffInMS << request.attempts);
+        backoff -= ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        request.attempts++;
+        request.retry = loop.schedule(TimeUnit.MILLISECONDS.toNanos(backoff), () -> attempt(request));
+    }
+
+    private void send(Opcode opcode, String text, int sequence, InetSocketAddress to){
+        Message msg = loop.outgoing;
+        msg.binary = true;
+        msg.set(opcode).putText(text);
+        msg.sessionId = sessionId;
+        msg.sequence = sequence;
+        MessageCodec.encode(msg, loop.sendBuffer);
+        try{
+            channel.send(loop.sendBuffer, to); //if the socket's buffer is full, it's lost like any other packet
+        }catch(IOException e){
+            //closed, or unreachable for now: the request is sent again, or the watchdog gives up on the room
+        }
+    }
+
+    //Stop everything this client was waiting for. error is null if it ended the way it should (or left on purpose).
+    private void end(Exception error){
+        state = State.ENDED;
+        if(watchdog != null){
+            watchdog.cancel();
+        }
+        Exception reason = error == null ? new IOException("The client left.") : error;
+        if(!requests.isEmpty()){
+            Request[] unanswered = requests.values().toArray(new Request[0]);
+            requests.clear();
+            for(Request request: unanswered){
+                request.retry.cancel();
+                request.onFailure.accept(reason);
+            }
+        }
+        if(seated != null){
+            seated.completeExceptionally(reason); //if it isn't done already
+        }
+        if(error == null){
+            ended.cancel(false); //it left, unless the game was over already
+        }else{
+            ended.completeExceptionally(error);
+        }
+    }
+}
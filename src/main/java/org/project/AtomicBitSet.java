@@ -0,0 +1,102 @@
+package org.project;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+A fixed-size set of small non-negative ints (ports, or offsets into a range of ports) that any number of threads can change at the
+same time without a lock. Each int is one bit of an AtomicLongArray, and a bit is only ever changed with a compare-and-set, so two
+threads can never both think they added (or claimed) the same int.
+
+Compared to an ArrayList<Integer>, contains() is one array read instead of a scan over boxed Integers, and nothing is allocated.
+The PortAllocator keeps the ports that are in use in one.
+ */
+public class AtomicBitSet {
+    private final AtomicLongArray words;
+    private final int size;
+
+    //holds the ints 0 to size - 1
+    public AtomicBitSet(int size){
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) / 64);
+    }
+
+    //returns true if the int wasn't in the set before
+    public boolean add(int i){
+        if(i < 0 || i >= size){
+            return false;
+        }
+        int word = i >>> 6;
+        long bit = 1L << i; //shifts only use the lowest 6 bits of i
+        while(true){
+            long current = words.get(word);
+            if((current & bit) != 0){
+                return false;
+            }
+            if(words.compareAndSet(word, current, current | bit)){
+                return true;
+            }
+        }
+    }
+
+    //returns true if the int was in the set
+    public boolean remove(int i){
+        if(i < 0 || i >= size){
+            return false;
+        }
+        int word = i >>> 6;
+        long bit = 1L << i;
+        while(true){
+            long current = words.get(word);
+            if((current & bit) == 0){
+                return false;
+            }
+            if(words.compareAndSet(word, current, current & ~bit)){
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(int i){
+        if(i < 0 || i >= size){
+            return false;
+        }
+        return (words.get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    //Add an int that isn't in the set yet and return it, or -1 if the set is full. Looks at 64 ints at a time, starting with the
+    //word that 'hint' is in and going around: starting where the last free int was found, the next one is nearly always in the
+    //first word it looks at, however full the words before it are.
+    public int claimClear(int hint){
+        int first = hint >= 0 && hint < size ? hint >>> 6 : 0;
+        for(int n = 0; n < words.length(); n++){
+            int word = (first + n) % words.length();
+            while(true){
+                long current = words.get(word);
+                if(current == -1L){
+                    break; //all 64 taken, try the next word
+                }
+                int bit = Long.numberOfTrailingZeros(~current);
+                int i = (word << 6) + bit;
+                if(i >= size){
+                    break; //the last word isn't all in the set
+                }
+                if(words.compareAndSet(word, current, current | (1L << bit))){
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public int cardinality(){
+        int count = 0;
+        for(int word = 0; word < words.length(); word++){
+            count += Long.bitCount(words.get(word));
+        }
+        return count;
+    }
+
+    public int size(){
+        return size;
+    }
+}
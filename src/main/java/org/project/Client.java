@@ -1,11 +1,12 @@
 package org.project;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 /*
 To use this project, you must first run the RoomServer main and create a room. Then, you can create an instance of Client
@@ -14,48 +15,123 @@ names, but I couldn't think of anything.
 
 1) Client allocates a free port to a UDP socket.
 2) The client asks the server at a specified IP address to list the Rooms available.
-3) The client asks to connect to a specific room.
+3) The client asks to connect to a specific room. The room answers with a cookie, and the client connects again with it.
 4) The client is pinged by the server's RoomClientHandler created for this client and waits until it is notified that the game is starting.
-5) From there, an implementation of the game or network-based application can be executed on the server to interact with this client.
+5) The game is played with the server's TickEngine: the client gets a snapshot of the game every tick, and sends its taps back.
 
-This project didn't have an implementation of a game or network-based application. Partly because I was really lazy but also because
-I didn't have the time, but also because I was mostly only motivated to do a waiting room.
+Every message goes through a MessageSocket. The client talks the old text protocol by default, or the binary protocol of
+MessageCodec if it's started with the "binary" argument. The server always answers in the protocol it was spoken to in.
+
+AsyncClient does the same for programs and bots, without blocking: its steps are CompletableFutures, and many of them share the
+thread of one ClientLoop.
+
+SwarmClient extends it to play thousands of clients at once without a console: it picks the rooms, loses packets and leaves
+early through the few methods it overrides (openSocket(), chooseRoom(), log(), wantsToLeave()...).
+
+In the binary protocol, the room gives the client a session token with its port, and the client sends it back with every
+message. If the client's address changes while it waits, the room finds it by its token. resume() uses that to carry on from a
+new socket in one round trip, without going back to the lobby.
+
+For a long time this project didn't have an implementation of a game or network-based application. Partly because I was really lazy
+but also because I didn't have the time, but also because I was mostly only motivated to do a waiting room. Now there's FingerWar.
  */
 public class Client {
+    boolean binary; //talk to the server with the binary protocol instead of the text protocol
+    Message msgToServer = new Message();
+    InetAddress serverAddress;
+    int serverPort;
+
+    int roomPort; //the room we were sent to, 0 until then
+    MessageSocket socket; //the one play() opened, or the one resume() opened instead
+    boolean gameStarted = false;
+    boolean gameOver = false; //the game was played to its end
+
     public Client(){
+        this(false);
+    }
+
+    public Client(boolean binary){
+        this(binary, InetAddress.getLoopbackAddress(), 38950);
+        play();
+    }
+
+    //A client that doesn't play until play() is called.
+    Client(boolean binary, InetAddress serverAddress, int serverPort){
+        this.binary = binary;
+        msgToServer.binary = binary;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+    }
+
+    public void play(){
         try{
-            byte[] receiveBuffer = new byte[1024];
-            byte[] sendBuffer = new byte[0];
-            DatagramPacket dgPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            DatagramSocket clientSocket = new DatagramSocket();
-            InetAddress receiverAddress = InetAddress.getByName("127.0.0.1");
-            int roomServerPort = 38950;
-            String msgFromClient = "";
-            String msgToClient = "";
-            int roomPort;
+            MessageSocket clientSocket = socket = openSocket();
             int roomClientPort;
 
             //Connect to room
-            roomPort = decideRoom(clientSocket, dgPacket, sendBuffer, receiveBuffer, receiverAddress, roomServerPort);
+            roomPort = decideRoom(clientSocket, serverAddress, serverPort);
             if(roomPort == 0){ //server never responded
-                System.out.println("There was no response from the server after 3 attempts to connect. Shutting down.");
+                log("There was no response from the server after 3 attempts to connect. Shutting down.");
             } else {
-                roomClientPort = connectToRoom(clientSocket, dgPacket, sendBuffer, receiveBuffer, receiverAddress, roomPort);
+                roomClientPort = connectToRoom(clientSocket, serverAddress, roomPort);
 
                 //Wait for room: pinging action.
-                waitForGame(clientSocket, dgPacket, sendBuffer, receiveBuffer, receiverAddress, roomClientPort);
+                if(roomClientPort == 0){ //someone else got the last seat first
+                    log("The room is full. Shutting down.");
+                }else{
+                    waitForGame(clientSocket, serverAddress, roomClientPort);
+                    if(gameStarted){
+                        playGame(socket, serverAddress, roomClientPort); //resume() may have changed our socket
+                    }
+                }
             }
-
-            //game and all related connections finished
-            clientSocket.close();
+        }catch(SocketTimeoutException e){
+            log("The room never answered. Shutting down.");
         }catch(IOException e){
             e.printStackTrace();
+        }finally{
+            //game and all related connections finished
+            if(socket != null){
+                socket.close();
+            }
         }
     }
 
-    public int decideRoom(DatagramSocket clientSocket, DatagramPacket dgPacket, byte[] sendBuffer, byte[] receiveBuffer, InetAddress receiverAddress, int roomServerPort) throws IOException {
-        String msgFromClient = "";
-        String msgToClient = "";
+    MessageSocket openSocket() throws IOException {
+        return new MessageSocket(new DatagramSocket());
+    }
+
+    void log(Object message){
+        System.out.println(message);
+    }
+
+    //What only matters when something goes wrong, like every ping: it's only written with "log=debug", by the EventLog.
+    void debug(String message){
+        EventLog.console.debug("client", message);
+    }
+
+    //Let the user pick a room from the list. The name goes with the request: "connect Room 1"
+    //or let the server pick the best room of a game: "quick join finger war"
+    String chooseRoom(String rooms){
+        log("Which room do you want to join? (or \"quick join <game>\")");
+        return new Scanner(System.in).nextLine();
+    }
+
+    //checked between the messages of the room, to leave the room before it's full
+    boolean wantsToLeave(){
+        return false;
+    }
+
+    void gotPing(Message ping){
+    }
+
+    //checked between the messages of the room, to carry on from a new socket (see resume())
+    boolean wantsNewSocket(){
+        return false;
+    }
+
+    public int decideRoom(MessageSocket clientSocket, InetAddress receiverAddress, int roomServerPort) throws IOException {
+        Message msgFromServer;
         int roomPort = 0;
         int timeoutLimit = 3;
         int timeouts = 0;
@@ -65,24 +141,43 @@ public class Client {
                 clientSocket.setSoTimeout(6000); //set a timeout for receiving messages. If we don't get anything in 6 seconds,
                 ///assume that the server is dead.
                 //let the user see all rooms
-                msgToClient = "list";
-                sendString(clientSocket, dgPacket, sendBuffer, msgToClient, receiverAddress, roomServerPort);
-                System.out.println("Waiting to receive from server...");
-                msgFromClient = receiveString(clientSocket, dgPacket, receiveBuffer);
-                System.out.println("Server sent message!");
-                System.out.println(msgFromClient);
-                Scanner scanner = new Scanner(System.in);
-
-                //let the user pick a room
-                msgToClient = "connect";
-                sendString(clientSocket, dgPacket, sendBuffer, msgToClient, receiverAddress, roomServerPort);
-                System.out.println("Which room do you want to join?");
-                msgToClient = scanner.nextLine();
-                sendString(clientSocket, dgPacket, sendBuffer, msgToClient, receiverAddress, roomServerPort);
-                msgFromClient = receiveString(clientSocket, dgPacket, receiveBuffer);
-                System.out.println(msgFromClient);
-                roomPort = Integer.parseInt(msgFromClient);
-                scanner.close();
+                clientSocket.send(msgToServer.set(Opcode.LIST), receiverAddress, roomServerPort);
+                debug("waiting to receive from server");
+                msgFromServer = clientSocket.receive();
+                debug("server sent message");
+                String rooms = msgFromServer.toString();
+                log(rooms);
+                //a big list of rooms comes in pages, ask for the others too
+                int pages = msgFromServer.is(Opcode.ROOMS) ? RoomListing.numberOfPages(msgFromServer.getText()) : 1;
+                for(int page = 2; page <= pages; page++){
+                    clientSocket.send(msgToServer.set(Opcode.LIST).putText("page " + page), receiverAddress, roomServerPort);
+                    String nextPage = clientSocket.receive().toString();
+                    log(nextPage);
+                    rooms = rooms + "\n" + nextPage;
+                }
+
+                String choice = chooseRoom(rooms);
+                if(choice.startsWith("quick join ")){
+                    msgToServer.set(Opcode.QUICK_JOIN).putText(choice.substring("quick join ".length()));
+                }else{
+                    msgToServer.set(Opcode.CONNECT).putText(choice);
+                }
+                clientSocket.send(msgToServer, receiverAddress, roomServerPort);
+                msgFromServer = clientSocket.receive();
+                log(msgFromServer);
+                if(msgFromServer.is(Opcode.REDIRECT)){
+                    //"127.0.0.1:39950 Room 2": the room is on another server of the federation, ask that one for it
+                    String[] redirect = msgFromServer.getText().split(" ", 2);
+                    InetSocketAddress node = Federation.parseNode(redirect[0]);
+                    receiverAddress = serverAddress = node.getAddress();
+                    roomServerPort = serverPort = node.getPort();
+                    clientSocket.send(msgToServer.set(Opcode.CONNECT).putText(redirect[1]), receiverAddress, roomServerPort);
+                    msgFromServer = clientSocket.receive();
+                    log(msgFromServer);
+                }
+                if(msgFromServer.is(Opcode.PORT)){
+                    roomPort = msgFromServer.getInt();
+                }
             }catch(SocketTimeoutException e){ //if we timeout from not reading anything just retry.
                 timeouts++;
                 continue;
@@ -93,41 +188,65 @@ public class Client {
         return roomPort;
     }
 
-    public int connectToRoom(DatagramSocket clientSocket, DatagramPacket dgPacket, byte[] sendBuffer, byte[] receiveBuffer, InetAddress receiverAddress, int roomPort) throws IOException{
-        String msgFromClient = "";
-        String msgToClient = "";
+    public int connectToRoom(MessageSocket clientSocket, InetAddress receiverAddress, int roomPort) throws IOException{
+        Message msgFromServer;
         int portToConnectTo = 0;
 
-        msgToClient = "connect";
-        sendString(clientSocket, dgPacket, sendBuffer, msgToClient, receiverAddress, roomPort); //cannot connect twice: handled in Room.java loop.
+        clientSocket.send(msgToServer.set(Opcode.CONNECT), receiverAddress, roomPort); //cannot connect twice: handled in Room.java loop.
 
-        msgFromClient = receiveString(clientSocket, dgPacket, receiveBuffer);
-        System.out.println(msgFromClient);
-        portToConnectTo = Integer.parseInt(msgFromClient);
+        //UDP doesn't keep packets in order: "done" can get here before the port. The room sends it again until we ack it.
+        int cookies = 0;
+        while(!(msgFromServer = clientSocket.receive()).is(Opcode.PORT)){
+            log(msgFromServer);
+            if(msgFromServer.is(Opcode.COOKIE)){
+                //the room only takes us in once we show it that we get its packets at this address: connect again with its cookie
+                if(++cookies > 3){
+                    log("The room didn't take any of its cookies back.");
+                    return 0;
+                }
+                clientSocket.send(msgToServer.set(Opcode.CONNECT).putText(msgFromServer.getText()), receiverAddress, roomPort);
+            }
+        }
+        log(msgFromServer);
+        portToConnectTo = msgFromServer.getInt();
+        msgToServer.sessionId = msgFromServer.sessionId; //the room gave us our session id with the port
 
         return portToConnectTo;
     }
 
 
-    public void waitForGame(DatagramSocket clientSocket, DatagramPacket dgPacket, byte[] sendBuffer, byte[] receiveBuffer, InetAddress receiverAddress, int roomClientPort) throws IOException{
+    public void waitForGame(MessageSocket clientSocket, InetAddress receiverAddress, int roomClientPort) throws IOException{
         boolean connected = true;
-        System.out.println("connected to " + roomClientPort);
+        log("connected to " + roomClientPort);
 
-        String msgFromClient = "";
-        String msgToClient = "";
+        Message msgFromServer;
         int consecutiveTimeouts = 0;
         int maxTimeouts = 3;
         int currentTime = 6000;
 
         while(connected){
+            if(wantsToLeave()){
+                connected = false;
+                continue;
+            }
+            if(binary && wantsNewSocket()){
+                if(!resume(receiverAddress, roomClientPort)){
+                    log("The room doesn't know us anymore.");
+                    return;
+                }
+                clientSocket = socket;
+                clientSocket.setSoTimeout(currentTime);
+            }
             //check if a message is eventually received
             try{
-                if((msgFromClient=receiveString(clientSocket, dgPacket, receiveBuffer)) == null || msgFromClient.equals("-1")){
+                if((msgFromServer = clientSocket.receive()).is(Opcode.DISCONNECT)){
                     //the server isn't connected anymore. Disconnect.
                     connected = false;
                     continue;
                 }
-                if(msgFromClient.equals("done")){ //if the wait room is full... break loop and start game
+                if(msgFromServer.is(Opcode.DONE)){ //if the wait room is full... ack it, break loop and start game
+                    msgToServer.replyTo(msgFromServer, Opcode.DONE_ACK);
+                    clientSocket.send(msgToServer, receiverAddress, roomClientPort);
                     connected = true;
                     break;
                 }
@@ -136,11 +255,11 @@ public class Client {
                 currentTime = 6000 + (consecutiveTimeouts * 1000); //incrementally make wait time longer...
                 clientSocket.setSoTimeout(currentTime);
                 if(consecutiveTimeouts >= maxTimeouts){
-                    System.out.println("Too many timeouts. Breaking connection");
+                    log("Too many timeouts. Breaking connection");
                     connected = false;
                     continue;
                 }
-                System.out.println("No response was received in " + (currentTime/1000) + " seconds. Try " + (3-consecutiveTimeouts) + " more times!");
+                log("No response was received in " + (currentTime/1000) + " seconds. Try " + (3-consecutiveTimeouts) + " more times!");
                 continue;
             }
 
@@ -149,34 +268,114 @@ public class Client {
             consecutiveTimeouts = 0;
             clientSocket.setSoTimeout(currentTime);
 
-            System.out.println("Receiver received: " + msgFromClient);
-            msgToClient = "gotPing";
-            sendString(clientSocket, dgPacket, sendBuffer, msgToClient, receiverAddress, roomClientPort);
+            if(EventLog.console.isEnabled(EventLog.Level.DEBUG)){
+                debug("received " + msgFromServer); //the message is reused, so it's turned into text now
+            }
+            gotPing(msgFromServer);
+            msgToServer.replyTo(msgFromServer, Opcode.GOT_PING); //the sequence number tells the server which ping this answers
+            clientSocket.send(msgToServer, receiverAddress, roomClientPort);
         }
         if(connected){
-            //TODO: CONTINUE GAME
-            System.out.println("Starting game");
+            log("Starting game");
+            gameStarted = true;
         }else{
-            msgToClient = "-1";
-            sendString(clientSocket, dgPacket, sendBuffer, msgToClient, receiverAddress, roomClientPort);
+            clientSocket.send(msgToServer.set(Opcode.DISCONNECT), receiverAddress, roomClientPort);
         }
 
     }
 
 
 
-    public void sendString(DatagramSocket socket, DatagramPacket dgPacket, byte[] sendBuffer, String msg, InetAddress clientAddress, int clientPort) throws IOException {
-        sendBuffer = msg.getBytes();
-        dgPacket = new DatagramPacket(sendBuffer, sendBuffer.length, clientAddress, clientPort);
-        socket.send(dgPacket);
+    //Close our socket and go on from a new one, the same as if our address had changed: "resume" with our session token, and
+    //the room answers with the port to keep talking to. Only the binary protocol has session tokens. Returns false if the room
+    //doesn't know our session anymore, or didn't answer.
+    public boolean resume(InetAddress receiverAddress, int roomClientPort) throws IOException {
+        socket.close();
+        socket = openSocket();
+        socket.setSoTimeout(6000);
+        socket.send(msgToServer.set(Opcode.RESUME), receiverAddress, roomClientPort);
+        Message msgFromServer;
+        try{
+            //a ping can get to the new socket before the answer does. Missing one doesn't cost us the seat.
+            while(!(msgFromServer = socket.receive()).is(Opcode.PORT)){
+                if(msgFromServer.is(Opcode.DISCONNECT)){
+                    return false;
+                }
+            }
+        }catch(SocketTimeoutException e){
+            return false;
+        }
+        log("resumed at " + msgFromServer.getInt());
+        return msgFromServer.getInt() == roomClientPort;
     }
-    public String receiveString(DatagramSocket socket, DatagramPacket dgPacket, byte[] receiveBuffer) throws IOException{
-        socket.receive(dgPacket);
-        String receivedData = new String(dgPacket.getData(), 0, dgPacket.getLength());
-        return receivedData;
+
+    //The game is played with the server's TickEngine, from another port than the room's: it sends us a snapshot of the game
+    //every tick, and we send our taps back to where the snapshots come from. If our ack was lost, the room sends "done" again,
+    //so it's answered here too. It's over when a snapshot says so, or when the snapshots stop coming.
+    public void playGame(MessageSocket clientSocket, InetAddress receiverAddress, int roomClientPort) throws IOException{
+        int player = -1;
+        int inputSequence = 0;
+        String round = "";
+        clientSocket.setSoTimeout(6000);
+        while(true){
+            Message msgFromServer;
+            try{
+                msgFromServer = clientSocket.receive();
+            }catch(SocketTimeoutException e){
+                log("The game stopped sending us anything.");
+                return;
+            }
+            if(msgFromServer.is(Opcode.DONE)){
+                msgToServer.replyTo(msgFromServer, Opcode.DONE_ACK);
+                clientSocket.send(msgToServer, receiverAddress, roomClientPort);
+                continue;
+            }
+            if(msgFromServer.is(Opcode.GAME) && player < 0){
+                //"2 4 20 finger war": we're player 2 of 4
+                String[] seat = msgFromServer.getText().split(" ", 4);
+                player = Integer.parseInt(seat[0]);
+                log("You are player " + player + " of " + seat[1] + " in " + seat[3] + ". Tap!");
+                continue;
+            }
+            if(!msgFromServer.is(Opcode.STATE)){
+                continue;
+            }
+            gotState(msgFromServer);
+            String state = msgFromServer.getText();
+            int over = state.indexOf(" over winner ");
+            if(over >= 0){
+                String winner = state.substring(over + " over winner ".length());
+                log(state);
+                log(winner.equals(String.valueOf(player)) ? "You won!" : winner.equals("none") ? "Nobody won." : "Player " + winner + " won.");
+                gameOver = true;
+                return;
+            }
+            //"round 3 tick 12 fingers ...": show where everyone is once a round
+            String thisRound = state.substring(0, Math.max(0, state.indexOf(" tick ")));
+            if(!thisRound.equals(round)){
+                round = thisRound;
+                log(state);
+            }
+            int tapped = taps();
+            if(tapped > 0){
+                msgToServer.set(Opcode.INPUT).putText(String.valueOf(tapped));
+                msgToServer.sequence = ++inputSequence;
+                clientSocket.send(msgToServer, clientSocket.senderAddress(), clientSocket.senderPort());
+            }
+        }
+    }
+
+    //How many times we tapped since the last snapshot. A console can't be read a key at a time, so the client taps for itself,
+    //about ten times a second at the default tick rate.
+    int taps(){
+        return ThreadLocalRandom.current().nextInt(2);
+    }
+
+    void gotState(Message state){
     }
 
     public static void main(String[] args){
-        Client client = new Client();
+        //pass "binary" to use the binary protocol instead of the text protocol
+        Client client = new Client(args.length > 0 && args[0].equals("binary"));
     }
 }
@@ -0,0 +1,160 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+The thread that every AsyncClient of a process can share: one Selector for all of their channels, and the timers of their
+retransmissions, on one thread. A thousand bots used to be a thousand threads blocked in receive(), each waking up for its own
+packets; now they're a thousand channels and one thread.
+
+1) Everything an AsyncClient does happens on this thread: what it's asked from other threads is queued with execute(), and the
+selector is woken up to run it. So nothing of an AsyncClient is locked.
+2) Timers wait in a queue ordered by when they're due, like the sessions of the TickEngine, and the thread sleeps in select()
+until the first one is, or until a packet comes in. A timer that isn't needed anymore is cancelled, and skipped when it's due.
+3) Every packet is decoded into the same Message, and handed to the AsyncClient of the channel it came in on. Whoever gets it
+has to be done with it when it returns.
+
+The callbacks and the futures of the AsyncClients are run and completed on this thread too, so they mustn't block: waiting for
+a future of an AsyncClient has to be done on another thread.
+ */
+public class ClientLoop implements Runnable {
+    //something to do later, on the loop's thread
+    public static final class Timer {
+        long at;
+        Runnable action;
+        boolean cancelled = false;
+
+        Timer(long at, Runnable action){
+            this.at = at;
+            this.action = action;
+        }
+
+        public void cancel(){
+            cancelled = true;
+        }
+    }
+
+    Selector selector;
+    Thread thread;
+    volatile boolean closed = false;
+    final ByteBuffer sendBuffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize); //the clients send from the loop's thread only
+    final Message outgoing = new Message();
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>((a, b) -> Long.signum(a.at - b.at));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    private final Message received = new Message();
+
+    public ClientLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "client-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Run this on the loop's thread, as soon as it can. Can be called from any thread.
+    public void execute(Runnable task){
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    //Run this on the loop's thread in delayInNanos. Only the loop's thread schedules timers.
+    Timer schedule(long delayInNanos, Runnable action){
+        Timer timer = new Timer(System.nanoTime() + delayInNanos, action);
+        timers.add(timer);
+        return timer;
+    }
+
+    //The packets of this channel go to this client from now on. Only the loop's thread registers channels.
+    void register(DatagramChannel channel, AsyncClient client) throws ClosedChannelException {
+        channel.register(selector, SelectionKey.OP_READ, client);
+    }
+
+    public void run(){
+        while(!closed){
+            try{
+                Runnable task;
+                while((task = tasks.poll()) != null){
+                    runSafely(task);
+                }
+
+                Timer timer;
+                while((timer = timers.peek()) != null && System.nanoTime() - timer.at >= 0){
+                    timers.poll();
+                    if(!timer.cancelled){
+                        runSafely(timer.action);
+                    }
+                }
+
+                //sleep until the next timer is due, or a packet or a task comes in. select(0) would sleep forever.
+                if(!tasks.isEmpty()){
+                    selector.selectNow();
+                }else if(timer == null){
+                    selector.select();
+                }else{
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.at - System.nanoTime())));
+                }
+                for(SelectionKey key: selector.selectedKeys()){
+                    readAll(key);
+                }
+                selector.selectedKeys().clear();
+            }catch(ClosedSelectorException e){
+                break; //close() was called
+            }catch(IOException e){
+                if(!closed){
+                    EventLog.console.error("client-loop", "select failed", e);
+                }
+            }
+        }
+    }
+
+    //a callback that throws shouldn't take every other client of the loop down with it
+    private void runSafely(Runnable task){
+        try{
+            task.run();
+        }catch(RuntimeException e){
+            EventLog.console.error("client-loop", "a client's task failed", e);
+        }
+    }
+
+    private void readAll(SelectionKey key){
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        AsyncClient client = (AsyncClient) key.attachment();
+        try{
+            SocketAddress sender;
+            receiveBuffer.clear();
+            while((sender = channel.receive(receiveBuffer)) != null){
+                receiveBuffer.flip();
+                if(MessageCodec.decode(receiveBuffer, received)){
+                    client.onMessage(received, (InetSocketAddress) sender);
+                }
+                receiveBuffer.clear();
+            }
+        }catch(IOException e){
+            key.cancel(); //the client closed its channel
+        }catch(RuntimeException e){
+            EventLog.console.error("client-loop", "a client's callback failed", e);
+        }
+    }
+
+    //Stop the loop. The channels of its clients stay open until the clients are closed.
+    public void close(){
+        closed = true;
+        try{
+            selector.close();
+        }catch(IOException e){
+            EventLog.console.error("client-loop", "couldn't close", e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.project;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+The cookies a Room gives out before it takes anyone in, the same idea as TCP's SYN cookies. Taking a seat costs a room a lot: a
+RoomClientHandler that pings the client for seconds, and in the one-socket-per-client mode a socket and a thread too. A single
+"connect" with a spoofed source address used to be enough for that.
+
+1) A "connect" without a cookie is answered with "cookie <16 hex digits>", and nothing else happens. The cookie is an
+HMAC-SHA256 of the address and port the connect came from, the room's port and the current epoch, cut to 8 bytes. The room
+doesn't keep anything: it can make the same cookie again from the next packet.
+2) The client sends "connect <cookie>". The room only takes it in if the cookie is the one it would give that address now.
+Someone who spoofs the address never gets the cookie, so a flood of connects costs the room one hash and one small reply each.
+3) The key is random and chosen when the server starts, and the epoch changes every epochInMS, so the secret behind the cookies
+changes with it. A cookie of the previous epoch is still good, so a cookie is good for between one and two epochs.
+
+The Mac isn't thread-safe and creating one isn't free, so every thread that checks cookies (the room threads, the selector
+thread) keeps its own.
+ */
+public class ConnectCookies {
+    static final long epochInMS = 30000;
+
+    //what each thread hashes with: its own Mac, and the buffers of its input and output
+    private static class Hasher {
+        Mac mac;
+        ByteBuffer input = ByteBuffer.allocate(16);
+        byte[] output;
+    }
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Hasher> hashers;
+
+    public ConnectCookies(){
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, "HmacSHA256");
+        hashers = ThreadLocal.withInitial(() -> {
+            Hasher hasher = new Hasher();
+            try{
+                hasher.mac = Mac.getInstance("HmacSHA256");
+                hasher.mac.init(key);
+            }catch(GeneralSecurityException e){
+                throw new IllegalStateException("Every JDK has HmacSHA256", e);
+            }
+            hasher.output = new byte[hasher.mac.getMacLength()];
+            return hasher;
+        });
+        issue(new InetSocketAddress(0), 0); //loads the JCE now, instead of with the first connect
+    }
+
+    //The cookie for a client at this address, connecting to the room at roomPort, as 16 hex digits.
+    public String issue(InetSocketAddress client, int roomPort){
+        return issue(client, roomPort, System.currentTimeMillis());
+    }
+
+    String issue(InetSocketAddress client, int roomPort, long timeInMS){
+        long cookie = cookie(client, roomPort, epoch(timeInMS));
+        String digits = Long.toHexString(cookie);
+        return "0".repeat(16 - digits.length()) + digits;
+    }
+
+    //Is this the cookie of the client's address for the room, in this epoch or the previous one?
+    public boolean isValid(String cookie, InetSocketAddress client, int roomPort){
+        return isValid(cookie, client, roomPort, System.currentTimeMillis());
+    }
+
+    //the same, at another time than now
+    boolean isValid(String cookie, InetSocketAddress client, int roomPort, long timeInMS){
+        if(cookie.length() != 16){
+            return false;
+        }
+        long value;
+        try{
+            value = Long.parseUnsignedLong(cookie, 16);
+        }catch(NumberFormatException e){
+            return false;
+        }
+        long epoch = epoch(timeInMS);
+        return value == cookie(client, roomPort, epoch) || value == cookie(client, roomPort, epoch - 1);
+    }
+
+    private static long epoch(long timeInMS){
+        return timeInMS / epochInMS;
+    }
+
+    private long cookie(InetSocketAddress client, int roomPort, long epoch){
+        Hasher hasher = hashers.get();
+        hasher.mac.update(client.getAddress().getAddress());
+        hasher.input.clear();
+        hasher.input.putInt(client.getPort()).putInt(roomPort).putLong(epoch).flip();
+        hasher.mac.update(hasher.input);
+        try{
+            hasher.mac.doFinal(hasher.output, 0);
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException(e); //the output is always big enough
+        }
+        return ByteBuffer.wrap(hasher.output).getLong();
+    }
+}
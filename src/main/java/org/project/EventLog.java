@@ -0,0 +1,235 @@
+package org.project;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+What the server (and the Client) print, without printing from the threads that handle the packets. Every join and leave used
+to print the whole room with System.out.println, and the lobby printed every request: under load, the threads of the rooms
+and of the lobby spent their time waiting for the console, one at a time, since a PrintStream is locked while it writes.
+
+1) An event is a level, where it happened ("Room 2", "lobby"...), what happened and maybe one detail. Logging one is copying
+those references into a slot of a ring buffer that's allocated once, with one compare-and-set to claim the slot. Nothing is
+formatted and nothing is written on the thread that logs: the detail is only turned into text by the log's own thread.
+2) That thread takes the events out of the ring in order, formats them and writes them into a buffered stream, which is
+flushed once the ring is empty. When there's nothing to write, it checks again every idleParkInMS.
+3) Once the ring is 3/4 full, only one DEBUG or INFO event out of sampleEvery is kept: the warnings and errors get the last
+quarter. When it's full, new events are dropped. Nothing ever waits for room in the ring. How many events were sampled out or
+dropped is written once the log catches up.
+4) Events under the log's level are thrown away before anything else, so a debug() that isn't shown costs one comparison.
+Whatever is turned into the detail should be cheap, or checked with isEnabled() first.
+
+The ring is a bounded queue for many writers and one reader: every slot has a sequence number that says whose turn it is, the
+writer that claims a slot publishes its event by moving the slot's sequence forward, and the reader gives it back by moving it
+forward again, a whole turn of the ring later.
+
+There's only one log for the process, EventLog.console, since there's only one console. Whatever is still in its ring when the
+process exits is written by a shutdown hook.
+ */
+public class EventLog implements Runnable {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    static final int defaultCapacity = 1 << 13;
+    static final int sampleEvery = 16;
+    static final long idleParkInMS = 5;
+    private static final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    public static final EventLog console = new EventLog(new FileOutputStream(FileDescriptor.out), defaultCapacity);
+
+    //a slot of the ring. Its fields are only read once its sequence says the event is there.
+    private static final class Event {
+        volatile long sequence;
+        long timeInMillis;
+        Level level;
+        String source;
+        String message;
+        Object detail;
+        Throwable error;
+    }
+
+    volatile Level level = Level.INFO;
+    LongAdder sampledOut = new LongAdder();
+    LongAdder dropped = new LongAdder();
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); //the next slot a writer claims
+    private volatile long head = 0; //the next slot the reader takes, only the log's thread moves it
+    private final PrintStream out;
+    private final StringBuilder line = new StringBuilder(256);
+    private long reportedSampledOut = 0;
+    private long reportedDropped = 0;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    //a log with room for 'capacity' events (rounded up to a power of 2)
+    public EventLog(OutputStream stream, int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Event[size];
+        for(int i = 0; i < size; i++){
+            ring[i] = new Event();
+            ring[i].sequence = i;
+        }
+        mask = size - 1;
+        out = new PrintStream(new BufferedOutputStream(stream, 1 << 16), false);
+        writer = new Thread(this, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public boolean isEnabled(Level level){
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String source, String message){
+        log(Level.DEBUG, source, message, null, null);
+    }
+
+    public void debug(String source, String message, Object detail){
+        log(Level.DEBUG, source, message, detail, null);
+    }
+
+    public void info(String source, String message){
+        log(Level.INFO, source, message, null, null);
+    }
+
+    public void info(String source, String message, Object detail){
+        log(Level.INFO, source, message, detail, null);
+    }
+
+    public void warn(String source, String message){
+        log(Level.WARN, source, message, null, null);
+    }
+
+    public void warn(String source, String message, Object detail){
+        log(Level.WARN, source, message, detail, null);
+    }
+
+    public void error(String source, String message, Throwable error){
+        log(Level.ERROR, source, message, null, error);
+    }
+
+    public void log(Level level, String source, String message, Object detail, Throwable error){
+        if(!isEnabled(level)){
+            return;
+        }
+        if(level.compareTo(Level.INFO) <= 0 && tail.get() - head >= ring.length - ring.length / 4
+                && ThreadLocalRandom.current().nextInt(sampleEvery) != 0){
+            sampledOut.increment();
+            return;
+        }
+        Event event;
+        long position;
+        while(true){
+            position = tail.get();
+            event = ring[(int) position & mask];
+            long turn = event.sequence - position;
+            if(turn == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    break;
+                }
+            }else if(turn < 0){
+                dropped.increment(); //the reader hasn't given this slot back yet: the ring is full
+                return;
+            }
+            //else another writer claimed it first, try the next one
+        }
+        event.timeInMillis = System.currentTimeMillis();
+        event.level = level;
+        event.source = source;
+        event.message = message;
+        event.detail = detail;
+        event.error = error;
+        event.sequence = position + 1; //publish it
+    }
+
+    public void run(){
+        while(true){
+            if(!drain()){
+                if(closed){
+                    break;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(idleParkInMS));
+            }
+        }
+    }
+
+    //Write every event that's in the ring. Returns false if there weren't any.
+    private boolean drain(){
+        boolean wrote = false;
+        long position = head;
+        Event event;
+        while((event = ring[(int) position & mask]).sequence == position + 1){
+            write(event);
+            event.source = null; //so that the ring doesn't keep what was logged alive
+            event.message = null;
+            event.detail = null;
+            event.error = null;
+            event.sequence = position + ring.length; //the slot is free for the writers' next turn of the ring
+            head = ++position;
+            wrote = true;
+        }
+        if(wrote){
+            reportLosses();
+            out.flush();
+        }
+        return wrote;
+    }
+
+    //"12:00:01.123 INFO  Room 2: joined, players 2/4"
+    private void write(Event event){
+        line.setLength(0);
+        timeFormat.formatTo(Instant.ofEpochMilli(event.timeInMillis), line);
+        line.append(' ').append(event.level);
+        for(int pad = event.level.name().length(); pad < 6; pad++){
+            line.append(' ');
+        }
+        if(event.source != null){
+            line.append(event.source).append(": ");
+        }
+        line.append(event.message);
+        if(event.detail != null){
+            line.append(", ").append(event.detail);
+        }
+        out.append(line).append('\n');
+        if(event.error != null){
+            event.error.printStackTrace(out);
+        }
+    }
+
+    private void reportLosses(){
+        long sampledOutNow = sampledOut.sum();
+        long droppedNow = dropped.sum();
+        if(sampledOutNow == reportedSampledOut && droppedNow == reportedDropped){
+            return;
+        }
+        out.append("The log couldn't keep up: ").append(String.valueOf(sampledOutNow - reportedSampledOut))
+                .append(" events were sampled out and ").append(String.valueOf(droppedNow - reportedDropped)).append(" dropped.\n");
+        reportedSampledOut = sampledOutNow;
+        reportedDropped = droppedNow;
+    }
+
+    //Write what's left and stop the log's thread.
+    public void close(){
+        closed = true;
+        LockSupport.unpark(writer);
+        try{
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,35 @@
+package org.project;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+What runs the Room threads and the RoomClientHandler threads of the one-socket-per-client mode.
+
+PLATFORM is how it has always worked: one platform thread per Room, and a fixed pool per Room with one thread per client it can
+hold. That makes the number of players of a room the size of a thread pool too, and every waiting client holds a whole
+operating system thread while it sleeps between pings.
+
+VIRTUAL starts every Room and every RoomClientHandler on its own virtual thread instead. A virtual thread that is blocked in
+receive() or sleep() doesn't hold on to an operating system thread, so the number of waiting clients isn't limited by how many
+threads the machine can make, and the number of players is only a rule of the game again.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    //rooms can be created while the server is running, so the pool grows with them
+    public ExecutorService newRoomExecutor(){
+        if(this == VIRTUAL){
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    public ExecutorService newClientExecutor(int maxClients){
+        if(this == VIRTUAL){
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(maxClients);
+    }
+}
@@ -0,0 +1,447 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+Several RoomServers, on one machine or on several, can form a federation: "list" on any of them shows the rooms of all of them,
+and "connect" to a room of another server is answered with the server to ask instead.
+
+1) Every server is a node, known by the address and port of its lobby ("127.0.0.1:38950"). It's started with the lobbies of some
+of the other nodes as its peers.
+2) Every gossipIntervalInMS, a node sends its rooms and how many players they have to a few of its peers (fanout), and passes
+on the latest rooms it heard of every other node to one of them each. So the peers don't have to all know each other.
+3) A node raises its heartbeat every time it sends its rooms, and the rooms of a node are only replaced by the ones of a newer
+heartbeat, whoever passed them on. A node that nobody has heard a newer heartbeat of for nodeTimeoutInMS (it stopped, or it
+can't be reached anymore) is lost, with its rooms. Its last heartbeat is kept a while longer, so that the old gossip of it that
+other nodes still pass on doesn't bring it back.
+4) The rooms of the other nodes are listed with their node after their name ("Room 2@127.0.0.1:39950"). A "connect" to one of
+them is answered with "redirect 127.0.0.1:39950 Room 2", and the client asks that lobby for "Room 2" instead.
+
+The gossip is sent to the peers' lobby ports from the node's own lobby port, so that a node only listens on one port, and only
+takes gossip from its peers. It's the text of GOSSIP messages, in as many parts as it takes to fit in datagrams:
+    <node> <incarnation> <heartbeat> <part> <parts> [<signature>]
+    <id>|<players>|<max players>|<game>|<name>
+    ...
+The incarnation is when the node started, so that a node that was restarted (and starts its heartbeat over) is still newer.
+
+5) Where a packet comes from can be spoofed, and the rooms of the gossip are where clients are redirected to, so a node doesn't
+take anyone's word for what another node has. With a key that all the nodes share ("gossipkey=<secret>"), every part is signed
+by the node it's about with an HMAC-SHA256 of its header and its rooms (the first 16 bytes, in hex), the same as ConnectCookies
+do, and a part whose signature doesn't match is dropped, whoever passed it on. Without a key, a node's rooms are only taken from
+the node itself (the sender has to be the address and port the gossip is about), and nothing is passed on.
+
+The rooms of a node are read by the lobby's shards while the gossip replaces them, so they're published as one Gossip that never
+changes: the shards read whichever one is the latest, without locking the node.
+ */
+public class Federation implements Runnable {
+    static final int gossipIntervalInMS = 1000;
+    static final int nodeTimeoutInMS = 10000;
+    static final int forgetLostNodesAfterInMS = 60000;
+    static final int fanout = 2;
+    static final int headerLength = 140; //room for the first line of every part, signature included
+    static final int signatureLength = 16; //bytes of the HMAC that are sent
+
+    //a room of another node, as that node's latest gossip had it
+    static class RemoteRoom {
+        String node;
+        int roomId;
+        String name; //its name on its own node
+        String game;
+        int players;
+        int maxPlayers;
+
+        String qualifiedName(){
+            return name + "@" + node;
+        }
+    }
+
+    //A node's latest complete gossip: its rooms, and its parts as they were received (they're passed on as they are). Replaced as a
+    //whole and never changed, so it's read without locking the node.
+    static final class Gossip {
+        static final Gossip none = new Gossip(List.of(), "", new byte[0][]);
+
+        final List<RemoteRoom> rooms;
+        final String roomsText;
+        final byte[][] parts;
+
+        Gossip(List<RemoteRoom> rooms, String roomsText, byte[][] parts){
+            this.rooms = rooms;
+            this.roomsText = roomsText;
+            this.parts = parts;
+        }
+    }
+
+    //what we know about another node
+    static class Node {
+        String address;
+        long incarnation = -1;
+        volatile long heartbeat = -1;
+        long heardAt;
+        volatile boolean lost = false;
+        volatile Gossip latest = Gossip.none;
+
+        //the parts of a newer heartbeat, until they've all arrived
+        long pendingIncarnation = -1;
+        long pendingHeartbeat = -1;
+        byte[][] pendingParts;
+        int pendingMissing;
+
+        Node(String address){
+            this.address = address;
+        }
+
+        boolean isNewer(long incarnation, long heartbeat){
+            return incarnation > this.incarnation || (incarnation == this.incarnation && heartbeat > this.heartbeat);
+        }
+    }
+
+    String self; //our node: the address and port of our lobby, as the other nodes reach it
+    Set<InetSocketAddress> peers;
+    List<InetSocketAddress> peerList;
+    long incarnation = System.currentTimeMillis();
+    long heartbeat = 0;
+    ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+
+    RoomRegistry rooms;
+    RoomListing listing;
+    MessageSocket gossipSocket;
+    Message gossip = new Message();
+    volatile boolean stopped = false;
+    Thread thread;
+    private ThreadLocal<Mac> macs; //null if the gossip isn't signed. The shards check signatures at the same time, each with its own.
+
+    public Federation(String self, List<InetSocketAddress> peers){
+        this(self, peers, null);
+    }
+
+    //A node that signs its gossip with this key, and only takes signed gossip. No key (null) to only take gossip of a node from it.
+    public Federation(String self, List<InetSocketAddress> peers, String key){
+        this.self = self;
+        this.peerList = new ArrayList<InetSocketAddress>(peers);
+        this.peers = Set.copyOf(peers);
+        gossip.binary = true;
+        if(key != null){
+            SecretKeySpec secret = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+            macs = ThreadLocal.withInitial(() -> {
+                try{
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(secret);
+                    return mac;
+                }catch(GeneralSecurityException e){
+                    throw new IllegalStateException("Every JDK has HmacSHA256", e);
+                }
+            });
+        }
+    }
+
+    //"127.0.0.1:39950" as an address
+    public static InetSocketAddress parseNode(String node){
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    //the rooms we gossip about, and the listing that shows the rooms we hear of
+    void serve(RoomRegistry rooms, RoomListing listing){
+        this.rooms = rooms;
+        this.listing = listing;
+        listing.federation = this;
+    }
+
+    //Start gossiping from the lobby's socket. Its MessageSocket is our own, so that we don't share the lobby's buffers.
+    public void start(DatagramSocket lobbySocket){
+        gossipSocket = new MessageSocket(lobbySocket);
+        thread = new Thread(this, "federation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop(){
+        stopped = true;
+        if(thread != null){
+            thread.interrupt();
+        }
+    }
+
+    public void run(){
+        while(!stopped){
+            try{
+                Thread.sleep(gossipIntervalInMS);
+            }catch(InterruptedException e){
+                break;
+            }
+            try{
+                gossip();
+            }catch(IOException e){
+                if(!stopped){
+                    EventLog.console.warn("federation", "couldn't gossip", e.getMessage());
+                }
+            }
+            expire();
+        }
+    }
+
+    //Our rooms to a few peers, and the rooms of every other node to one peer each.
+    void gossip() throws IOException {
+        if(peerList.isEmpty()){
+            return;
+        }
+        heartbeat++;
+        List<byte[]> ours = encodeOwnRooms();
+        List<InetSocketAddress> shuffled = new ArrayList<InetSocketAddress>(peerList);
+        Collections.shuffle(shuffled);
+        for(InetSocketAddress peer: shuffled.subList(0, Math.min(fanout, shuffled.size()))){
+            for(byte[] part: ours){
+                send(part, peer);
+            }
+        }
+
+        if(macs == null){
+            return; //our peers only believe a node about itself, so passing on the others' gossip would be for nothing
+        }
+        for(Node other: nodes.values()){
+            byte[][] parts = other.latest.parts;
+            InetSocketAddress peer = shuffled.get(ThreadLocalRandom.current().nextInt(shuffled.size()));
+            for(byte[] part: parts){
+                send(part, peer);
+            }
+        }
+    }
+
+    private void send(byte[] part, InetSocketAddress peer) throws IOException {
+        gossipSocket.send(gossip.set(Opcode.GOSSIP).putBytes(part), peer.getAddress(), peer.getPort());
+    }
+
+    //our rooms, in as many parts as they take
+    List<byte[]> encodeOwnRooms(){
+        int bodyLength = RoomListing.pageLength - headerLength;
+        List<String> bodies = new ArrayList<String>();
+        StringBuilder body = new StringBuilder();
+        for(Room room: rooms.rooms()){
+            String line = room.roomId + "|" + room.numberOfClients() + "|" + room.maxClientThreads + "|" + room.serverGame + "|"
+                    + room.serverName + "\n";
+            if(body.length() + line.length() > bodyLength){
+                bodies.add(body.toString());
+                body.setLength(0);
+            }
+            body.append(line);
+        }
+        bodies.add(body.toString()); //a node without rooms still gossips, so that it's known to be there
+
+        List<byte[]> parts = new ArrayList<byte[]>();
+        for(int i = 0; i < bodies.size(); i++){
+            String header = self + " " + incarnation + " " + heartbeat + " " + (i + 1) + " " + bodies.size();
+            if(macs != null){
+                header = header + " " + sign(header, bodies.get(i));
+            }
+            parts.add((header + "\n" + bodies.get(i)).getBytes(StandardCharsets.UTF_8));
+        }
+        return parts;
+    }
+
+    //The signature of a part of our gossip: its header (without the signature) and its rooms.
+    private String sign(String header, String body){
+        Mac mac = macs.get();
+        mac.update(header.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) '\n');
+        byte[] signature = mac.doFinal(body.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(Arrays.copyOf(signature, signatureLength));
+    }
+
+    //A part of a node's gossip, from one of our peers. Called by the lobby, from any of its shards.
+    public void onGossip(Message msg, InetSocketAddress sender){
+        if(!peers.contains(sender)){
+            return; //only our peers can tell us about rooms
+        }
+        String text = msg.getText();
+        int endOfHeader = text.indexOf('\n');
+        String headerLine = endOfHeader < 0 ? text : text.substring(0, endOfHeader);
+        String[] header = headerLine.split(" ");
+        if(header.length != (macs == null ? 5 : 6) || header[0].equals(self)){
+            return;
+        }
+        if(macs == null){
+            if(!header[0].equals(sender.getAddress().getHostAddress() + ":" + sender.getPort())){
+                return; //without a key, a node is only believed about itself
+            }
+        }else{
+            String signed = headerLine.substring(0, headerLine.lastIndexOf(' '));
+            String expected = sign(signed, endOfHeader < 0 ? "" : text.substring(endOfHeader + 1));
+            if(!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), header[5].getBytes(StandardCharsets.US_ASCII))){
+                return; //not signed by a node of the federation
+            }
+        }
+        long nodeIncarnation;
+        long nodeHeartbeat;
+        int part;
+        int parts;
+        try{
+            nodeIncarnation = Long.parseLong(header[1]);
+            nodeHeartbeat = Long.parseLong(header[2]);
+            part = Integer.parseInt(header[3]);
+            parts = Integer.parseInt(header[4]);
+        }catch(NumberFormatException e){
+            return;
+        }
+        if(part < 1 || part > parts || parts > 10000){
+            return;
+        }
+
+        Node node = nodes.computeIfAbsent(header[0], Node::new);
+        boolean changed = false;
+        synchronized(node){
+            if(!node.isNewer(nodeIncarnation, nodeHeartbeat)){
+                return; //we already have this one, or a newer one
+            }
+            if(node.pendingParts == null || nodeIncarnation != node.pendingIncarnation || nodeHeartbeat != node.pendingHeartbeat
+                    || node.pendingParts.length != parts){
+                if(nodeIncarnation < node.pendingIncarnation || (nodeIncarnation == node.pendingIncarnation && nodeHeartbeat < node.pendingHeartbeat)){
+                    return; //an older heartbeat than the one we're already putting together
+                }
+                node.pendingIncarnation = nodeIncarnation;
+                node.pendingHeartbeat = nodeHeartbeat;
+                node.pendingParts = new byte[parts][];
+                node.pendingMissing = parts;
+            }
+            if(node.pendingParts[part - 1] == null){
+                byte[] bytes = new byte[msg.payload.limit()];
+                System.arraycopy(msg.payload.array(), 0, bytes, 0, bytes.length);
+                node.pendingParts[part - 1] = bytes;
+                node.pendingMissing--;
+            }
+            if(node.pendingMissing == 0){
+                changed = complete(node);
+            }
+        }
+        if(changed){
+            listing.changed();
+        }
+    }
+
+    //All the parts of a newer heartbeat are here: they're the node's rooms now. Returns true if its rooms changed.
+    private boolean complete(Node node){
+        StringBuilder roomsText = new StringBuilder();
+        List<RemoteRoom> nodeRooms = new ArrayList<RemoteRoom>();
+        for(byte[] part: node.pendingParts){
+            String text = new String(part, StandardCharsets.UTF_8);
+            String body = text.substring(text.indexOf('\n') + 1);
+            roomsText.append(body);
+            for(String line: body.split("\n")){
+                String[] fields = line.split("\\|", 5);
+                if(fields.length < 5){
+                    continue;
+                }
+                try{
+                    RemoteRoom room = new RemoteRoom();
+                    room.node = node.address;
+                    room.roomId = Integer.parseInt(fields[0]);
+                    room.players = Integer.parseInt(fields[1]);
+                    room.maxPlayers = Integer.parseInt(fields[2]);
+                    room.game = fields[3];
+                    room.name = fields[4];
+                    nodeRooms.add(room);
+                }catch(NumberFormatException e){
+                    //not a room, skip the line
+                }
+            }
+        }
+        nodeRooms.sort(Comparator.comparingInt(room -> room.roomId));
+
+        node.incarnation = node.pendingIncarnation;
+        node.heartbeat = node.pendingHeartbeat;
+        node.heardAt = System.currentTimeMillis();
+        node.lost = false;
+        boolean changed = !roomsText.toString().equals(node.latest.roomsText);
+        node.latest = new Gossip(Collections.unmodifiableList(nodeRooms), roomsText.toString(), node.pendingParts);
+        node.pendingParts = null;
+        node.pendingIncarnation = -1;
+        node.pendingHeartbeat = -1;
+        return changed;
+    }
+
+    //lose the nodes nobody has heard of in a while, and forget them after a longer while
+    void expire(){
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        for(Node node: nodes.values()){
+            synchronized(node){
+                if(node.heartbeat < 0){
+                    continue; //still putting its first gossip together
+                }
+                if(!node.lost && now - node.heardAt > nodeTimeoutInMS){
+                    EventLog.console.warn("federation", "lost node " + node.address, node.latest.rooms.size() + " rooms");
+                    node.lost = true;
+                    node.latest = Gossip.none;
+                    changed = true;
+                }else if(node.lost && now - node.heardAt > forgetLostNodesAfterInMS){
+                    nodes.remove(node.address, node);
+                }
+            }
+        }
+        if(changed){
+            listing.changed();
+        }
+    }
+
+    //The name of one of our own rooms, without our node after it if it has it. Any other name is returned as it is.
+    public String localName(String roomName){
+        String suffix = "@" + self;
+        return roomName.endsWith(suffix) ? roomName.substring(0, roomName.length() - suffix.length()) : roomName;
+    }
+
+    //the room of another node with that qualified name ("Room 2@127.0.0.1:39950"), or null
+    public RemoteRoom find(String qualifiedName){
+        int at = qualifiedName.lastIndexOf('@');
+        if(at < 0){
+            return null;
+        }
+        Node node = nodes.get(qualifiedName.substring(at + 1));
+        if(node == null){
+            return null;
+        }
+        String name = qualifiedName.substring(0, at);
+        for(RemoteRoom room: node.latest.rooms){
+            if(room.name.equals(name)){
+                return room;
+            }
+        }
+        return null;
+    }
+
+    //the rooms of every other node, by node and then by id
+    public List<RemoteRoom> remoteRooms(){
+        List<Node> known = new ArrayList<Node>(nodes.values());
+        known.sort(Comparator.comparing(node -> node.address));
+        List<RemoteRoom> remote = new ArrayList<RemoteRoom>();
+        for(Node node: known){
+            remote.addAll(node.latest.rooms);
+        }
+        return remote;
+    }
+
+    //the nodes we know of that aren't lost, and us
+    public int numberOfNodes(){
+        int live = 1;
+        for(Node node: nodes.values()){
+            if(node.heartbeat >= 0 && !node.lost){
+                live++;
+            }
+        }
+        return live;
+    }
+}
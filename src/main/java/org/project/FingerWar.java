@@ -0,0 +1,143 @@
+package org.project;
+
+import java.util.Arrays;
+
+/*
+The game that every room has been created for since the beginning. Every player starts with 5 fingers and taps as fast as they
+can: "input 3" is 3 more taps.
+
+1) At the end of every round (one second), whoever tapped the most in that round takes a finger from whoever tapped the least,
+among the players that still have fingers. If either of them is a tie, nobody loses a finger.
+2) A player without fingers is out. The last one with fingers wins, or the one with the most when maxRounds are over. If
+that's a tie, nobody wins.
+3) Nobody can tap more than maxTapsPerRound times in a round, so a client that says it did only gets that many.
+
+Snapshot: "round 3 tick 12 fingers 5,4,5,3 taps 2,0,7,1", with " over winner 2" (or " over winner none") at the end.
+ */
+public class FingerWar implements Game {
+    static final int fingers = 5;
+    static final int maxRounds = 30;
+    static final int maxTapsPerRound = 15;
+
+    int[] fingersLeft;
+    int[] taps; //in this round
+    int ticksPerRound;
+    int tickOfRound = 0;
+    int round = 1;
+    int winner = -1;
+    boolean over = false;
+    StringBuilder snapshot = new StringBuilder();
+
+    public void start(int players, int ticksPerSecond){
+        fingersLeft = new int[players];
+        Arrays.fill(fingersLeft, fingers);
+        taps = new int[players];
+        ticksPerRound = Math.max(1, ticksPerSecond);
+    }
+
+    public void input(int player, String input){
+        if(over || fingersLeft[player] == 0){
+            return;
+        }
+        int tapped;
+        try{
+            tapped = Integer.parseInt(input.strip());
+        }catch(NumberFormatException e){
+            return; //not a number of taps
+        }
+        if(tapped > 0){
+            taps[player] = Math.min(maxTapsPerRound, taps[player] + tapped);
+        }
+    }
+
+    public void tick(){
+        if(over){
+            return;
+        }
+        if(++tickOfRound == ticksPerRound){
+            endRound();
+        }
+    }
+
+    private void endRound(){
+        int most = -1;
+        int least = -1;
+        boolean mostIsTied = false;
+        boolean leastIsTied = false;
+        for(int player = 0; player < taps.length; player++){
+            if(fingersLeft[player] == 0){
+                continue;
+            }
+            if(most < 0 || taps[player] > taps[most]){
+                most = player;
+                mostIsTied = false;
+            }else if(taps[player] == taps[most]){
+                mostIsTied = true;
+            }
+            if(least < 0 || taps[player] < taps[least]){
+                least = player;
+                leastIsTied = false;
+            }else if(taps[player] == taps[least]){
+                leastIsTied = true;
+            }
+        }
+        if(most != least && !mostIsTied && !leastIsTied){
+            fingersLeft[least]--;
+        }
+        Arrays.fill(taps, 0);
+        tickOfRound = 0;
+
+        int playersLeft = 0;
+        for(int player = 0; player < fingersLeft.length; player++){
+            if(fingersLeft[player] > 0){
+                playersLeft++;
+                winner = player;
+            }
+        }
+        if(playersLeft > 1 && round < maxRounds){
+            round++;
+            return;
+        }
+        over = true;
+        if(playersLeft > 1){
+            //out of rounds: the one with the most fingers, if there's only one
+            winner = 0;
+            for(int player = 1; player < fingersLeft.length; player++){
+                if(fingersLeft[player] > fingersLeft[winner]){
+                    winner = player;
+                }
+            }
+            for(int player = 0; player < fingersLeft.length; player++){
+                if(player != winner && fingersLeft[player] == fingersLeft[winner]){
+                    winner = -1;
+                    break;
+                }
+            }
+        }
+    }
+
+    public String snapshot(){
+        snapshot.setLength(0);
+        snapshot.append("round ").append(round).append(" tick ").append(tickOfRound).append(" fingers ");
+        join(fingersLeft);
+        snapshot.append(" taps ");
+        join(taps);
+        if(over){
+            snapshot.append(" over winner ").append(winner < 0 ? "none" : String.valueOf(winner));
+        }
+        return snapshot.toString();
+    }
+
+    private void join(int[] values){
+        for(int i = 0; i < values.length; i++){
+            if(i > 0){
+                snapshot.append(',');
+            }
+            snapshot.append(values[i]);
+        }
+    }
+
+    public boolean isOver(){
+        return over;
+    }
+}
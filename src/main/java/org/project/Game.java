@@ -0,0 +1,28 @@
+package org.project;
+
+/*
+A game that the TickEngine plays with the players of a full Room, one tick at a time. All of it is called from the engine's one
+thread, so a Game doesn't have to be thread-safe, but it mustn't block either: hundreds of them share that thread.
+
+1) start() once, with how many players there are and how many ticks there are in a second.
+2) input() with what a player sent ("input 3" is input(player, "3")), as it comes in. It's always between two ticks, so a tick
+sees everything that came in since the one before it. Players are numbered from 0, in the order they joined the room.
+3) tick() moves the game one tick forward, and snapshot() is then sent to every player. A snapshot is the whole state of the
+game, not what changed, so a player that lost a few of them is up to date again with the next one it gets.
+4) Once isOver(), the last snapshot says who won, and the game isn't ticked anymore.
+ */
+public interface Game {
+    void start(int players, int ticksPerSecond);
+    void input(int player, String input);
+    void tick();
+    String snapshot();
+    boolean isOver();
+
+    //A new game of the kind a room was created for. null if there's no game with that name.
+    static Game create(String name){
+        if(name.equals("finger war")){
+            return new FingerWar();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,87 @@
+package org.project;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/*
+One game being played: the Game itself, and the players the TickEngine took over from a full Room. Only the engine's thread
+touches it once it has started.
+
+Every player is where its RoomClientHandler last heard from it, with the session token and protocol it had in the room. A binary
+player's inputs only count if they carry its token, and a sequence number after the last one it sent, so an input that was
+sent twice (or that got here after a later one) doesn't count twice. Nobody's inputs count more than maxInputsPerTick times a
+tick, however many it sends.
+ */
+public class GameSession {
+    static final int maxInputsPerTick = 4;
+
+    //a player of the game, where it's sent the snapshots from
+    public static class Player {
+        GameSession session;
+        int index;
+        InetSocketAddress address;
+        int sessionId;
+        boolean binary;
+        boolean sentInput = false;
+        int lastInputSequence;
+        int inputsThisTick = 0;
+
+        Player(GameSession session, int index, RoomClientHandler client){
+            this.session = session;
+            this.index = index;
+            this.address = client.clientSocketAddress;
+            this.sessionId = client.sessionId;
+            this.binary = client.binary;
+        }
+    }
+
+    String roomName;
+    String gameName;
+    Game game;
+    Player[] players;
+    int tick = 0; //the sequence number of its snapshots
+    int finalSnapshots = 0; //how many times the last snapshot was sent, once the game is over
+    long nextTickAt;
+
+    public GameSession(Room room, Game game, List<RoomClientHandler> clients, int ticksPerSecond){
+        this.roomName = room.serverName;
+        this.gameName = room.serverGame;
+        this.game = game;
+        this.players = new Player[clients.size()];
+        for(int i = 0; i < players.length; i++){
+            players[i] = new Player(this, i, clients.get(i));
+        }
+        game.start(players.length, ticksPerSecond);
+    }
+
+    //An "input" from one of the players, in between two ticks.
+    void input(Player player, Message input){
+        if(input.binary){
+            if(input.sessionId != player.sessionId){
+                return; //from its address, but not from its session
+            }
+            if(player.sentInput && input.sequence - player.lastInputSequence <= 0){
+                return; //a copy of an input we had already, or an older one
+            }
+            player.sentInput = true;
+            player.lastInputSequence = input.sequence;
+        }
+        if(player.inputsThisTick++ >= maxInputsPerTick){
+            return;
+        }
+        game.input(player.index, input.getText());
+    }
+
+    //Move the game one tick forward, if it isn't over. The ticks are still counted after that, they number the snapshots.
+    //Returns false once the game is over.
+    boolean tick(){
+        for(Player player: players){
+            player.inputsThisTick = 0;
+        }
+        tick++;
+        if(!game.isOver()){
+            game.tick();
+        }
+        return !game.isOver();
+    }
+}
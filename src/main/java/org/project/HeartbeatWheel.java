@@ -0,0 +1,158 @@
+package org.project;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+The HeartbeatWheel decides when every waiting client should be pinged next, and when it has missed too many pings. It replaces
+the loop in RoomClientHandler.run(), which kept a thread asleep for every client between two pings.
+
+It's a hashed timing wheel: a ring of buckets where each bucket holds the timeouts that are due in that "tick" of the wheel.
+
+1) Scheduling a timeout puts it in the bucket (now + delay) / tickDuration, modulo the number of buckets. If the delay is longer
+than a whole turn of the wheel, the timeout also remembers how many more turns it has to wait. Scheduling and cancelling cost the
+same no matter how many timeouts there are.
+
+2) A single ticker thread wakes up once per tick and only looks at the one bucket for that tick. The timeouts that are due are
+handed to a handful of worker threads, so a slow ping doesn't make the wheel late for the next tick.
+
+3) Cancelled timeouts stay in their bucket and are thrown away the next time the ticker passes over it.
+ */
+public class HeartbeatWheel implements Runnable {
+    //a task waiting in the wheel
+    public static class Timeout {
+        Runnable task;
+        long dueTick; //counted from when the wheel started
+        long remainingRounds; //how many more turns of the wheel before it's due
+        volatile boolean cancelled = false;
+        Timeout next; //the other timeouts in the same bucket. Only the ticker thread touches this.
+
+        Timeout(Runnable task){
+            this.task = task;
+        }
+
+        public void cancel(){
+            cancelled = true;
+        }
+    }
+
+    long tickDurationInNanos;
+    Timeout[] buckets;
+    int mask;
+    long tick = 0;
+    long startTime;
+    volatile boolean running = true;
+
+    //new timeouts are added from any thread, the ticker thread moves them into their buckets.
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    ExecutorService workers;
+    Thread ticker;
+
+    //the number of buckets is rounded up to a power of 2 so that finding a bucket is a mask instead of a division
+    public HeartbeatWheel(long tickDuration, TimeUnit unit, int numberOfBuckets, int numberOfWorkers){
+        this.tickDurationInNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(numberOfBuckets, 2) - 1) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.workers = Executors.newFixedThreadPool(numberOfWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //100ms ticks and 512 buckets: one turn of the wheel is about 51 seconds, longer than any heartbeat we use.
+    public HeartbeatWheel(){
+        this(100, TimeUnit.MILLISECONDS, 512, 2);
+    }
+
+    public void start(){
+        ticker = new Thread(this, "heartbeat-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    //Run the task once, after the delay (rounded up to the next tick).
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        Timeout timeout = new Timeout(task);
+        long delayInNanos = unit.toNanos(delay);
+        //It's put in its bucket by the ticker thread.
+        long elapsed = System.nanoTime() - startTime;
+        timeout.dueTick = (elapsed + delayInNanos + tickDurationInNanos - 1) / tickDurationInNanos;
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void run(){
+        while(running){
+            long deadline = startTime + (tick + 1) * tickDurationInNanos;
+            long sleepInNanos = deadline - System.nanoTime();
+            if(sleepInNanos > 0){
+                try{
+                    Thread.sleep(sleepInNanos / 1000000, (int) (sleepInNanos % 1000000));
+                }catch(InterruptedException e){
+                    break; //stop() was called
+                }
+            }
+            advance();
+        }
+    }
+
+    //One tick of the wheel: run what's due in its bucket. Only the ticker thread calls it (and tests, on a wheel not started).
+    void advance(){
+        tick++;
+        addPendingTimeouts();
+        expireBucket(buckets[(int) (tick & mask)], (int) (tick & mask));
+    }
+
+    //Move the timeouts that were scheduled since the last tick into their buckets.
+    private void addPendingTimeouts(){
+        Timeout timeout;
+        while((timeout = pendingTimeouts.poll()) != null){
+            if(timeout.cancelled){
+                continue;
+            }
+            long dueTick = Math.max(timeout.dueTick, tick); //if it's already late, it's due now
+            int bucket = (int) (dueTick & mask);
+            timeout.remainingRounds = (dueTick - tick) / buckets.length;
+            timeout.next = buckets[bucket];
+            buckets[bucket] = timeout;
+        }
+    }
+
+    //Run every timeout in the bucket that's on its last round, and keep the others for the next turn of the wheel.
+    private void expireBucket(Timeout first, int bucket){
+        Timeout kept = null;
+        Timeout timeout = first;
+        while(timeout != null){
+            Timeout next = timeout.next;
+            if(timeout.cancelled){
+                //drop it
+            }else if(timeout.remainingRounds <= 0){
+                try{
+                    workers.execute(timeout.task);
+                }catch(RejectedExecutionException e){
+                    return; //the wheel was stopped
+                }
+            }else{
+                timeout.remainingRounds--;
+                timeout.next = kept;
+                kept = timeout;
+            }
+            timeout = next;
+        }
+        buckets[bucket] = kept;
+    }
+
+    public void stop(){
+        running = false;
+        if(ticker != null){
+            ticker.interrupt();
+        }
+        workers.shutdownNow();
+    }
+}
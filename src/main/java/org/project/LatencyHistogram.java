@@ -0,0 +1,97 @@
+package org.project;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+A histogram of latencies (or any other non-negative numbers) that any number of threads can record into without a lock, used by
+the ServerMetrics to show percentiles instead of only averages.
+
+It works like an HDR histogram: each power of 2 is split into 16 buckets of the same width, so every value is counted in a
+bucket that is at most about 6% wider than the value itself, from 0 up to Long.MAX_VALUE, in a fixed array of 1024 counters.
+Recording a value is finding its bucket with a few shifts and one atomic increment.
+ */
+public class LatencyHistogram {
+    static final int subBucketBits = 4;
+    static final int subBuckets = 1 << subBucketBits;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * subBuckets);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)){
+            //someone else raised it at the same time, try again
+        }
+    }
+
+    //values under 16 have a bucket each, the others share their power of 2 with 15 other buckets
+    static int indexOf(long value){
+        if(value < subBuckets){
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        int subBucket = (int) (value >>> shift) & (subBuckets - 1);
+        return (shift + 1) * subBuckets + subBucket;
+    }
+
+    //the smallest value that's counted in the bucket
+    static long lowestValueAt(int index){
+        int bucket = index >>> subBucketBits;
+        int subBucket = index & (subBuckets - 1);
+        if(bucket == 0){
+            return subBucket;
+        }
+        return (long) (subBuckets + subBucket) << (bucket - 1);
+    }
+
+    //The value that 'percentile' percent of the recorded values are at or under, to the precision of its bucket (the highest value
+    //of the bucket, but never more than the highest value recorded). 0 if nothing was recorded.
+    public long percentile(double percentile){
+        long total = 0;
+        for(int i = 0; i < counts.length(); i++){
+            total += counts.get(i);
+        }
+        if(total == 0){
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++){
+            seen += counts.get(i);
+            if(seen >= target){
+                long highest = i + 1 < counts.length() ? lowestValueAt(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(highest, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long count(){
+        return count.sum();
+    }
+
+    public long mean(){
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    public long max(){
+        return max.get();
+    }
+
+    //"n 120, mean 35, p50 31, p99 80, p99.9 112, max 117"
+    public String summary(){
+        return "n " + count() + ", mean " + mean() + ", p50 " + percentile(50) + ", p99 " + percentile(99)
+                + ", p99.9 " + percentile(99.9) + ", max " + max();
+    }
+}
@@ -0,0 +1,111 @@
+package org.project;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+The lobby of the RoomServer answers every request on its own ("list", "connect Room 1"), so it doesn't have to wait for any
+client in particular. Older clients still connect in two steps though: first "connect", then the name of the room in a second
+packet. The LobbySessions table remembers which clients are in the middle of that, keyed by the address and port they send from,
+so that the lobby can keep serving everyone else in between.
+
+A session that isn't finished in time is forgotten, the same as the lobby used to give up on a client after its socket timed out.
+A bare "connect" costs the lobby an entry, and sending one from another port (or a spoofed address) is cheap, so:
+
+1) Every sweepEvery calls to start() go through the whole table and forget what's too old, however busy the lobby is. The
+lobby also does it whenever its socket has been quiet for a while.
+2) The table holds at most maxSessions. Once it's full, a new session is refused until a sweep makes room: the client's
+"connect" is dropped, the same as if the packet had been lost, and it can send "connect <room>" in one packet instead.
+ */
+public class LobbySessions {
+    //what a client is in the middle of doing with the lobby
+    public static class LobbySession {
+        InetSocketAddress clientAddress;
+        Opcode awaiting; //the request that is waiting for its second packet
+        long startedAt;
+
+        LobbySession(InetSocketAddress clientAddress, Opcode awaiting, long startedAt){
+            this.clientAddress = clientAddress;
+            this.awaiting = awaiting;
+            this.startedAt = startedAt;
+        }
+    }
+
+    static final int defaultMaxSessions = 4096;
+    static final int sweepEvery = 256;
+
+    ConcurrentHashMap<InetSocketAddress, LobbySession> sessions = new ConcurrentHashMap<InetSocketAddress, LobbySession>();
+    long sessionTimeoutInMS;
+    int maxSessions;
+    AtomicLong starts = new AtomicLong(); //calls to start(), refused or not, to know when to sweep
+
+    public LobbySessions(long sessionTimeoutInMS){
+        this(sessionTimeoutInMS, defaultMaxSessions);
+    }
+
+    public LobbySessions(long sessionTimeoutInMS, int maxSessions){
+        this.sessionTimeoutInMS = sessionTimeoutInMS;
+        this.maxSessions = maxSessions;
+    }
+
+    //Remember that the client is in the middle of a request. false if the table is full and it wasn't remembered.
+    public boolean start(InetSocketAddress clientAddress, Opcode awaiting){
+        return start(clientAddress, awaiting, System.currentTimeMillis());
+    }
+
+    boolean start(InetSocketAddress clientAddress, Opcode awaiting, long now){
+        if(starts.incrementAndGet() % sweepEvery == 0){
+            expire(now);
+        }
+        LobbySession session = new LobbySession(clientAddress, awaiting, now);
+        if(sessions.size() >= maxSessions){
+            //full: only a client that already has a session can start again (the size is only a hint between threads,
+            //so a few more than maxSessions can get in at the same time, never many more)
+            return sessions.replace(clientAddress, session) != null;
+        }
+        sessions.put(clientAddress, session);
+        return true;
+    }
+
+    //the client's unfinished session, or null if there isn't one (or it's too old)
+    public LobbySession find(InetSocketAddress clientAddress){
+        LobbySession session = sessions.get(clientAddress);
+        if(session != null && isExpired(session, System.currentTimeMillis())){
+            sessions.remove(clientAddress, session);
+            return null;
+        }
+        return session;
+    }
+
+    public void finish(InetSocketAddress clientAddress){
+        sessions.remove(clientAddress);
+    }
+
+    //forget every session that has been waiting for too long. Returns how many were forgotten.
+    public int expire(){
+        return expire(System.currentTimeMillis());
+    }
+
+    int expire(long now){
+        int expired = 0;
+        Iterator<Map.Entry<InetSocketAddress, LobbySession>> entries = sessions.entrySet().iterator();
+        while(entries.hasNext()){
+            if(isExpired(entries.next().getValue(), now)){
+                entries.remove();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    public int size(){
+        return sessions.size();
+    }
+
+    private boolean isExpired(LobbySession session, long now){
+        return now - session.startedAt > sessionTimeoutInMS;
+    }
+}
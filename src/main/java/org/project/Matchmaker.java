@@ -0,0 +1,140 @@
+package org.project;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+The Matchmaker answers "quick join <game>": instead of reading the list of rooms and picking one, the client lets the lobby
+put it in the best room for that game.
+
+1) The best room is the one that is closest to full, so that rooms fill up (and their games start) one after the other instead
+of all of them being half empty at the same time.
+
+2) A seat is promised in the room before its port is sent back (Room.promiseSeat()), so that clients who quick join at the same
+time are spread over the rooms instead of all being sent to the one room that only has one seat left. Promising a seat is a
+compare-and-set on the room, nothing is locked.
+
+3) If no room of the game has a seat left, a new one is created, with as many players as the first room of that game that was
+seen. Only creating a room is done one game at a time, so that a burst of quick joins opens one new room and not one each.
+
+4) A room costs a port and a thread (and a socket or a channel), and a quick join is a small packet, so the rooms the Matchmaker
+opens are limited: at most maxEmptyRooms of a game can be open with nobody in them yet. Past that, the quick join is answered
+with an error instead of a room, and the client can try again later.
+5) A room it opened whose promises lapsed without anyone taking a seat is closed again, by a sweep every sweepIntervalInMS.
+Only those rooms: the ones from the console, the templates or "admin create" stay open until they're closed on purpose.
+ */
+public class Matchmaker {
+    static final int defaultNumberOfPlayers = 2;
+    static final int maxEmptyRooms = 16; //of each game, that the Matchmaker opened and nobody has joined yet
+    static final long sweepIntervalInMS = 1000;
+
+    RoomServer roomServer;
+    RoomRegistry rooms;
+    //how many players a new room of the game gets
+    ConcurrentHashMap<String, Integer> playersByGame = new ConcurrentHashMap<String, Integer>();
+    //the lock that's held while a room of the game is being created
+    ConcurrentHashMap<String, Object> openingRooms = new ConcurrentHashMap<String, Object>();
+    //the rooms the Matchmaker opened that haven't started (or been closed) yet, by game
+    ConcurrentHashMap<String, Set<Room>> openedRooms = new ConcurrentHashMap<String, Set<Room>>();
+    private ScheduledExecutorService sweeper; //started with the first room it opens
+
+    public Matchmaker(RoomServer roomServer, RoomRegistry rooms){
+        this.roomServer = roomServer;
+        this.rooms = rooms;
+    }
+
+    //The room the client should join, with a seat already promised to it. Creates a room if it has to. null if it would have to
+    //create one, but too many of the rooms it opened for that game are still empty.
+    public Room quickJoin(String game) throws IOException {
+        Room best = promiseBestSeat(game);
+        if(best != null){
+            return best;
+        }
+        synchronized(openingRooms.computeIfAbsent(game, g -> new Object())){
+            //someone else may have opened a room while we were waiting
+            best = promiseBestSeat(game);
+            if(best != null){
+                return best;
+            }
+            Set<Room> opened = openedRooms.computeIfAbsent(game, g -> ConcurrentHashMap.newKeySet());
+            if(closeAbandoned(opened) >= maxEmptyRooms){
+                return null;
+            }
+            Room newRoom = roomServer.createRoom(game, playersByGame.getOrDefault(game, defaultNumberOfPlayers));
+            newRoom.promiseSeat();
+            opened.add(newRoom);
+            startSweeping();
+            return newRoom;
+        }
+    }
+
+    //Close the rooms that nobody came to, and forget the ones that started or were closed. Returns how many are still empty.
+    private int closeAbandoned(Set<Room> opened){
+        int empty = 0;
+        for(Room room: opened){
+            if(room.closed || room.satisfied){
+                opened.remove(room);
+            }else if(room.isAbandoned()){
+                EventLog.console.info(room.serverName, "nobody came for a quick join, closing");
+                room.close();
+                opened.remove(room);
+            }else if(room.numberOfClients() == 0){
+                empty++; //its seats are still promised
+            }
+        }
+        return empty;
+    }
+
+    private synchronized void startSweeping(){
+        if(sweeper != null){
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "matchmaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            for(Set<Room> opened: openedRooms.values()){
+                closeAbandoned(opened);
+            }
+        }, sweepIntervalInMS, sweepIntervalInMS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop(){
+        if(sweeper != null){
+            sweeper.shutdownNow();
+        }
+    }
+
+    //Promise a seat in the fullest room of the game that has one left. null if none of them do.
+    private Room promiseBestSeat(String game){
+        while(true){
+            Room best = null;
+            int fewestFreeSeats = Integer.MAX_VALUE;
+            Room seen = null;
+            for(Room room: rooms.findByGame(game)){
+                seen = room;
+                int freeSeats = room.freeSeats();
+                if(freeSeats > 0 && freeSeats < fewestFreeSeats){
+                    best = room;
+                    fewestFreeSeats = freeSeats;
+                }
+            }
+            if(seen != null && playersByGame.get(game) == null){
+                playersByGame.put(game, seen.maxClientThreads);
+            }
+            if(best == null){
+                return null;
+            }
+            if(best.promiseSeat()){
+                return best;
+            }
+            //the last seat was just taken by someone else, look again
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.project;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+One message of the protocol, decoded. A Message is meant to be reused: whoever receives or sends packets keeps one around and
+MessageCodec decodes into it or encodes from it, so sending and receiving pings doesn't create any objects.
+
+The payload is kept between position 0 and its limit. A PORT message always has its port as a 4-byte int in the payload,
+even if it was received as digits in the text protocol.
+ */
+public class Message {
+    Opcode opcode = Opcode.TEXT;
+    int sessionId;
+    int sequence;
+    boolean binary; //was it received in (or should it be sent with) the binary protocol instead of the text protocol?
+    ByteBuffer payload;
+
+    public Message(){
+        this(MessageCodec.maxDatagramSize);
+    }
+
+    //Messages that are only ever pings and the like don't need room for a whole datagram.
+    public Message(int payloadCapacity){
+        payload = ByteBuffer.allocate(payloadCapacity);
+        payload.limit(0);
+    }
+
+    //Start a new message with an empty payload. The session id, sequence number and format are kept.
+    public Message set(Opcode opcode){
+        this.opcode = opcode;
+        payload.clear();
+        payload.limit(0);
+        return this;
+    }
+
+    //Make this message a reply to another one: same session, same sequence number and same format.
+    public Message replyTo(Message request, Opcode opcode){
+        this.sessionId = request.sessionId;
+        this.sequence = request.sequence;
+        this.binary = request.binary;
+        return set(opcode);
+    }
+
+    public Message putInt(int value){
+        payload.limit(payload.capacity());
+        payload.putInt(value);
+        payload.flip();
+        return this;
+    }
+
+    public int getInt(){
+        return payload.limit() >= 4 ? payload.getInt(0) : 0;
+    }
+
+    //Anything that doesn't fit in one datagram is cut off.
+    public Message putText(String text){
+        return putBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //Bytes that are already encoded, like the pages of the RoomListing. Cut off the same way as putText().
+    public Message putBytes(byte[] bytes){
+        int length = Math.min(bytes.length, Math.min(payload.capacity(), MessageCodec.maxDatagramSize - MessageCodec.headerLength));
+        payload.clear();
+        payload.put(bytes, 0, length);
+        payload.flip();
+        return this;
+    }
+
+    public String getText(){
+        return new String(payload.array(), 0, payload.limit(), StandardCharsets.UTF_8);
+    }
+
+    public boolean is(Opcode opcode){
+        return this.opcode == opcode;
+    }
+
+    //What the message looks like in the text protocol, for printing.
+    public String toString(){
+        if(opcode.text != null){
+            return payload.limit() > 0 ? new String(opcode.text) + " " + getText() : new String(opcode.text);
+        }
+        if(opcode == Opcode.PORT){
+            return String.valueOf(getInt());
+        }
+        return getText();
+    }
+}
@@ -0,0 +1,171 @@
+package org.project;
+
+import java.nio.ByteBuffer;
+
+/*
+The MessageCodec turns Messages into bytes and bytes into Messages, for both versions of the protocol. It used to be that
+every class had its own copy of sendString() and receiveString(), which created a new String and a new DatagramPacket for every
+packet. Now every packet goes through here, into and out of ByteBuffers that the caller keeps and reuses.
+
+1) The binary protocol starts every packet with a fixed 10-byte header, followed by the payload:
+    version (1 byte) | opcode (1 byte) | session id (4 bytes) | sequence number (4 bytes) | payload...
+
+2) The text protocol is the original one: the packet is just the text of the message ("list", "ping", "38957", ...). A command
+can have an argument after a space ("connect Room 1"). It doesn't have a session id or a sequence number. It's kept so that older
+clients can still connect.
+
+3) The two can be told apart by the first byte: text messages always start with a printable character, and the version of the
+binary protocol is a small number that never is. Whoever replies to a message uses the same format it was received in.
+ */
+public final class MessageCodec {
+    public static final byte version = 1;
+    public static final int headerLength = 10;
+    public static final int maxDatagramSize = 1024;
+
+    private static final byte[] roomsPrefix = "Available rooms:".getBytes();
+
+    private MessageCodec(){}
+
+    //Decode the bytes between the buffer's position and its limit into 'out'. Returns false if the packet isn't a message
+    //of a protocol we understand, in which case it should just be dropped.
+    public static boolean decode(ByteBuffer in, Message out){
+        int start = in.position();
+        int length = in.remaining();
+        if(length == 0){
+            return false;
+        }
+
+        byte first = in.get(start);
+        if(first < 0x20 && first >= 0){ //not printable: binary protocol
+            if(first != version || length < headerLength){
+                return false;
+            }
+            Opcode opcode = Opcode.fromCode(in.get(start + 1));
+            if(opcode == null){
+                return false;
+            }
+            out.binary = true;
+            out.set(opcode);
+            out.sessionId = in.getInt(start + 2);
+            out.sequence = in.getInt(start + 6);
+            copyPayload(in, start + headerLength, length - headerLength, out);
+            return true;
+        }
+
+        //text protocol
+        out.binary = false;
+        out.sessionId = 0;
+        out.sequence = 0;
+        Opcode opcode = Opcode.fromText(in, start, length);
+        int space = indexOf(in, start, length, (byte) ' ');
+        if(opcode != null){
+            out.set(opcode);
+        }else if(space > start && (opcode = Opcode.fromText(in, start, space - start)) != null){
+            //a command with an argument, like "connect Room 1"
+            out.set(opcode);
+            copyPayload(in, space + 1, length - (space + 1 - start), out);
+        }else if(space > start && (space = indexOf(in, space + 1, length - (space + 1 - start), (byte) ' ')) > start
+                && (opcode = Opcode.fromText(in, start, space - start)) != null){
+            //a command of two words with an argument, like "quick join finger war"
+            out.set(opcode);
+            copyPayload(in, space + 1, length - (space + 1 - start), out);
+        }else if(isNumber(in, start, length)){
+            out.set(Opcode.PORT).putInt(parseInt(in, start, length));
+        }else{
+            out.set(startsWith(in, start, length, roomsPrefix) ? Opcode.ROOMS : Opcode.TEXT);
+            copyPayload(in, start, length, out);
+        }
+        return true;
+    }
+
+    //Clear 'out', write the message into it in the message's own format and flip it so that it's ready to be sent.
+    public static void encode(Message msg, ByteBuffer out){
+        out.clear();
+        ByteBuffer payload = msg.payload;
+        if(msg.binary){
+            out.put(version);
+            out.put(msg.opcode.code);
+            out.putInt(msg.sessionId);
+            out.putInt(msg.sequence);
+            out.put(payload.array(), 0, Math.min(payload.limit(), out.remaining()));
+        }else if(msg.opcode.text != null){
+            out.put(msg.opcode.text);
+            if(payload.limit() > 0){ //the argument of the command goes after a space
+                out.put((byte) ' ');
+                out.put(payload.array(), 0, Math.min(payload.limit(), out.remaining()));
+            }
+        }else if(msg.opcode == Opcode.PORT){
+            putDigits(out, msg.getInt());
+        }else{
+            out.put(payload.array(), 0, Math.min(payload.limit(), out.remaining()));
+        }
+        out.flip();
+    }
+
+    private static void copyPayload(ByteBuffer in, int start, int length, Message out){
+        ByteBuffer payload = out.payload;
+        payload.clear();
+        for(int i = 0; i < length && payload.hasRemaining(); i++){
+            payload.put(in.get(start + i));
+        }
+        payload.flip();
+    }
+
+    private static int indexOf(ByteBuffer in, int start, int length, byte b){
+        for(int i = start; i < start + length; i++){
+            if(in.get(i) == b){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNumber(ByteBuffer in, int start, int length){
+        if(length > 10){ //doesn't fit in an int
+            return false;
+        }
+        for(int i = 0; i < length; i++){
+            byte b = in.get(start + i);
+            if(b < '0' || b > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(ByteBuffer in, int start, int length){
+        long value = 0;
+        for(int i = 0; i < length; i++){
+            value = value * 10 + (in.get(start + i) - '0');
+        }
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    private static boolean startsWith(ByteBuffer in, int start, int length, byte[] prefix){
+        if(length < prefix.length){
+            return false;
+        }
+        for(int i = 0; i < prefix.length; i++){
+            if(in.get(start + i) != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //write a number as text without going through a String
+    private static void putDigits(ByteBuffer out, int value){
+        if(value < 0){
+            out.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while(value / divisor >= 10){
+            divisor *= 10;
+        }
+        while(divisor > 0){
+            out.put((byte) ('0' + (value / divisor) % 10));
+            divisor /= 10;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/*
+A blocking DatagramSocket that sends and receives Messages through the MessageCodec. It's what Client, Room, RoomServer and
+RoomClientHandler use instead of each having their own sendString() and receiveString().
+
+The packets, their byte arrays and the Message that's received into are all created once and reused for every packet, so a
+MessageSocket is meant to be used by one thread at a time.
+ */
+public class MessageSocket {
+    DatagramSocket socket;
+
+    private final byte[] receiveBytes = new byte[MessageCodec.maxDatagramSize];
+    private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+    private final Message received = new Message();
+
+    private final byte[] sendBytes = new byte[MessageCodec.maxDatagramSize];
+    private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendBytes);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendBytes, sendBytes.length);
+
+    public MessageSocket(DatagramSocket socket){
+        this.socket = socket;
+    }
+
+    //Blocks until a message we understand arrives (or the socket times out). The returned Message is overwritten by the next call.
+    public Message receive() throws IOException {
+        do{
+            socket.receive(receivePacket);
+            receiveBuffer.clear();
+            receiveBuffer.limit(receivePacket.getLength());
+        }while(!MessageCodec.decode(receiveBuffer, received));
+        return received;
+    }
+
+    public void send(Message msg, InetAddress address, int port) throws IOException {
+        MessageCodec.encode(msg, sendBuffer);
+        sendPacket.setData(sendBytes, 0, sendBuffer.limit());
+        sendPacket.setAddress(address);
+        sendPacket.setPort(port);
+        socket.send(sendPacket);
+    }
+
+    //the address and port of whoever sent the last message that receive() returned
+    public InetAddress senderAddress(){
+        return receivePacket.getAddress();
+    }
+
+    public int senderPort(){
+        return receivePacket.getPort();
+    }
+
+    public void setSoTimeout(int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+    }
+
+    public int getLocalPort(){
+        return socket.getLocalPort();
+    }
+
+    public void close(){
+        socket.close();
+    }
+}
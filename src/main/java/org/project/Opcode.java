@@ -0,0 +1,71 @@
+package org.project;
+
+import java.nio.ByteBuffer;
+
+/*
+Every kind of message that is sent between a Client and the RoomServer, its Rooms and their RoomClientHandlers.
+
+Each Opcode has the one-byte code used by the binary protocol. The ones that used to be sent as plain strings ("list", "connect",
+"ping", "gotPing", "done", "-1") also keep that string, so that MessageCodec can still read and write the old text protocol.
+ */
+public enum Opcode {
+    TEXT(0, null), //anything else: a room name, an error message...
+    LIST(1, "list"),
+    CONNECT(2, "connect"),
+    PING(3, "ping"),
+    GOT_PING(4, "gotPing"),
+    DONE(5, "done"),
+    DISCONNECT(6, "-1"),
+    PORT(7, null), //the reply to a connect: the port the client should talk to next. Sent as digits in the text protocol.
+    ROOMS(8, null), //the reply to a list
+    ADMIN(9, "admin"), //"admin create 4 finger war", "admin close Room 2". Only taken from the server's own machine.
+    QUICK_JOIN(10, "quick join"), //"quick join finger war": the lobby picks the room. Answered with a PORT, like a connect.
+    UNCHANGED(11, "unchanged"), //"unchanged 12": the reply to "list since 12" when the rooms are still at version 12
+    DONE_ACK(12, "gotDone"), //the client got "done". The room sends "done" again until it does.
+    STATS(13, "stats"), //"stats", or "stats Room 2" for its clients. Only taken from the server's own machine.
+    GOSSIP(14, "gossip"), //the rooms of a node of the Federation, from one of its peers
+    REDIRECT(15, "redirect"), //"redirect 127.0.0.1:39950 Room 2": the reply to a connect to a room of another node
+    RESUME(16, "resume"), //a client that now sends from another address or port, found by its session token. Answered with a PORT.
+    COOKIE(17, "cookie"), //"cookie 3f2a...": a room's answer to a connect without one. The client connects again with it.
+    GAME(18, "game"), //"game 2 4 20 finger war": from the TickEngine, which player of how many the client is, and the ticks per second
+    INPUT(19, "input"), //"input 3": what a player did since the last snapshot, sent to where the snapshots come from
+    STATE(20, "state"); //"state round 3 tick 12 ...": the snapshot of a game after a tick. Its sequence number is the tick.
+
+    final byte code;
+    final byte[] text; //null if the message has no fixed text
+
+    private static final Opcode[] byCode = new Opcode[256];
+    private static final Opcode[] withText = {LIST, CONNECT, PING, GOT_PING, DONE, DISCONNECT, ADMIN, QUICK_JOIN, UNCHANGED, DONE_ACK, STATS, GOSSIP, REDIRECT, RESUME, COOKIE, GAME, INPUT, STATE};
+    static {
+        for(Opcode opcode: values()){
+            byCode[opcode.code & 0xFF] = opcode;
+        }
+    }
+
+    Opcode(int code, String text){
+        this.code = (byte) code;
+        this.text = text == null ? null : text.getBytes();
+    }
+
+    //null if the code isn't known, which means the packet wasn't sent by this version of the protocol
+    public static Opcode fromCode(byte code){
+        return byCode[code & 0xFF];
+    }
+
+    //the Opcode whose text is exactly the 'length' bytes at 'start', or null. Doesn't allocate.
+    public static Opcode fromText(ByteBuffer buffer, int start, int length){
+        for(Opcode opcode: withText){
+            if(opcode.text.length != length){
+                continue;
+            }
+            boolean same = true;
+            for(int i = 0; i < length && same; i++){
+                same = buffer.get(start + i) == opcode.text[i];
+            }
+            if(same){
+                return opcode;
+            }
+        }
+        return null;
+    }
+}
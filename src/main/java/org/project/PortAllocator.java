@@ -0,0 +1,158 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Hands out the UDP ports of the rooms, and of the RoomClientHandlers of the one-socket-per-client mode. Rooms used to be given
+a range of ports after the last room's, one for the room and one for each of its players, and never gave them back: a server
+that kept creating and closing rooms ran out of ports, and one port of the range taken by another program was enough to stop
+a room from taking anyone in.
+
+1) The ports between first and last are an AtomicBitSet, one bit for each. A port is taken with a compare-and-set of its bit
+and given back by clearing it, so rooms and their clients never wait on each other for a port, and a room that closes gives
+its ports back for the next ones.
+2) Looking for a free port starts in the 64 ports where the last one was found, so taking one is a word read and a
+compare-and-set, not a scan of the range from its start.
+3) openSocket() and openChannel() also bind the port. If another program has it, it's kept as taken (so that it isn't tried
+again and again) and the next free one is tried, bindAttempts times. If binding it fails for any other reason, it's given back
+before the error goes to the caller.
+4) When the range is full, or there isn't one ("ports=0"), the operating system picks a free port. If that port is in the
+range, its bit is set too, so that it's never handed out twice and free() works the same for every port.
+ */
+public class PortAllocator {
+    static final int defaultRangeSize = 998; //from the lobby's port + 2 to + 999: lobbies 1000 ports apart don't share any
+    static final int bindAttempts = 8;
+
+    int first;
+    int last;
+    AtomicBitSet taken; //null if there isn't a range
+    AtomicInteger hint = new AtomicInteger(); //where the last free port was found, as an offset from first
+
+    LongAdder takenByOthers = new LongAdder(); //ports of the range that couldn't be bound, another program has them
+    LongAdder fromSystem = new LongAdder(); //ports the operating system picked, because the range was full (or there's none)
+
+    //The ports from first to last. An empty range (last < first) only uses the ports the operating system picks.
+    public PortAllocator(int first, int last){
+        this.first = first;
+        this.last = last;
+        this.taken = last < first ? null : new AtomicBitSet(last - first + 1);
+    }
+
+    //"40000-40999", or "0" for no range at all
+    public static PortAllocator parse(String range){
+        String[] ends = range.split("-");
+        if(ends.length != 2){
+            return new PortAllocator(0, -1);
+        }
+        return new PortAllocator(Integer.parseInt(ends[0].strip()), Integer.parseInt(ends[1].strip()));
+    }
+
+    //A free port of the range, taken for the caller, or 0 if they're all taken.
+    public int allocate(){
+        if(taken == null){
+            return 0;
+        }
+        int offset = taken.claimClear(hint.get());
+        if(offset < 0){
+            return 0;
+        }
+        hint.set(offset);
+        return first + offset;
+    }
+
+    //Take this port (a restored room's, or a restored client's). false if it's in the range and taken already.
+    public boolean claim(int port){
+        return !inRange(port) || taken.add(port - first);
+    }
+
+    //Give a port back, once its socket is closed.
+    public void free(int port){
+        if(inRange(port)){
+            taken.remove(port - first);
+        }
+    }
+
+    private boolean inRange(int port){
+        return taken != null && port >= first && port <= last;
+    }
+
+    //the operating system picked a port that happens to be in the range: nobody else is given it until it's freed
+    private void pickedBySystem(int port){
+        fromSystem.increment();
+        if(inRange(port)){
+            taken.add(port - first);
+        }
+    }
+
+    public DatagramSocket openSocket() throws IOException {
+        return openSocket(null);
+    }
+
+    //A socket bound to a port of the range on this address, or on every address if it's null.
+    public DatagramSocket openSocket(InetAddress address) throws IOException {
+        for(int attempt = 0; attempt < bindAttempts; attempt++){
+            int port = allocate();
+            if(port == 0){
+                break;
+            }
+            try{
+                return new DatagramSocket(new InetSocketAddress(address, port));
+            }catch(BindException e){
+                takenByOthers.increment(); //it stays taken
+            }catch(IOException | RuntimeException e){
+                free(port); //nobody has it, it just couldn't be bound here
+                throw e;
+            }
+        }
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(address, 0));
+        pickedBySystem(socket.getLocalPort());
+        return socket;
+    }
+
+    //The same as openSocket(), for the channel of a multiplexed room. It's still blocking.
+    public DatagramChannel openChannel() throws IOException {
+        return openChannel(null);
+    }
+
+    public DatagramChannel openChannel(InetAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try{
+            for(int attempt = 0; attempt < bindAttempts; attempt++){
+                int port = allocate();
+                if(port == 0){
+                    break;
+                }
+                try{
+                    return channel.bind(new InetSocketAddress(address, port));
+                }catch(BindException e){
+                    takenByOthers.increment();
+                }catch(IOException | RuntimeException e){
+                    free(port);
+                    throw e;
+                }
+            }
+            channel.bind(new InetSocketAddress(address, 0));
+            pickedBySystem(channel.socket().getLocalPort());
+            return channel;
+        }catch(IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    //how many ports of the range are taken, by us or by others
+    public int inUse(){
+        return taken == null ? 0 : taken.cardinality();
+    }
+
+    public int rangeSize(){
+        return taken == null ? 0 : taken.size();
+    }
+}
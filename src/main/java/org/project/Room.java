@@ -1,12 +1,20 @@
 package org.project;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /*
 The purpose of the Room object is to facilitate one of possibly many waiting rooms hosted by the RoomServer object. The Room object
@@ -20,26 +28,77 @@ was created in the RoomServer object.
 2) For each client that "connects" to or joins the waiting list, a RoomClientHandler object is created. This object implements Runnable, so that the
 machine will be able to do multithreading to handle multiple clients for a single room at the same time. A port is given to each RoomClientHandler object
 at the same time so that channels of communication between the client and the server are exclusive and easy to parse. However, it has the potential of consuming
-many UDP ports.
+many UDP ports. They come from the RoomServer's PortAllocator, and go back to it when the client leaves.
 
-3) When the maximum number of players is reached, the thread pool sends a signal to each RoomClientHandler object. The signal notifies eventually notifies
-each client from the server that the game is about to start. At this point, the server could upgrade to a TCP connection if necessary. This sort of connectionless
+3) When the maximum number of players is reached, the Room notifies every client that the game is about to start in one
+RoomBroadcast, and signals each RoomClientHandler object to stop pinging. At this point, the server could upgrade to a TCP connection if necessary. This sort of connectionless
 waiting room can be used to avoid certain DoS attacks that a TCP waiting room might be suspect to.
 
+4) In the "multiplexed" mode, the Room doesn't give each client its own port. Instead, the Room's DatagramChannel is registered
+with the RoomServer's RoomSelector and every client keeps talking to the Room's port. Packets are matched to their RoomClientHandler
+using the session token in their header, or the address they were sent from if they don't have one (the text protocol), so a
+waiting client is only an entry in clientsBySession and clientsByAddress.
+
+Every client is given a random session token when it joins, and is known by it rather than by its port: a client that
+comes back from another address or port with its token (a NAT that changed its mapping, a client that opened a new socket) is
+moved there by moveClient() and keeps its seat, instead of timing out and having to join again from the lobby.
+
+Nobody gets a seat on their first "connect". It's answered with a cookie made from the address it came from (see
+ConnectCookies), and only a "connect <cookie>" from that address takes a seat. Until then, the room keeps nothing, so a flood of
+connects from spoofed addresses costs it a hash each, and not a handler, a socket and a thread each. The text protocol asks for
+the cookie too, so a client from before the cookies, which takes the answer to its "connect" for its port, isn't seated anymore.
+
+5) A Room that was open when the server was stopped is opened again by the restarted server, from its RoomJournal, with the
+clients that were waiting in it (restoreClients()). They're pinged from the same ports as before, so they keep their seats.
+
+6) A Room can be closed before it's full (an "admin close" request to the RoomServer). Its clients are told that they were
+disconnected, the same as if they had stopped answering pings.
+
  */
 public class Room implements Runnable{
     RoomServer roomServer;
     DatagramSocket serverSocket;
     int maxClientThreads;
     int serverPort;
-    ArrayList<Integer> allPorts = new ArrayList<Integer>();
-    ArrayList<Integer> usedPorts = new ArrayList<Integer>();
-    ArrayList<Integer> connectedClientPorts = new ArrayList<Integer>();
+    int roomId; //given by the RoomRegistry, "Room <id>" unless the room was named otherwise
     String serverName;
     String serverGame;
     String serverIp;
-    ArrayList<RoomClientHandler> clients = new ArrayList<RoomClientHandler>();
+    InetAddress bindAddress; //what the sockets of its clients are bound to, null for every address
+    //Who is in the room, by session token, and how many. Only the occupancy decides whether the room is full, and it can only go
+    //up with a compare-and-set, so joins, leaves and reads never wait on each other.
+    ConcurrentHashMap<Integer, RoomClientHandler> clientsBySession = new ConcurrentHashMap<Integer, RoomClientHandler>();
+    Collection<RoomClientHandler> clients = clientsBySession.values();
+    AtomicInteger occupancy = new AtomicInteger(0);
+    //where each client sends from now, for the clients that don't send a token and to notice a connect that was sent twice
+    ConcurrentHashMap<SocketAddress, RoomClientHandler> clientsByAddress = new ConcurrentHashMap<SocketAddress, RoomClientHandler>();
+    //Seats the lobby's Matchmaker has promised to clients that haven't connected yet, so that a burst of quick joins doesn't send
+    //more clients to a room than it has seats. A promise is kept until the next client joins, or lapses after promiseTimeoutInMS.
+    AtomicInteger promisedSeats = new AtomicInteger(0);
+    volatile long lastPromiseAt;
+    static final long promiseTimeoutInMS = 10000;
+    volatile Thread roomThread; //parked in waitForFullRoom() until the occupancy reaches maxClientThreads
+    volatile boolean closed = false;
+
+    //only used in the multiplexed mode: one channel for every client, told apart by the address of the sender.
+    boolean multiplexed = false;
+    DatagramChannel serverChannel;
+    Message incoming = new Message();
+    Message reply = new Message();
+    ByteBuffer replyBuffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
 
+    //everything that's sent to all of the clients at once: the pings of the multiplexed mode, and "done"
+    RoomBroadcast broadcast = new RoomBroadcast(this);
+    HeartbeatWheel.Timeout heartbeatBurst; //the next pingAll() in the wheel
+    ArrayList<RoomClientHandler> dueForPing = new ArrayList<RoomClientHandler>(); //only used by pingAll()
+    volatile boolean satisfied = false;
+    long createdAt = System.nanoTime();
+    //how many clients still have to ack "done", and how long they have to do it
+    AtomicInteger awaitingStartAcks = new AtomicInteger(0);
+    static final long startDeadlineInMS = 8000;
+
+    //clients of the one-socket-per-client mode that were restored before the room started, their threads start with the room
+    ArrayList<RoomClientHandler> restoredClients = new ArrayList<RoomClientHandler>();
 
 
     //Each room handles a maximum number of threads. Each room should have its own service executor.
@@ -52,14 +111,21 @@ public class Room implements Runnable{
         this.maxClientThreads = maxThreads;
         this.serverPort = sPort;
     }
+
+    //A multiplexed room. The socket of the channel is kept as the serverSocket so that closing the room works the same way.
+    public Room(RoomServer roomServer, DatagramChannel sChannel, String sIp, String sGame, String sName, int maxThreads, int sPort){
+        this(roomServer, sChannel.socket(), sIp, sGame, sName, maxThreads, sPort);
+        this.serverChannel = sChannel;
+        this.multiplexed = true;
+    }
     /* Hosting a room
 
         The first thread listens for incoming packets. It will add new IPs to an arraylist of Clients
         that each have their own IP/port. Every time a client is added or removed,
-        check if the length of the Clients list is the number of max clients. If it is, then notify() the second thread.
+        check if the length of the Clients list is the number of max clients. If it is, then unpark() the second thread.
 
         The second thread will check if the number of clients is equal to the maximum number of Client threads.
-        It will wait at a wait() block using the condition mentioned.
+        It will wait at a park() using the condition mentioned.
 
         The third thread (set of threads): Create a new thread for each client. In this thread, ping the client every 5 seconds. If the client doesn't
         respond within 5 seconds, tell the client that they are no longer connected. Terminate this thread and remove
@@ -68,144 +134,510 @@ public class Room implements Runnable{
     */
     //How do I share data between parent threads and child threads? Pass 'this' object to the constructor of the child runnable.
     public void run(){
-        //add the current room to the room server's list of rooms
+        //the room server has already added the room to its registry
         initializeRoom();
-        ExecutorService clientThreads = Executors.newFixedThreadPool(maxClientThreads);
-
-        byte[] receiveBuffer = new byte[1024];
-        byte[] sendBuffer = new byte[0];
-        DatagramPacket dgPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        ExecutorService clientThreads = null;
 
-        waitForClients(dgPacket, receiveBuffer, sendBuffer, clientThreads);
-        System.out.println("=== "+serverName+": all players connected");
-        try {
-            Thread.sleep(8000); //Make sure that all clients have the time to receive the message
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        if(multiplexed){
+            //the selector thread will call onDatagram() for every packet sent to this room
+            roomServer.roomSelector.register(serverChannel, this::onDatagram);
+            startHeartbeats(roomServer.roomSelector.heartbeats);
+            waitForFullRoom();
+            heartbeatBurst.cancel();
+        }else{
+            clientThreads = roomServer.executionMode.newClientExecutor(maxClientThreads);
+            for(RoomClientHandler client: restoredClients){
+                clientThreads.submit(client);
+            }
+            restoredClients.clear();
+            waitForClients(new MessageSocket(serverSocket), clientThreads);
         }
+        if(closed){
+            EventLog.console.info(serverName, "closed before all players connected");
+            for(RoomClientHandler client: new ArrayList<RoomClientHandler>(clients)){
+                client.roomClosed();
+            }
+            if(clientThreads != null){
+                clientThreads.shutdown();
+            }
+            roomServer.removeRoom(this);
+            return;
+        }
+        EventLog.console.info(serverName, "all players connected");
+        startGame(); //the game itself is played by the TickEngine
 
-        startGame(); //TODO: implement game
-
-        clientThreads.shutdown();
+        if(clientThreads != null){
+            clientThreads.shutdown();
+        }
         roomServer.removeRoom(this);
     }
 
-    //clients.size() in the loop condition is called before clients is actually updated. Force the loop to wait until the client is added. We can synchronize the remove, add, and waitForClients functions
-    public synchronized void waitForClients(DatagramPacket dgPacket, byte[] receiveBuffer, byte[] sendBuffer, ExecutorService clientThreads){
-        String msgFromClient = "";
-        String msgToClient = "";
+    //The client is added to the room before its handler is started, so the occupancy in the loop condition is always up to date
+    //without having to wait for the handler. Nothing is locked while it waits for packets, so it can run on a virtual thread
+    //without pinning it.
+    public void waitForClients(MessageSocket roomSocket, ExecutorService clientThreads){
+        Message msgFromClient;
+        Message msgToClient = new Message();
 
         int clientPort;
         InetAddress clientAddress;
 
         try{
-            while(clients.size() < maxClientThreads){ //our threadpool isn't full
-                msgFromClient = receiveString(serverSocket, dgPacket, receiveBuffer);
-                clientPort = dgPacket.getPort();
-                clientAddress = dgPacket.getAddress();
+            while(numberOfClients() < maxClientThreads && !closed){ //our room isn't full
+                msgFromClient = roomSocket.receive();
+                clientPort = roomSocket.senderPort();
+                clientAddress = roomSocket.senderAddress();
 
-                if(msgFromClient.equals("connect")){
-                    if(!connectedClientPorts.contains(clientPort)){ //client is a new client if a connection isn't already made for their port
-                        int newSocketPort = getPort(); //we'll create a new socket on this process using an unused, available port.
-                        DatagramSocket socket = new DatagramSocket(newSocketPort);
+                InetSocketAddress sender = new InetSocketAddress(clientAddress, clientPort);
+                RoomClientHandler knownClient = findClient(msgFromClient, sender);
+                if(knownClient == null && !roomServer.admission.admit(clientAddress)){
+                    continue; //a stranger that sends too much
+                }
+                if(msgFromClient.is(Opcode.CONNECT)){
+                    if(knownClient == null){ //client is a new client if it isn't in the room already
+                        if(!hasCookie(msgFromClient, sender, msgToClient)){
+                            roomSocket.send(msgToClient, clientAddress, clientPort);
+                            continue;
+                        }
+                        DatagramSocket socket; //a new socket on this process, on a port of the server's range or one the system picks
+                        try{
+                            socket = roomServer.ports.openSocket(bindAddress);
+                        }catch(IOException e){
+                            EventLog.console.warn(serverName, "couldn't open a socket for a new client", e.getMessage());
+                            continue; //it connects again
+                        }
+                        int newSocketPort = socket.getLocalPort();
 
                         RoomClientHandler cClient = new RoomClientHandler(this, socket, clientAddress, newSocketPort, clientPort); //we add clientPort to track which client is associated with which server client.
+                        cClient.binary = msgFromClient.binary; //the handler talks to the client in the same protocol the client used
+                        if(!addClient(cClient)){
+                            socket.close();
+                            roomServer.ports.free(newSocketPort);
+                            continue;
+                        }
+                        //send the client the port of the serverClient that they will connect to for the game of the room it belongs to.
+                        //It's sent before the handler starts, so that its first ping can't get to the client before the port does.
+                        msgToClient.replyTo(msgFromClient, Opcode.PORT).putInt(newSocketPort);
+                        msgToClient.sessionId = cClient.sessionId;
+                        roomSocket.send(msgToClient, clientAddress, clientPort);
                         clientThreads.submit(cClient);
-
-                        msgToClient = String.valueOf(newSocketPort); //send the client the port of the serverClient that they will connect to for the game of the room it belongs to.
-                        sendString(serverSocket,dgPacket,sendBuffer,msgToClient,clientAddress, clientPort);
                     }
                     else{ //if the client tries to connect again, just send '0'...
-                        msgToClient = "0";
-                        sendString(serverSocket,dgPacket,sendBuffer,msgToClient,clientAddress, clientPort);
+                        msgToClient.replyTo(msgFromClient, Opcode.PORT).putInt(0);
+                        roomSocket.send(msgToClient, clientAddress, clientPort);
+                    }
+                } else if(msgFromClient.is(Opcode.RESUME)){
+                    //it has moved already (findClient()), tell it which port its handler is on. "-1" if we don't know its session.
+                    msgToClient.replyTo(msgFromClient, knownClient == null ? Opcode.DISCONNECT : Opcode.PORT);
+                    if(knownClient != null){
+                        msgToClient.putInt(knownClient.serverClientPort);
                     }
+                    roomSocket.send(msgToClient, clientAddress, clientPort);
                 } else {
-                    msgToClient = "Your client message " + msgFromClient + " isn't a known command to a room.";
-                    sendString(serverSocket,dgPacket,sendBuffer,msgToClient,clientAddress, clientPort);
+                    msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText("Your client message " + msgFromClient + " isn't a known command to a room.");
+                    roomSocket.send(msgToClient, clientAddress, clientPort);
                 }
-                wait();
             }
             //Whenever the threads finish, make sure they're removed from the thread pool.
         }catch(IOException e){
-            e.getMessage();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            e.getMessage(); //also how close() gets us out of receive()
+        }
+    }
+
+    public int numberOfClients(){
+        return occupancy.get();
+    }
+
+    //The multiplexed version of waitForClients(). Packets are handled by onDatagram() on the selector thread,
+    //so this thread only has to wait for addClient() to fill the room. addClient() unparks it, no monitor needed.
+    public void waitForFullRoom(){
+        roomThread = Thread.currentThread();
+        while(occupancy.get() < maxClientThreads && !closed){ //park() can also return for no reason, so check again
+            LockSupport.park(this);
+        }
+    }
+
+    //Called by the RoomSelector for every packet sent to this room's channel. Known senders are passed to their RoomClientHandler,
+    //everyone else has to ask to connect first. Only the selector thread calls this, so it can reuse the same messages and buffer.
+    public void onDatagram(DatagramChannel channel, ByteBuffer data, SocketAddress sender){
+        if(!MessageCodec.decode(data, incoming)){
+            return; //not something we understand
+        }
+
+        RoomClientHandler knownClient = findClient(incoming, (InetSocketAddress) sender);
+        if(knownClient != null){
+            if(incoming.is(Opcode.CONNECT)){ //if the client tries to connect again, just send '0'...
+                reply.replyTo(incoming, Opcode.PORT).putInt(0);
+                sendToClient(reply, sender, replyBuffer);
+            }else{
+                knownClient.onMessage(incoming);
+            }
+            return;
+        }
+        if(!roomServer.admission.admit(((InetSocketAddress) sender).getAddress())){
+            return; //a stranger that sends too much
+        }
+
+        if(incoming.is(Opcode.CONNECT)){
+            InetSocketAddress clientSocketAddress = (InetSocketAddress) sender;
+            if(!hasCookie(incoming, clientSocketAddress, reply)){
+                sendToClient(reply, sender, replyBuffer);
+                return;
+            }
+            RoomClientHandler cClient = new RoomClientHandler(this, clientSocketAddress);
+            cClient.binary = incoming.binary;
+            if(!takeSeat(cClient)){
+                return; //the room is full, it doesn't answer anymore. Same as waitForClients() leaving its loop.
+            }
+
+            //the client keeps talking to the room's port, we tell them apart by their address.
+            reply.replyTo(incoming, Opcode.PORT).putInt(serverPort);
+            reply.sessionId = cClient.sessionId;
+            sendToClient(reply, sender, replyBuffer); //its first ping comes with the room's next burst
+            wakeIfFull(); //only now, so that the last client gets its port before "done"
+        }else if(incoming.is(Opcode.RESUME)){
+            reply.replyTo(incoming, Opcode.DISCONNECT); //we don't know its session (anymore), it has to join again
+            sendToClient(reply, sender, replyBuffer);
+        }else{
+            reply.replyTo(incoming, Opcode.TEXT).putText("Your client message " + incoming + " isn't a known command to a room.");
+            sendToClient(reply, sender, replyBuffer);
         }
     }
 
-    public int getPort(){
-        for(int port: allPorts){
-            if(!usedPorts.contains(port)){
-                usedPorts.add(port);
-                return port;
+    //Did a stranger's connect bring the cookie of the address it came from? If it didn't (or it's too old), 'reply' is filled in
+    //with one instead, and nothing is kept for the stranger until it comes back with it.
+    boolean hasCookie(Message connect, InetSocketAddress sender, Message reply){
+        ConnectCookies cookies = roomServer.cookies;
+        if(cookies.isValid(connect.getText(), sender, serverPort)){
+            return true;
+        }
+        if(connect.payload.limit() > 0){
+            roomServer.metrics.badCookies.increment();
+        }
+        roomServer.metrics.cookiesSent.increment();
+        reply.replyTo(connect, Opcode.COOKIE).putText(cookies.issue(sender, serverPort));
+        return false;
+    }
+
+    //Every client of a multiplexed room is pinged in the same burst, every RoomClientHandler.heartbeatIntervalInMS.
+    public void startHeartbeats(HeartbeatWheel heartbeats){
+        heartbeatBurst = heartbeats.schedule(() -> pingAll(heartbeats), 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void pingAll(HeartbeatWheel heartbeats){
+        if(closed || satisfied){
+            return;
+        }
+        dueForPing.clear();
+        for(RoomClientHandler client: clients){
+            if(client.pingDue()){ //the ones that missed too many pings are disconnected instead
+                dueForPing.add(client);
             }
         }
-        return 0;
+        broadcast.send(Opcode.PING, dueForPing);
+        heartbeatBurst = heartbeats.schedule(() -> pingAll(heartbeats), RoomClientHandler.heartbeatIntervalInMS, TimeUnit.MILLISECONDS);
     }
 
-    public void sendString(DatagramSocket socket, DatagramPacket dgPacket, byte[] sendBuffer, String msg, InetAddress clientAddress, int clientPort) throws IOException {
-        sendBuffer = msg.getBytes();
-        dgPacket = new DatagramPacket(sendBuffer, sendBuffer.length, clientAddress, clientPort);
-        socket.send(dgPacket);
+    //Encode a message into the caller's buffer and send it from the room's channel. The channel can be shared by several threads,
+    //but each thread has to bring its own buffer.
+    public void sendToClient(Message msg, SocketAddress clientAddress, ByteBuffer buffer){
+        MessageCodec.encode(msg, buffer);
+        try{
+            serverChannel.send(buffer, clientAddress);
+        }catch(IOException e){
+            if(serverChannel.isOpen()){
+                EventLog.console.error(serverName, "couldn't send to " + clientAddress, e);
+            }
+        }
     }
-    public String receiveString(DatagramSocket socket, DatagramPacket dgPacket, byte[] receiveBuffer) throws IOException{
-        socket.receive(dgPacket);
-        String receivedData = new String(dgPacket.getData(), 0, dgPacket.getLength());
-        return receivedData;
+
+    //Stop waiting for players and send away the ones that are already here. The room's thread does the rest, and removes the room
+    //from the RoomServer.
+    public void close(){
+        closed = true;
+        if(!multiplexed){
+            serverSocket.close(); //waitForClients() is blocked in receive()
+        }
+        //a multiplexed room keeps its channel until its clients have been told, they're sent their messages from it
+        Thread waiting = roomThread;
+        if(waiting != null){
+            LockSupport.unpark(waiting);
+        }
     }
 
-    //Two clients shouldn't be added at the same time
-    public synchronized void addClient(RoomClientHandler cl){
-        if(!clients.contains(cl)){
-            clients.add(cl);
-            connectedClientPorts.add(cl.clientPort);
-            notify(); //the waitingClients loop is waiting for an accurate value for clients.size()
-            printRoomStatus();
+    //Several clients can be added at the same time: a place in the room is taken by raising the occupancy with a compare-and-set,
+    //so the room can't get more than maxClientThreads clients. Returns false if the room was already full.
+    public boolean addClient(RoomClientHandler cl){
+        if(!takeSeat(cl)){
+            return false;
         }
+        wakeIfFull();
+        return true;
     }
 
-    public synchronized void removeClient(RoomClientHandler cl){
+    //addClient() without waking up the room when it's full, for whoever still has to answer the client before the room can start.
+    boolean takeSeat(RoomClientHandler cl){
+        if(closed || satisfied){
+            return false; //a started room empties out as its clients start their game, but those seats aren't free
+        }
+        int current;
+        do{
+            current = occupancy.get();
+            if(current >= maxClientThreads){
+                return false;
+            }
+        }while(!occupancy.compareAndSet(current, current + 1));
+
+        if(clientsBySession.putIfAbsent(cl.sessionId, cl) != null){ //already in the room, or its token was given twice at once
+            occupancy.decrementAndGet();
+            return false;
+        }
+        if(clientsByAddress.putIfAbsent(cl.clientSocketAddress, cl) != null){ //someone is already in the room from there
+            clientsBySession.remove(cl.sessionId, cl);
+            occupancy.decrementAndGet();
+            return false;
+        }
+        keepPromise();
+        roomServer.clientJoined(this, cl);
+        printRoomStatus();
+        return true;
+    }
+
+    void wakeIfFull(){
+        if(occupancy.get() >= maxClientThreads){
+            Thread waiting = roomThread;
+            if(waiting != null){
+                LockSupport.unpark(waiting); //the room is full: wake up waitForFullRoom()
+            }
+        }
+    }
+
+    //How many more clients the room can take, not counting the seats that were promised to someone. 0 if it's closed, or if its
+    //game has started.
+    public int freeSeats(){
+        if(closed || satisfied){
+            return 0;
+        }
+        if(promisedSeats.get() > 0 && System.currentTimeMillis() - lastPromiseAt > promiseTimeoutInMS){
+            promisedSeats.set(0); //whoever they were promised to didn't come
+        }
+        return maxClientThreads - occupancy.get() - promisedSeats.get();
+    }
+
+    //Nobody is in the room, and nobody it promised a seat to is still on their way (or it's closed, or started).
+    boolean isAbandoned(){
+        return !closed && !satisfied && freeSeats() == maxClientThreads;
+    }
+
+    //Hold a seat for a client the lobby is about to send here. Returns false if there's no seat left to promise.
+    public boolean promiseSeat(){
+        int promised;
+        do{
+            if(freeSeats() <= 0){
+                return false;
+            }
+            promised = promisedSeats.get();
+        }while(!promisedSeats.compareAndSet(promised, promised + 1));
+        lastPromiseAt = System.currentTimeMillis();
+        return true;
+    }
+
+    //A client took a seat. It may not be the one it was promised to, but either way there's one less seat to hold.
+    private void keepPromise(){
+        int promised;
+        do{
+            promised = promisedSeats.get();
+            if(promised == 0){
+                return;
+            }
+        }while(!promisedSeats.compareAndSet(promised, promised - 1));
+    }
+
+    public void removeClient(RoomClientHandler cl){
+        if(!clientsBySession.remove(cl.sessionId, cl)){
+            return; //someone else already removed it
+        }
+        if(cl.roomSatisfied && cl.stopAwaitingStart()){
+            startAcked(cl); //it left before acking "done", so startGame() shouldn't wait for it
+        }
         //the serverClient's port is no longer in use, so free it from our list of used ports.
         try{
-            usedPorts.remove(Integer.valueOf(cl.serverClientPort)); //If I just input an 'int', it'll search for the index instead of the object.
-            //close the serverClient's socket
-            cl.uniqueServerSocket.close();
-
-            //remove the connected client's port from the list of connected clients
-            connectedClientPorts.remove(Integer.valueOf(cl.clientPort));
-            //then remove the client object from the list of clients.
-            clients.remove(cl);
-            notify(); //the waitingClients loop is waiting for an accurate value for clients.size()
+            if(cl.uniqueServerSocket != null){
+                //close the serverClient's socket, then its port can go to someone else
+                cl.uniqueServerSocket.close();
+                roomServer.ports.free(cl.serverClientPort);
+            }
+            //multiplexed clients share the room's channel, they only have to be forgotten.
+            clientsByAddress.remove(cl.clientSocketAddress, cl);
+            occupancy.decrementAndGet();
+            roomServer.clientLeft(this, cl);
             printRoomStatus();
         }catch(Exception e){
-            e.printStackTrace();
+            EventLog.console.error(serverName, "couldn't remove the client at port " + cl.serverClientPort, e);
         }
     }
 
-    public void printRoomStatus(){
-        System.out.println("=== " + serverName);
-        for(int i = 0; i < maxClientThreads; i++){
-            if((i+1) <= clients.size()){ //if there is an i'th client
-                System.out.println("Client connected at port " + clients.get(i).serverClientPort + ",");
+    //A new session token: random, so that a client can't guess another one's and take its seat, and never 0, which is "no
+    //session". Two clients joining at once could still draw the same one, then takeSeat() turns the second one away.
+    int newSessionToken(){
+        int token;
+        do{
+            token = ThreadLocalRandom.current().nextInt();
+        }while(token == 0 || clientsBySession.containsKey(token));
+        return token;
+    }
+
+    //The client a message is from: the one of its session token if it has one, found wherever it sends from now, or else the
+    //one at the address it was sent from. A client that was found by its token somewhere new is moved there.
+    RoomClientHandler findClient(Message msg, InetSocketAddress sender){
+        if(!msg.binary || msg.sessionId == 0){
+            return clientsByAddress.get(sender);
+        }
+        RoomClientHandler client = clientsBySession.get(msg.sessionId);
+        if(client != null && !sender.equals(client.clientSocketAddress)){
+            moveClient(client, sender);
+        }
+        return client;
+    }
+
+    //The client's address or port changed: everything is sent to the new one from now on, and it keeps its seat.
+    public void moveClient(RoomClientHandler cl, InetSocketAddress newAddress){
+        InetSocketAddress oldAddress = cl.clientSocketAddress;
+        clientsByAddress.put(newAddress, cl); //whoever was there before has moved on too, it still has its token
+        cl.moveTo(newAddress);
+        clientsByAddress.remove(oldAddress, cl);
+        if(clientsBySession.get(cl.sessionId) != cl){
+            clientsByAddress.remove(newAddress, cl); //it left in the meantime
+            return;
+        }
+        roomServer.clientMoved(this, cl);
+        EventLog.console.info(serverName, "the client at port " + oldAddress.getPort() + " moved", newAddress);
+    }
+
+    //Seat the clients that were waiting in this room before the server was restarted, with the same session ids and on the same
+    //ports, before the room starts. The room pings them as if nothing happened, so they don't have to connect again.
+    public void restoreClients(Collection<RoomJournal.SavedClient> savedClients){
+        for(RoomJournal.SavedClient saved: savedClients){
+            RoomClientHandler client;
+            if(multiplexed){
+                client = new RoomClientHandler(this, new InetSocketAddress(saved.address, saved.clientPort));
             }else{
-                System.out.println("\t-");
+                if(!roomServer.ports.claim(saved.handlerPort)){
+                    continue; //already taken
+                }
+                try{
+                    client = new RoomClientHandler(this, new DatagramSocket(new InetSocketAddress(bindAddress, saved.handlerPort)), saved.address, saved.handlerPort, saved.clientPort);
+                }catch(IOException e){
+                    roomServer.ports.free(saved.handlerPort);
+                    EventLog.console.warn(serverName, "couldn't give the client at port " + saved.clientPort + " its port again", e.getMessage());
+                    continue;
+                }
+            }
+            client.sessionId = saved.sessionId;
+            client.binary = saved.binary;
+            if(!takeSeat(client)){
+                if(client.uniqueServerSocket != null){
+                    client.uniqueServerSocket.close();
+                    roomServer.ports.free(saved.handlerPort);
+                }
+                continue;
+            }
+            if(!multiplexed){
+                restoredClients.add(client);
+            }
+        }
+    }
+
+    //One event for every join and leave, with how full the room is. Which ports its clients are on is only worth going through
+    //the clients for when it's written, with "log=debug".
+    public void printRoomStatus(){
+        EventLog.console.info(serverName, "players", occupancy.get() + "/" + maxClientThreads);
+        if(EventLog.console.isEnabled(EventLog.Level.DEBUG)){
+            StringBuilder ports = new StringBuilder();
+            for(RoomClientHandler client: clients){ //the set can change while we go through it, that's fine
+                ports.append(ports.length() == 0 ? "" : ",").append(client.serverClientPort);
             }
+            EventLog.console.debug(serverName, "clients at ports", ports);
         }
     }
 
     public void initializeRoom(){
-        roomServer.addRoom(this);
-        System.out.println("Room '" +serverName + "' added.");
+        EventLog.console.info(serverName, "added", serverGame);
+        //the ports of its clients come from the server's PortAllocator as they join, wherever there's a free one
+    }
+
+    //Tell every client that the game is starting, all at once and as soon as the room is full, and wait until they have all
+    //acked it. It used to sleep for 8 seconds instead, which was much longer than the message takes and still didn't make sure
+    //that it got there. Every client that hasn't acked is sent "done" again after its own retransmit timeout (from the round-trip
+    //time of its pings), twice as long every time. The ones that haven't acked after startDeadlineInMS are disconnected.
+    public void startGame(){
+        satisfied = true;
+        roomServer.metrics.roomFillInMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAt));
+        roomThread = Thread.currentThread(); //startAcked() unparks it
+        //clients remove themselves from the list once they're started, so go through a copy of it.
+        ArrayList<RoomClientHandler> satisfiedClients = new ArrayList<RoomClientHandler>(clients);
+        long now = System.nanoTime();
+        for(RoomClientHandler client: satisfiedClients){
+            client.armStart(now);
+        }
+        awaitingStartAcks.set(satisfiedClients.size());
+        for(RoomClientHandler client: satisfiedClients){
+            client.roomIsSatisifed(); //from now on, its ack or its leaving counts
+            if(clientsBySession.get(client.sessionId) != client && client.stopAwaitingStart()){
+                startAcked(client); //it left before it could count
+            }
+        }
+        broadcast.send(Opcode.DONE, satisfiedClients);
+
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(startDeadlineInMS);
+        ArrayList<RoomClientHandler> retransmits = new ArrayList<RoomClientHandler>();
+        while(awaitingStartAcks.get() > 0 && (now = System.nanoTime()) - deadline < 0){
+            long nextRetransmitAt = deadline;
+            retransmits.clear();
+            for(RoomClientHandler client: satisfiedClients){
+                if(client.startAcked){
+                    continue;
+                }
+                if(now - client.startRetransmitAt >= 0){
+                    retransmits.add(client);
+                    client.startTimeoutInNanos = Math.min(2 * client.startTimeoutInNanos, RoomClientHandler.maxTimeoutInNanos);
+                    client.startRetransmitAt = now + client.startTimeoutInNanos;
+                }
+                if(client.startRetransmitAt - nextRetransmitAt < 0){
+                    nextRetransmitAt = client.startRetransmitAt;
+                }
+            }
+            if(!retransmits.isEmpty()){
+                broadcast.send(Opcode.DONE, retransmits);
+                roomServer.metrics.startRetransmits.add(retransmits.size());
+            }
+            LockSupport.parkNanos(this, nextRetransmitAt - now); //park() can also return for no reason, the loop checks again
+        }
 
-        //define ports after the server ports that clients can contact
-        for(int i = 1; i <= maxClientThreads; i++){
-            allPorts.add(serverPort + i); //for example: 5 ports after given server port 33400: 34001...34006
+        ServerMetrics metrics = roomServer.metrics;
+        metrics.gamesStarted.increment();
+        now = System.nanoTime();
+        ArrayList<RoomClientHandler> players = new ArrayList<RoomClientHandler>();
+        for(RoomClientHandler client: satisfiedClients){
+            if(client.startAcked){
+                metrics.joinToStartInMillis.record(TimeUnit.NANOSECONDS.toMillis(now - client.joinedAt));
+                players.add(client);
+                client.gameStarted();
+            }else{
+                metrics.startAckTimeouts.increment();
+                client.roomClosed(); //it never acked, so it isn't in the game
+            }
         }
+        roomServer.tickEngine.start(this, players); //the game itself is played from the TickEngine's port
     }
 
-    public void startGame(){
-        for(int i = 0; i < clients.size(); i++){
-            clients.get(i).roomIsSatisifed();
+    //A client acked "done". The last one wakes up startGame().
+    public void startAcked(RoomClientHandler client){
+        if(awaitingStartAcks.decrementAndGet() == 0){
+            Thread waiting = roomThread;
+            if(waiting != null){
+                LockSupport.unpark(waiting);
+            }
         }
     }
 }
@@ -0,0 +1,66 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/*
+Sends the same message to every client of a Room in one pass. Every RoomClientHandler used to encode and send its own pings and
+its own "done", each at its own time, so a full room could take seconds before the last of its clients heard that the game
+was starting.
+
+The message is encoded once for the clients of the text protocol and once for the clients of the binary protocol, into buffers
+that are kept for every broadcast. The only thing that's different from one binary client to the next is its session id and
+sequence number, so those 8 bytes of the header are written over before each send instead of encoding the message again.
+
+Multiplexed clients are sent the message from the room's channel, the others from the socket of their RoomClientHandler, the
+same as if the handler had sent it itself. A broadcast can come from the room's thread or from the HeartbeatWheel, so only one
+runs at a time.
+ */
+public class RoomBroadcast {
+    Room room;
+    Message msg = new Message(8);
+    ByteBuffer textBuffer = ByteBuffer.allocate(MessageCodec.headerLength + 8);
+    ByteBuffer binaryBuffer = ByteBuffer.allocate(MessageCodec.headerLength + 8);
+    DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+
+    public RoomBroadcast(Room room){
+        this.room = room;
+    }
+
+    //Send the message to every one of the clients. Returns how many it was sent to.
+    public synchronized int send(Opcode opcode, Iterable<RoomClientHandler> clients){
+        msg.set(opcode);
+        msg.binary = false;
+        MessageCodec.encode(msg, textBuffer);
+        msg.binary = true;
+        MessageCodec.encode(msg, binaryBuffer);
+
+        int sent = 0;
+        for(RoomClientHandler client: clients){
+            ByteBuffer buffer = textBuffer;
+            int sequence = client.nextSequence();
+            if(client.binary){
+                buffer = binaryBuffer;
+                buffer.putInt(2, client.sessionId);
+                buffer.putInt(6, sequence);
+            }
+            client.sent(opcode, sequence);
+            buffer.rewind();
+            try{
+                if(room.multiplexed){
+                    room.serverChannel.send(buffer, client.clientSocketAddress);
+                }else{
+                    packet.setData(buffer.array(), 0, buffer.limit());
+                    packet.setAddress(client.clientAddress);
+                    packet.setPort(client.clientPort);
+                    client.uniqueServerSocket.send(packet);
+                }
+                sent++;
+            }catch(IOException e){
+                //the client's socket (or the room's channel) was closed in the meantime, it's leaving anyway
+            }
+        }
+        return sent;
+    }
+}
@@ -2,12 +2,13 @@ package org.project;
 
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
 The purpose of this class is to allow the server to communicate with a client that has "connected" with the server.
@@ -28,15 +29,66 @@ list of "connected" clients.
 4) When the room is satisfied, the pinging ends and the server notifies the client that a game will be starting. From here, and implementation
 of the server-client interactions for the game can be made.
 
+5) In the multiplexed mode, a RoomClientHandler doesn't have a socket or a thread. The Room passes it the messages its client
+sends to the Room's channel through onMessage(), and pings all of its clients together from the HeartbeatWheel every few seconds.
+Before each of those, pingDue() counts the timeouts that run() would otherwise wait for.
+
+6) The Room tells every client that the game is starting itself, through its RoomBroadcast, as soon as it's full. The handlers
+stop pinging, and wait for their client to ack it. The round-trip times measured from the pings decide how long the Room waits
+for an ack before it sends "done" again.
+
+7) A client of the binary protocol sends the session token it was given with every message. When one of them comes from another
+address or port than before (its NAT mapping changed, or it opened a new socket), the client is moved there instead of being
+treated as a stranger, and it keeps its seat. "resume" does the same on purpose, and is answered with the port to talk to.
+
  */
 public class RoomClientHandler implements Runnable {
     Room roomOfClient;
     DatagramSocket uniqueServerSocket;
-    InetAddress clientAddress;
+    //where the client sends from, which can change while it waits (see moveTo())
+    volatile InetAddress clientAddress;
+    volatile int clientPort;
+    volatile InetSocketAddress clientSocketAddress;
     int serverClientPort;
-    int clientPort;
 
-    boolean roomSatisfied = false;
+    volatile boolean roomSatisfied = false;
+    volatile boolean roomClosed = false; //the room was closed before it was full
+
+    //the protocol the client connected with, and the session token it was given. Every message to the client uses both.
+    boolean binary = false;
+    int sessionId;
+    AtomicInteger sequence = new AtomicInteger(0); //the Room's broadcasts use it too
+    Message msgToClient = new Message(8);
+    ByteBuffer sendBuffer = ByteBuffer.allocate(MessageCodec.headerLength + 8);
+
+    //used by the multiplexed mode instead of the blocking loop in run()
+    boolean awaitingPingResponse = false;
+    int missedPings = 0;
+    boolean disconnected = false;
+    static final int heartbeatIntervalInMS = 4000;
+    static final int maxMissedPings = 3;
+
+    //The round-trip time to the client, measured from each ping to its gotPing, and how much it varies. They're smoothed the same
+    //way TCP does it (RFC 6298), and give how long to wait for an ack before sending "done" again.
+    volatile long smoothedRttInNanos = -1; //-1 until the first gotPing
+    volatile long rttVariationInNanos = 0;
+    long pingSentAt;
+    int pingSequence;
+    long lastRttInNanos = -1;
+    volatile long jitterInNanos = 0; //how much the round-trip time changes from one ping to the next, smoothed (RFC 3550)
+    long joinedAt = System.nanoTime();
+    static final long initialTimeoutInNanos = TimeUnit.SECONDS.toNanos(1);
+    static final long minTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    static final long maxTimeoutInNanos = TimeUnit.SECONDS.toNanos(2);
+
+    //the start handshake: the client acks "done", and the room sends it again until it does (see Room.startGame())
+    volatile boolean startAcked = false;
+    boolean startCounted = false; //taken off the acks the room waits for, because it acked or because it left
+    boolean doneSent = false;
+    int firstDoneSequence; //the sequence numbers of the first and the last "done", an ack has to answer one of them
+    int lastDoneSequence;
+    long startTimeoutInNanos;
+    long startRetransmitAt;
 
     public RoomClientHandler(Room room, DatagramSocket sSocket, InetAddress cIp, int sPort, int cPort){
         this.roomOfClient = room;
@@ -44,100 +96,309 @@ public class RoomClientHandler implements Runnable {
         this.clientAddress = cIp;
         this.serverClientPort = sPort;
         this.clientPort = cPort;
+        this.clientSocketAddress = new InetSocketAddress(cIp, cPort);
+        this.sessionId = room.newSessionToken();
+    }
+
+    //A multiplexed client: it talks to the room's own port, so there's no socket of its own.
+    public RoomClientHandler(Room room, InetSocketAddress cSocketAddress){
+        this(room, null, cSocketAddress.getAddress(), room.serverPort, cSocketAddress.getPort());
+    }
+
+    //The client sends from another address now, send it everything there. Only Room.moveClient() calls this.
+    void moveTo(InetSocketAddress newAddress){
+        clientAddress = newAddress.getAddress();
+        clientPort = newAddress.getPort();
+        clientSocketAddress = newAddress;
     }
 
     public void run(){
-        //add client to list in the associated room.
-        roomOfClient.addClient(this);
-
-        String msgFromClient = "";
-        String msgToClient = "";
-        byte[] receiveBuffer = new byte[1024];
-        byte[] sendBuffer = new byte[0];
-        DatagramPacket dgPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-        int currentTime = 4000;
+        //the room has already added this client to its list before starting this thread.
+        MessageSocket socket = new MessageSocket(uniqueServerSocket);
+        Message msgFromClient;
+        int currentTime = heartbeatIntervalInMS;
         int consecutiveTimeouts = 0;
-        int maxTimeouts = 3;
+        int maxTimeouts = maxMissedPings;
 
-        //Used to find how much more time we should wait after getting a ping response before sending another.
-        //Time should be: time waiting for response + time left until next response
-        Instant start;
-        Instant end;
-        long timeElapsedInMS;
+        //Between two pings the thread waits in receive() instead of sleeping, so that whatever the client sends in the meantime
+        //(like the ack of "done") is handled as soon as it gets here. The time left is: time until next ping - time already waited.
+        long nextPingAt = System.nanoTime();
         long timeLeftInMS;
+        boolean awaitingPing = false;
 
         boolean connected = true;
 
 
         while(connected){ //if the room is satisfied (maximum players achieved), we break the loop while connected = true.
             try{
-                if(!roomSatisfied){
-                    msgToClient = "ping";
-                }else{//if the Room changes the value when the number of players needed is met:
-                    msgToClient = "done";
-                    sendString(uniqueServerSocket, dgPacket, sendBuffer, msgToClient, clientAddress, clientPort); //sends even if there is no response
+                if(roomClosed){
+                    connected = false;
                     break;
                 }
-                sendString(uniqueServerSocket, dgPacket, sendBuffer, msgToClient, clientAddress, clientPort); //sends even if there is no response
+                if(roomSatisfied){ //if the Room changes the value when the number of players needed is met. It has already sent "done".
+                    if(startAcked){
+                        break;
+                    }
+                    //no more pings, only wait for the ack. The room sends "done" again if it takes too long.
+                    socket.setSoTimeout(50);
+                }else{
+                    if(System.nanoTime() - nextPingAt >= 0){
+                        if(awaitingPing){
+                            consecutiveTimeouts++;
+                            roomOfClient.roomServer.metrics.missedPings.increment();
+                            if(consecutiveTimeouts >= maxTimeouts){
+                                roomOfClient.roomServer.metrics.heartbeatTimeouts.increment();
+                                connected = false;
+                                break;
+                            }
+                            //no response was received. Try (maxTimeouts - consecutiveTimeouts) more times
+                        }
+                        nextMessage(Opcode.PING);
+                        socket.send(msgToClient, clientAddress, clientPort); //sends even if there is no response
+                        sent(Opcode.PING, msgToClient.sequence);
+                        awaitingPing = true;
+                        nextPingAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(currentTime);
+                    }
+                    timeLeftInMS = TimeUnit.NANOSECONDS.toMillis(nextPingAt - System.nanoTime());
+                    socket.setSoTimeout((int) Math.max(1, timeLeftInMS));
+                }
 
-                uniqueServerSocket.setSoTimeout(currentTime);
-                start = Instant.now();
                 try{
-                    if((msgFromClient=receiveString(uniqueServerSocket, dgPacket, receiveBuffer)) == null || msgFromClient.equals("-1")){
-                        //the client isn't connected anymore. Disconnect.
-                        connected = false;
-                        continue;
-                    }
-                    end = Instant.now();
-                    timeElapsedInMS = (Duration.between(start, end)).toMillis();
-                    timeLeftInMS = currentTime - timeElapsedInMS; //how much longer should we wait before sending another ping?
-                    Thread.sleep(timeLeftInMS);
+                    msgFromClient = socket.receive();
                 }catch(SocketTimeoutException e){
-                    consecutiveTimeouts++;
-                    if(consecutiveTimeouts >= maxTimeouts){
-                        connected = false;
-                        break;
+                    continue;
+                }
+                if(msgFromClient.binary){
+                    if(msgFromClient.sessionId != sessionId){
+                        continue; //not our client's session
+                    }
+                    if(socket.senderPort() != clientPort || !socket.senderAddress().equals(clientAddress)){
+                        roomOfClient.moveClient(this, new InetSocketAddress(socket.senderAddress(), socket.senderPort()));
                     }
-                    //no response was received. Try (maxTimeouts - consecutiveTimeouts) more times
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                }
+                if(msgFromClient.is(Opcode.RESUME)){
+                    socket.send(msgToClient.replyTo(msgFromClient, Opcode.PORT).putInt(serverClientPort), clientAddress, clientPort);
+                    awaitingPing = false; //it's still there, whatever happened to our last ping
+                    consecutiveTimeouts = 0;
+                    continue;
+                }
+                if(msgFromClient.is(Opcode.DISCONNECT)){
+                    //the client isn't connected anymore. Disconnect.
                     connected = false;
+                    continue;
+                }
+                if(msgFromClient.is(Opcode.DONE_ACK)){
+                    doneAcked(msgFromClient);
+                    continue;
+                }
+                if(msgFromClient.is(Opcode.GOT_PING) && awaitingPing){
+                    gotPing(msgFromClient);
+                    awaitingPing = false;
+                    consecutiveTimeouts = 0;
                 }
             } catch (IOException e) {
                 if(!e.getMessage().equals("Socket closed")){
-                    e.printStackTrace();
+                    EventLog.console.error(roomOfClient.serverName, "lost the client at port " + serverClientPort, e);
                 }
                 connected = false;
             }
         }
 
         if(connected){
-            //TODO: CONTINUE GAME
-            System.out.println("Starting game");
+            //the room hands the client over to the TickEngine, which plays the game with it from its own port
+            EventLog.console.debug(roomOfClient.serverName, "starting game", clientSocketAddress);
         }else{
-            msgToClient = "-1";
+            nextMessage(Opcode.DISCONNECT);
             try {
-                sendString(uniqueServerSocket, dgPacket, sendBuffer, msgToClient, clientAddress, clientPort);
+                socket.send(msgToClient, clientAddress, clientPort);
             } catch (IOException e) {
                 if(!e.getMessage().equals("Socket closed")){
-                    e.printStackTrace();
+                    EventLog.console.error(roomOfClient.serverName, "lost the client at port " + serverClientPort, e);
                 }
             }
         }
         roomOfClient.removeClient(this);
     }
-    public void sendString(DatagramSocket socket, DatagramPacket dgPacket, byte[] sendBuffer, String msg, InetAddress clientAddress, int clientPort) throws IOException {
-        sendBuffer = msg.getBytes();
-        dgPacket = new DatagramPacket(sendBuffer, sendBuffer.length, clientAddress, clientPort);
-        socket.send(dgPacket);
+
+    //Every message to the client carries its session id and the next sequence number, in the protocol the client connected with.
+    private Message nextMessage(Opcode opcode){
+        msgToClient.binary = binary;
+        msgToClient.sessionId = sessionId;
+        msgToClient.sequence = nextSequence();
+        return msgToClient.set(opcode);
+    }
+
+    public int nextSequence(){
+        return sequence.incrementAndGet();
+    }
+
+    //A message with this sequence number was just sent to the client, by the handler or by the room.
+    public synchronized void sent(Opcode opcode, int sequenceNumber){
+        if(opcode == Opcode.PING){
+            pingSentAt = System.nanoTime();
+            pingSequence = sequenceNumber;
+        }else if(opcode == Opcode.DONE){
+            if(!doneSent){
+                firstDoneSequence = sequenceNumber;
+                doneSent = true;
+            }
+            lastDoneSequence = sequenceNumber;
+        }
+    }
+
+    //The client answered a ping. The binary protocol says which ping it answers, a late answer to an older one isn't measured.
+    private void gotPing(Message msgFromClient){
+        if(msgFromClient.binary && msgFromClient.sequence != pingSequence){
+            return;
+        }
+        long rtt = System.nanoTime() - pingSentAt;
+        if(smoothedRttInNanos < 0){
+            rttVariationInNanos = rtt / 2;
+            smoothedRttInNanos = rtt;
+        }else{
+            rttVariationInNanos = (3 * rttVariationInNanos + Math.abs(smoothedRttInNanos - rtt)) / 4;
+            smoothedRttInNanos = (7 * smoothedRttInNanos + rtt) / 8;
+        }
+        if(lastRttInNanos >= 0){
+            jitterInNanos += (Math.abs(rtt - lastRttInNanos) - jitterInNanos) / 16;
+        }
+        lastRttInNanos = rtt;
+        roomOfClient.roomServer.metrics.pingAnswered(rtt, jitterInNanos);
+    }
+
+    //How long to wait for an answer before sending again: a second until the round-trip time has been measured.
+    public long retransmitTimeoutInNanos(){
+        long smoothedRtt = smoothedRttInNanos;
+        if(smoothedRtt < 0){
+            return initialTimeoutInNanos;
+        }
+        return Math.max(minTimeoutInNanos, Math.min(maxTimeoutInNanos, smoothedRtt + 4 * rttVariationInNanos));
+    }
+
+    //The client acked "done". Only an ack of one of the "done"s the room sent counts: an early or a stray one (before the room was
+    //full, or with the sequence number of a ping) would take the client off the acks the room waits for before it has heard it.
+    //The text protocol has no sequence numbers, so there it's only checked that "done" was sent.
+    private void doneAcked(Message ack){
+        synchronized(this){
+            if(!roomSatisfied || !doneSent || startAcked){
+                return;
+            }
+            if(ack.binary && (ack.sequence - firstDoneSequence < 0 || ack.sequence - lastDoneSequence > 0)){
+                return;
+            }
+            if(!stopAwaitingStart()){
+                return; //it left in the meantime
+            }
+            startAcked = true;
+        }
+        roomOfClient.startAcked(this);
+    }
+
+    //The room doesn't wait for this client's ack anymore. true only the first time, so that it's counted once.
+    synchronized boolean stopAwaitingStart(){
+        if(startCounted){
+            return false;
+        }
+        startCounted = true;
+        return true;
+    }
+
+    //Before the room counts the acks it waits for: whatever the client sent before, it hasn't acked this "done" yet.
+    synchronized void armStart(long now){
+        startAcked = false;
+        startCounted = false;
+        doneSent = false;
+        startTimeoutInNanos = retransmitTimeoutInNanos();
+        startRetransmitAt = now + startTimeoutInNanos;
     }
-    public String receiveString(DatagramSocket socket, DatagramPacket dgPacket, byte[] receiveBuffer) throws IOException{
-        socket.receive(dgPacket);
-        String receivedData = new String(dgPacket.getData(), 0, dgPacket.getLength());
-        return receivedData;
+
+    //multiplexed clients are sent their messages from the room's channel
+    private void sendToClient(Opcode opcode){
+        roomOfClient.sendToClient(nextMessage(opcode), clientSocketAddress, sendBuffer);
+    }
+
+    //One iteration of the loop in run(), without the waiting or the sending: the reply (if any) has already come through onMessage(),
+    //and the Room pings every client that this returns true for at once.
+    public synchronized boolean pingDue(){
+        if(disconnected){
+            return false;
+        }
+        if(awaitingPingResponse){
+            missedPings++;
+            roomOfClient.roomServer.metrics.missedPings.increment();
+            if(missedPings >= maxMissedPings){
+                roomOfClient.roomServer.metrics.heartbeatTimeouts.increment();
+                disconnect(true);
+                return false;
+            }
+            //no response was received. Try (maxMissedPings - missedPings) more times
+        }
+        awaitingPingResponse = true;
+        return true;
     }
 
+    //A message the client sent to the room's channel.
+    public synchronized void onMessage(Message msgFromClient){
+        if(disconnected){
+            return;
+        }
+        if(msgFromClient.is(Opcode.DISCONNECT)){
+            //the client isn't connected anymore. Disconnect.
+            disconnect(false);
+            return;
+        }
+        if(msgFromClient.is(Opcode.DONE_ACK)){
+            doneAcked(msgFromClient);
+            return;
+        }
+        if(msgFromClient.is(Opcode.RESUME)){
+            roomOfClient.sendToClient(msgToClient.replyTo(msgFromClient, Opcode.PORT).putInt(serverClientPort), clientSocketAddress, sendBuffer);
+        }
+        if(msgFromClient.is(Opcode.GOT_PING) && awaitingPingResponse){
+            gotPing(msgFromClient);
+        }
+        awaitingPingResponse = false;
+        missedPings = 0;
+    }
+
+    private void disconnect(boolean notifyClient){
+        disconnected = true;
+        if(notifyClient){
+            sendToClient(Opcode.DISCONNECT);
+        }
+        roomOfClient.removeClient(this);
+    }
+
+    //The room was closed before it was full, so the client isn't in a room anymore. A client with its own thread is told when it
+    //next wakes up, before its next ping.
+    public void roomClosed(){
+        roomClosed = true;
+        if(roomOfClient.multiplexed){
+            synchronized(this){
+                if(!disconnected){
+                    disconnect(true);
+                }
+            }
+        }
+    }
+
+    //The room is full: stop pinging, the room is telling the client that the game is starting.
     public void roomIsSatisifed(){
         roomSatisfied = true;
     }
+
+    //The client acked "done". A client with its own thread has already left its loop when it got the ack.
+    public void gameStarted(){
+        if(roomOfClient.multiplexed){
+            //nothing is looping for a multiplexed client, so it's done waiting right away.
+            synchronized(this){
+                if(disconnected){
+                    return;
+                }
+                disconnected = true;
+            }
+            EventLog.console.debug(roomOfClient.serverName, "starting game", clientSocketAddress);
+            roomOfClient.removeClient(this);
+        }
+    }
 }
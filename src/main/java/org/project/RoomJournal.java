@@ -0,0 +1,309 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/*
+The rooms of the RoomServer and who is waiting in them, kept in a file so that a server that is restarted (it crashed, or it
+was stopped to be updated) can open the same rooms again and keep pinging the same clients. They don't have to list and connect
+again, and they don't all come back to the lobby at once.
+
+1) The file is memory-mapped. Every change is a small record written at the end of the journal: a room was opened, a room was
+closed, a client joined a room, a client left one. Writing one is copying a few bytes, without a system call.
+2) The end of the journal is written in the header after the record itself, so a record that was only half written when the
+process died is never read.
+3) When the file is full, the journal is written again as a snapshot of only what's there now (one record for every room
+and client), into a new file that takes the old one's place in one rename. If the snapshot fills half the file, the new file
+is twice as big.
+4) On startup, reading the records from the start gives the rooms and their clients as they were when the server stopped.
+
+What's in the page cache is written to the disk by the operating system, so the journal survives the process dying but not
+necessarily the whole machine going down.
+
+Header (64 bytes): magic | version | mode (1 if multiplexed) | end of the journal | lobby port
+Records: ROOM id port players game name | ROOM_CLOSED id | JOINED room session clientPort handlerPort binary address | LEFT room session
+ */
+public class RoomJournal {
+    static final int magic = 0x55575231; //"UWR1"
+    static final int formatVersion = 1;
+    static final int headerLength = 64;
+    static final int endOffset = 12;
+    static final int initialSize = 1 << 20;
+
+    static final byte ROOM = 1;
+    static final byte ROOM_CLOSED = 2;
+    static final byte JOINED = 3;
+    static final byte LEFT = 4;
+
+    //a room as the journal has it
+    public static class SavedRoom {
+        int roomId;
+        int serverPort;
+        int maxPlayers;
+        String game;
+        String name;
+        LinkedHashMap<Integer, SavedClient> clients = new LinkedHashMap<Integer, SavedClient>(); //by session id
+    }
+
+    //a client waiting in a room
+    public static class SavedClient {
+        int sessionId;
+        InetAddress address;
+        int clientPort;
+        int handlerPort; //the port of its RoomClientHandler's socket. The room's own port in the multiplexed mode.
+        boolean binary;
+    }
+
+    Path path;
+    FileChannel channel;
+    MappedByteBuffer map;
+    int end;
+    boolean multiplexed;
+    int lobbyPort;
+    RoomRegistry rooms; //what a snapshot is made of, once the journal has started
+
+    public RoomJournal(Path path){
+        this.path = path;
+    }
+
+    //The rooms the file has, if it was written by a server of the same mode on the same lobby port. None if there isn't a file.
+    public Collection<SavedRoom> load(boolean multiplexed, int lobbyPort) throws IOException {
+        LinkedHashMap<Integer, SavedRoom> saved = new LinkedHashMap<Integer, SavedRoom>();
+        if(!Files.exists(path)){
+            return saved.values();
+        }
+        try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ)){
+            if(file.size() < headerLength){
+                return saved.values();
+            }
+            ByteBuffer journal = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            if(journal.getInt(0) != magic || journal.getInt(4) != formatVersion){
+                EventLog.console.warn("journal", path + " isn't a room journal, starting without its rooms");
+                return saved.values();
+            }
+            if((journal.getInt(8) == 1) != multiplexed || journal.getInt(16) != lobbyPort){
+                EventLog.console.warn("journal", path + " was written by a server in another mode or on another port, starting without its rooms");
+                return saved.values();
+            }
+            journal.limit(Math.min(journal.getInt(endOffset), journal.capacity()));
+            journal.position(headerLength);
+            try{
+                while(journal.hasRemaining()){
+                    replay(journal, saved);
+                }
+            }catch(BufferUnderflowException e){
+                EventLog.console.warn("journal", path + " ends in the middle of a record, starting from what's before it");
+            }
+        }
+        return saved.values();
+    }
+
+    //Apply one record. A record is there once for every time it happened, and again in every snapshot, so they can repeat. A
+    //client that joins again is a client that moved to another address: only the last one counts.
+    private static void replay(ByteBuffer journal, LinkedHashMap<Integer, SavedRoom> saved){
+        byte type = journal.get();
+        int roomId = journal.getInt();
+        if(type == ROOM){
+            SavedRoom room = new SavedRoom();
+            room.roomId = roomId;
+            room.serverPort = journal.getInt();
+            room.maxPlayers = journal.getInt();
+            room.game = getString(journal);
+            room.name = getString(journal);
+            saved.putIfAbsent(roomId, room);
+        }else if(type == ROOM_CLOSED){
+            saved.remove(roomId);
+        }else if(type == JOINED){
+            SavedClient client = new SavedClient();
+            client.sessionId = journal.getInt();
+            client.clientPort = journal.getInt();
+            client.handlerPort = journal.getInt();
+            client.binary = journal.get() == 1;
+            byte[] address = new byte[journal.get()];
+            journal.get(address);
+            try{
+                client.address = InetAddress.getByAddress(address);
+            }catch(IOException e){
+                return; //not an address
+            }
+            SavedRoom room = saved.get(roomId);
+            if(room != null){
+                room.clients.put(client.sessionId, client);
+            }
+        }else if(type == LEFT){
+            int sessionId = journal.getInt();
+            SavedRoom room = saved.get(roomId);
+            if(room != null){
+                room.clients.remove(sessionId);
+            }
+        }else{
+            journal.position(journal.limit()); //we don't know this record, so we can't know where the next one starts
+        }
+    }
+
+    //Start writing what happens to the rooms, from a snapshot of the ones there are now (the restored ones, if any).
+    public synchronized void start(RoomRegistry rooms, boolean multiplexed, int lobbyPort) throws IOException {
+        this.rooms = rooms;
+        this.multiplexed = multiplexed;
+        this.lobbyPort = lobbyPort;
+        compact();
+    }
+
+    public synchronized void close(){
+        if(channel != null){
+            try{
+                map.force();
+                channel.close();
+            }catch(IOException e){
+                EventLog.console.error("journal", "couldn't close " + path, e);
+            }
+            channel = null;
+        }
+    }
+
+    public void roomOpened(Room room){
+        byte[] game = room.serverGame.getBytes(StandardCharsets.UTF_8);
+        byte[] name = room.serverName.getBytes(StandardCharsets.UTF_8);
+        synchronized(this){
+            if(reserve(1 + 4 * 4 + 2 + game.length + 2 + name.length)){
+                putRoom(map, room, game, name);
+                commit();
+            }
+        }
+    }
+
+    public synchronized void roomClosed(Room room){
+        if(reserve(1 + 4)){
+            map.put(ROOM_CLOSED).putInt(room.roomId);
+            commit();
+        }
+    }
+
+    public void clientJoined(Room room, RoomClientHandler client){
+        byte[] address = client.clientAddress.getAddress();
+        synchronized(this){
+            if(reserve(1 + 5 * 4 + 2 + address.length)){
+                putClient(map, room, client, address);
+                commit();
+            }
+        }
+    }
+
+    public synchronized void clientLeft(Room room, RoomClientHandler client){
+        if(reserve(1 + 2 * 4)){
+            map.put(LEFT).putInt(room.roomId).putInt(client.sessionId);
+            commit();
+        }
+    }
+
+    private static void putRoom(ByteBuffer out, Room room, byte[] game, byte[] name){
+        out.put(ROOM).putInt(room.roomId).putInt(room.serverPort).putInt(room.maxClientThreads);
+        out.putShort((short) game.length).put(game);
+        out.putShort((short) name.length).put(name);
+    }
+
+    private static void putClient(ByteBuffer out, Room room, RoomClientHandler client, byte[] address){
+        out.put(JOINED).putInt(room.roomId).putInt(client.sessionId).putInt(client.clientPort).putInt(client.serverClientPort);
+        out.put((byte) (client.binary ? 1 : 0)).put((byte) address.length).put(address);
+    }
+
+    private static String getString(ByteBuffer in){
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //Make room for a record of 'length' bytes at the end of the journal, and position the map there. false if the journal
+    //isn't open, or can't be written anymore.
+    private boolean reserve(int length){
+        if(channel == null){
+            return false;
+        }
+        if(end + length > map.capacity()){
+            try{
+                compact();
+            }catch(IOException e){
+                EventLog.console.warn("journal", "couldn't compact " + path + ", it won't be written anymore", e.getMessage());
+                close();
+                return false;
+            }
+        }
+        map.position(end);
+        return true;
+    }
+
+    //the record at the end of the journal is complete: only now does the header say so
+    private void commit(){
+        end = map.position();
+        map.putInt(endOffset, end);
+    }
+
+    //Write every room there is now, and its clients, into a new file that replaces the journal.
+    private void compact() throws IOException {
+        ByteBuffer snapshot = ByteBuffer.allocate(initialSize);
+        for(Room room: rooms.rooms()){
+            byte[] game = room.serverGame.getBytes(StandardCharsets.UTF_8);
+            byte[] name = room.serverName.getBytes(StandardCharsets.UTF_8);
+            snapshot = ensureRemaining(snapshot, 32 + game.length + name.length);
+            putRoom(snapshot, room, game, name);
+            for(RoomClientHandler client: room.clients){
+                byte[] address = client.clientAddress.getAddress();
+                snapshot = ensureRemaining(snapshot, 32 + address.length);
+                putClient(snapshot, room, client, address);
+            }
+        }
+        snapshot.flip();
+
+        int size = map == null ? initialSize : map.capacity();
+        while(headerLength + snapshot.remaining() > size / 2){
+            size *= 2;
+        }
+        Path next = path.resolveSibling(path.getFileName() + ".next");
+        try(FileChannel file = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            MappedByteBuffer nextMap = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            nextMap.putInt(0, magic).putInt(4, formatVersion).putInt(8, multiplexed ? 1 : 0).putInt(16, lobbyPort);
+            nextMap.position(headerLength);
+            nextMap.put(snapshot);
+            nextMap.putInt(endOffset, nextMap.position());
+            nextMap.force();
+        }
+        Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if(channel != null){
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        end = map.getInt(endOffset);
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int length){
+        if(buffer.remaining() >= length){
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        return bigger.put(buffer);
+    }
+
+    //every saved client of every saved room
+    public static int numberOfClients(Collection<SavedRoom> saved){
+        int clients = 0;
+        for(SavedRoom room: saved){
+            clients += room.clients.size();
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,194 @@
+package org.project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+What the lobby answers to "list". It used to build the whole list of rooms with a StringBuilder for every request, and the
+answer could be longer than the 1024 bytes a Client receives, so a big lobby got cut off.
+
+1) The list is kept as a snapshot of pages that are already encoded, each small enough to fit in one datagram. It's only built
+again after something changed: a room was added or removed, or someone joined or left one. Until then, every "list" is only a
+send.
+
+2) Every change gives the listing a new version, which is written at the top of every page. A client that already has the
+version it asks about ("list since 12") is told "unchanged 12" instead of being sent the list again.
+
+3) A client can ask for one page ("list page 2") and for the rooms of one game only ("list game finger war"). The pages of a
+game are made the first time someone asks for them, from the same snapshot.
+
+The arguments can be combined, with the game last because its name can have spaces: "list since 12 page 2 game finger war".
+
+4) In a Federation, the rooms of the other nodes are listed after ours, with their node after their name. What they gossip
+changes the version too.
+ */
+public class RoomListing {
+    //room for "Available rooms: version <long>, page <int> of <int>\n"
+    static final int pageHeaderLength = 64;
+    static final int pageLength = MessageCodec.maxDatagramSize - MessageCodec.headerLength;
+    static final String prefix = "Available rooms:";
+
+    //the rooms as they were at one version, and their pages
+    static class Snapshot {
+        long version;
+        String[] games; //the game of each line
+        byte[][] lines; //one room each, sorted by id
+        ConcurrentHashMap<String, byte[][]> pagesByGame = new ConcurrentHashMap<String, byte[][]>();
+        byte[][] pages; //every game
+
+        Snapshot(long version, String[] games, byte[][] lines){
+            this.version = version;
+            this.games = games;
+            this.lines = lines;
+            this.pages = paginate(null);
+        }
+
+        byte[][] pages(String game){
+            if(game == null){
+                return pages;
+            }
+            return pagesByGame.computeIfAbsent(game, this::paginate);
+        }
+
+        private byte[][] paginate(String game){
+            ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+            byte[] body = new byte[pageLength - pageHeaderLength];
+            int length = 0;
+            for(int i = 0; i < lines.length; i++){
+                if(game != null && !game.equals(games[i])){
+                    continue;
+                }
+                int lineLength = Math.min(lines[i].length, body.length);
+                if(length + lineLength > body.length){
+                    bodies.add(Arrays.copyOf(body, length));
+                    length = 0;
+                }
+                System.arraycopy(lines[i], 0, body, length, lineLength);
+                length += lineLength;
+            }
+            bodies.add(Arrays.copyOf(body, length)); //there's always a first page, even if it has no rooms
+
+            byte[][] pages = new byte[bodies.size()][];
+            for(int page = 0; page < pages.length; page++){
+                byte[] header = (prefix + " version " + version + ", page " + (page + 1) + " of " + pages.length + "\n").getBytes(StandardCharsets.UTF_8);
+                byte[] pageBody = bodies.get(page);
+                pages[page] = Arrays.copyOf(header, header.length + pageBody.length);
+                System.arraycopy(pageBody, 0, pages[page], header.length, pageBody.length);
+            }
+            return pages;
+        }
+    }
+
+    //what a "list" request asks for
+    public static class Request {
+        long sinceVersion = -1; //-1 if the client doesn't have a version yet
+        int page = 1;
+        String game; //null for every game
+
+        //"since 12 page 2 game finger war", in any order except for the game, which is last. Unknown words are skipped.
+        public static Request parse(String arguments){
+            Request request = new Request();
+            String[] words = arguments.split(" ");
+            for(int i = 0; i < words.length; i++){
+                if(words[i].equals("game") && i + 1 < words.length){
+                    request.game = String.join(" ", Arrays.copyOfRange(words, i + 1, words.length));
+                    break;
+                }
+                if(i + 1 < words.length && (words[i].equals("since") || words[i].equals("page"))){
+                    try{
+                        long value = Long.parseLong(words[i + 1]);
+                        if(words[i].equals("since")){
+                            request.sinceVersion = value;
+                        }else{
+                            request.page = (int) Math.max(1, Math.min(value, Integer.MAX_VALUE));
+                        }
+                        i++;
+                    }catch(NumberFormatException e){
+                        //not a number, skip the word
+                    }
+                }
+            }
+            return request;
+        }
+    }
+
+    RoomRegistry rooms;
+    Federation federation; //null if the server isn't part of one
+    AtomicLong version = new AtomicLong(1);
+    volatile Snapshot snapshot;
+
+    public RoomListing(RoomRegistry rooms){
+        this.rooms = rooms;
+    }
+
+    //Something the list shows has changed. The pages are only built again when someone asks for them.
+    public void changed(){
+        version.incrementAndGet();
+    }
+
+    public long version(){
+        return version.get();
+    }
+
+    //Fill in the reply to a "list" request: one page of the listing, or "unchanged <version>" if the client already has it.
+    public void answer(Request request, Message msgToClient){
+        Snapshot current = currentSnapshot();
+        if(request.sinceVersion == current.version){
+            msgToClient.set(Opcode.UNCHANGED).putText(String.valueOf(current.version));
+            return;
+        }
+        byte[][] pages = current.pages(request.game);
+        msgToClient.set(Opcode.ROOMS).putBytes(pages[Math.min(request.page, pages.length) - 1]);
+    }
+
+    //The latest snapshot, built again first if the rooms changed since it was made. If several threads find it out of date at
+    //the same time they may all build it, which is harmless: they build the same thing.
+    Snapshot currentSnapshot(){
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if(current != null && current.version == latest){
+            return current;
+        }
+        Room[] sortedRooms = rooms.rooms().toArray(new Room[0]);
+        Arrays.sort(sortedRooms, Comparator.comparingInt(room -> room.roomId));
+        List<Federation.RemoteRoom> remoteRooms = federation == null ? List.of() : federation.remoteRooms();
+        String[] games = new String[sortedRooms.length + remoteRooms.size()];
+        byte[][] lines = new byte[games.length][];
+        for(int i = 0; i < sortedRooms.length; i++){
+            Room room = sortedRooms[i];
+            games[i] = room.serverGame;
+            lines[i] = line(room.roomId, room.serverName, room.serverGame, room.numberOfClients(), room.maxClientThreads);
+        }
+        for(int i = 0; i < remoteRooms.size(); i++){
+            Federation.RemoteRoom room = remoteRooms.get(i);
+            games[sortedRooms.length + i] = room.game;
+            lines[sortedRooms.length + i] = line(room.roomId, room.qualifiedName(), room.game, room.players, room.maxPlayers);
+        }
+        current = new Snapshot(latest, games, lines);
+        snapshot = current;
+        return current;
+    }
+
+    private static byte[] line(int roomId, String name, String game, int players, int maxPlayers){
+        return (roomId + ", name: " + name + ", game: " + game + ", players: " + players + "/" + maxPlayers + ".\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    //How many pages a listing that was received has, from its first line. 1 if it doesn't say.
+    public static int numberOfPages(String listing){
+        int of = listing.indexOf(" of ");
+        int end = listing.indexOf('\n');
+        if(of < 0 || end < of){
+            return 1;
+        }
+        try{
+            return Integer.parseInt(listing.substring(of + 4, end));
+        }catch(NumberFormatException e){
+            return 1;
+        }
+    }
+}
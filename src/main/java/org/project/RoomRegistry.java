@@ -0,0 +1,106 @@
+package org.project;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Every Room the RoomServer currently hosts. It used to be an ArrayList that the lobby searched one room at a time, and that could
+only be filled once, at startup. Rooms can now be created and closed while the server is running, from any thread, so the
+registry keeps them in concurrent maps instead:
+
+1) by name ("Room 12"), which is what clients ask for,
+2) by id, the number every room is given when it's created (the "12" of "Room 12"),
+3) by game, so that rooms of one game can be found without looking at all the others.
+
+Looking a room up is one map lookup however many rooms there are. The registry also hands out the ids of new rooms, their
+ports come from the RoomServer's PortAllocator.
+ */
+public class RoomRegistry {
+    private final ConcurrentHashMap<String, Room> byName = new ConcurrentHashMap<String, Room>();
+    private final ConcurrentHashMap<Integer, Room> byId = new ConcurrentHashMap<Integer, Room>();
+    private final ConcurrentHashMap<String, Set<Room>> byGame = new ConcurrentHashMap<String, Set<Room>>();
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    public int nextId(){
+        return nextId.getAndIncrement();
+    }
+
+    //A room is opened again with the id it had before the server was restarted: the rooms created after it get the ids after its own.
+    public void restored(int roomId){
+        nextId.accumulateAndGet(roomId + 1, Math::max);
+    }
+
+    //Returns false if there's already a room with the same name or id.
+    public boolean add(Room room){
+        if(byName.putIfAbsent(room.serverName, room) != null){
+            return false;
+        }
+        if(byId.putIfAbsent(room.roomId, room) != null){
+            byName.remove(room.serverName, room);
+            return false;
+        }
+        byGame.computeIfAbsent(room.serverGame, game -> ConcurrentHashMap.newKeySet()).add(room);
+        return true;
+    }
+
+    //Returns false if the room had already been removed.
+    public boolean remove(Room room){
+        if(!byName.remove(room.serverName, room)){
+            return false;
+        }
+        byId.remove(room.roomId, room);
+        Set<Room> roomsOfGame = byGame.get(room.serverGame);
+        if(roomsOfGame != null){
+            roomsOfGame.remove(room); //the set of the game is kept, it's likely that another room of it will come
+        }
+        return true;
+    }
+
+    //The room with that name, or with that id if it's a number. null if there isn't one.
+    public Room find(String nameOrId){
+        Room room = byName.get(nameOrId);
+        if(room != null || nameOrId.isEmpty() || nameOrId.length() > 9){
+            return room;
+        }
+        for(int i = 0; i < nameOrId.length(); i++){
+            if(!Character.isDigit(nameOrId.charAt(i))){
+                return null;
+            }
+        }
+        return byId.get(Integer.parseInt(nameOrId));
+    }
+
+    public Room findById(int roomId){
+        return byId.get(roomId);
+    }
+
+    public Set<Room> findByGame(String game){
+        Set<Room> roomsOfGame = byGame.get(game);
+        return roomsOfGame == null ? Collections.<Room>emptySet() : roomsOfGame;
+    }
+
+    //Every room, in no particular order. Rooms can be added and removed while going through it.
+    public Collection<Room> rooms(){
+        return byId.values();
+    }
+
+    //Any one of the rooms, or null if there aren't any.
+    public Room anyRoom(){
+        for(Room room: byId.values()){
+            return room;
+        }
+        return null;
+    }
+
+    public int size(){
+        return byId.size();
+    }
+
+    public boolean isEmpty(){
+        return byId.isEmpty();
+    }
+}
@@ -0,0 +1,128 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+The purpose of the RoomSelector is to let every Room of the RoomServer share one thread for receiving packets instead of
+having one blocked thread (and one UDP socket) for each client waiting in a Room. It is only used in the "multiplexed" mode.
+
+1) Each Room binds a single non-blocking DatagramChannel on its own port and registers it here. Every client of that Room
+sends its messages to that one channel, and the Room tells the clients apart using the address and port they sent from.
+
+2) The selector thread waits until any registered channel has packets, reads them into one reused buffer and hands them to
+the listener that registered the channel (the Room).
+
+3) The pinging that a RoomClientHandler used to do from its own thread is scheduled on the HeartbeatWheel, so that a
+waiting client costs an entry in a map and a timeout in the wheel instead of a socket and a thread.
+ */
+public class RoomSelector implements Runnable {
+    //Implemented by whoever owns a registered channel. Called from the selector thread, so it shouldn't block.
+    public interface DatagramListener {
+        void onDatagram(DatagramChannel channel, ByteBuffer data, SocketAddress sender);
+    }
+
+    Selector selector;
+    HeartbeatWheel heartbeats;
+    ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
+    volatile boolean running = true;
+
+    //channels can be registered from any thread, but only the selector thread can touch the selector's keys without blocking.
+    private final ConcurrentLinkedQueue<Registration> pendingRegistrations = new ConcurrentLinkedQueue<Registration>();
+
+    private static class Registration {
+        DatagramChannel channel;
+        DatagramListener listener;
+
+        Registration(DatagramChannel channel, DatagramListener listener){
+            this.channel = channel;
+            this.listener = listener;
+        }
+    }
+
+    public RoomSelector() throws IOException {
+        this.selector = Selector.open();
+        this.heartbeats = new HeartbeatWheel();
+        this.heartbeats.start();
+    }
+
+    public void register(DatagramChannel channel, DatagramListener listener){
+        pendingRegistrations.add(new Registration(channel, listener));
+        selector.wakeup(); //the selector thread may be blocked in select(), so wake it up to pick up the new channel
+    }
+
+    public void run(){
+        while(running){
+            try{
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid() || !key.isReadable()){
+                        continue;
+                    }
+                    readAll(key);
+                }
+            }catch(ClosedSelectorException e){
+                break; //close() was called
+            }catch(IOException e){
+                if(running){
+                    EventLog.console.error("room-selector", "select failed", e);
+                }
+            }
+        }
+    }
+
+    //drain every packet that's waiting on the channel, so that one busy room doesn't need a select() call per packet
+    private void readAll(SelectionKey key){
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        DatagramListener listener = (DatagramListener) key.attachment();
+        try{
+            SocketAddress sender;
+            receiveBuffer.clear();
+            while((sender = channel.receive(receiveBuffer)) != null){
+                receiveBuffer.flip();
+                listener.onDatagram(channel, receiveBuffer, sender);
+                receiveBuffer.clear();
+            }
+        }catch(IOException e){
+            //the room closed its channel while we were reading from it
+            key.cancel();
+        }
+    }
+
+    private void registerPending(){
+        Registration registration;
+        while((registration = pendingRegistrations.poll()) != null){
+            try{
+                registration.channel.configureBlocking(false);
+                registration.channel.register(selector, SelectionKey.OP_READ, registration.listener);
+            }catch(ClosedChannelException e){
+                //the room was closed before it could be registered, nothing to do
+            }catch(IOException e){
+                EventLog.console.error("room-selector", "couldn't register a room", e);
+            }
+        }
+    }
+
+    public void close(){
+        running = false;
+        heartbeats.stop();
+        try{
+            selector.close(); //wakes up select() and closes every key
+        }catch(IOException e){
+            EventLog.console.error("room-selector", "couldn't close", e);
+        }
+    }
+}
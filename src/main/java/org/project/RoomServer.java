@@ -2,181 +2,662 @@ package org.project;
 
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /*
 The purpose of this project is to provide a UDP-based waiting room for an online game. This is accomplished starting from this file.
-This project doesn't use packages outside of the current Java installation, or any other package from a package manager like Maven.
-
-1) The RoomServer object initializes a list of Rooms based on user inputs. These rooms have a limited number of allowed "connections,"
-or people who can join the rooms. Because UDP is not connection-oriented, it isn't actually a connection.
+The server itself doesn't use packages outside of the current Java installation. The only ones from Maven are JUnit, for the
+tests in src/test, and JMH, for the separate benchmarks/ module; neither is needed to run it.
+
+1) The RoomServer object initializes a list of Rooms based on user inputs, or on the templates of its ServerConfig ("rooms=...",
+from the arguments or a "config=<file>"), which are all created at once without asking anything. These rooms have a limited number of allowed "connections,"
+or people who can join the rooms. Because UDP is not connection-oriented, it isn't actually a connection. More rooms can be created
+(and rooms closed) while the server runs, with "admin" requests sent to the lobby from the server's own machine. The rooms are
+kept in a RoomRegistry.
 2) The RoomServer has its own UDP port, but it also associates its Rooms with their own UDP ports. The purpose of the RoomServer is
 to first capture all requests from Client objects over the network, and to act appropriately. It can either reply with
-a list of the Rooms in the RoomServer, or it can add the current Client that sent a request to a specific Room that they
-chose.
+a list of the Rooms in the RoomServer (kept ready to send by the RoomListing), or it can add the current Client that sent a request to a specific Room that they
+chose ("connect Room 1"), or to the best room of a game that the Matchmaker picks for them ("quick join finger war"). Each
+request is answered on its own, so the lobby never waits on any one client.
 3) Once all Room objects in the RoomServer have completed their tasks and have been terminated, the RoomServer should also terminate
-and release any ports it is using.
+and release any ports it is using. Started with the "persistent" argument, it keeps running without rooms until new ones are created.
 
 It is important to note that, because each Room is running concurrently, this is a multithreaded application and its multithreading
-aspects are handled by an ExecutorService thread pool.
+aspects are handled by an ExecutorService thread pool. Which kind of pool is decided by the ExecutionMode: platform threads, or a
+virtual thread for every Room and every client (the "virtual" argument).
+
+The ports of the rooms, and of their clients in the one-socket-per-client mode, come from a PortAllocator: a bitmap of the ports
+from the lobby's + 2 to + 999 ("ports=<first>-<last>" changes it). Ports that another program has are skipped, and when they're
+all taken the system picks one, so the number of rooms isn't limited by the range.
+
+Starting the server with "shards=<n>" receives the lobby's requests on n threads instead of one, each with its own socket on the
+lobby's port (SO_REUSEPORT), so that the requests are spread over the cores of the machine.
+
+Starting the server with "peers=<host:port>,..." makes it a node of a Federation with the lobbies listed: they gossip their
+rooms to each other, so that every lobby lists all of them, and redirects the clients that connect to a room of another node.
+
+Every packet from a source that isn't known yet (requests to the lobby, and connects to the rooms) goes through the
+AdmissionControl first: each source address gets so many bytes of replies per second, and all of them together get a global
+budget, so that a flood from one source (or from many) doesn't crowd out everyone else. "limit=<bytes per second>" and
+"budget=<bytes per second>" change them, 0 turns them off.
+
+Starting the server with "state=<file>" keeps its rooms and their waiting clients in a RoomJournal. When it's started again
+with the same file, it opens the same rooms again and goes on pinging the same clients, instead of asking for rooms.
 
-A downside to the code written is that it assumes that potentially several ranges of UDP ports are unused before allocating them. This could
-be fixed by finding a certain number of free ports using some Java functions...
+Once a room is full, its game is played by the TickEngine: one thread that ticks every game being played at a fixed rate
+("tickrate=<n>" times a second, 20 by default), takes the players' inputs and sends them the state of their game after each tick.
+
+What the server has to say goes to the EventLog, which writes it from its own thread ("log=debug" for everything the lobby is
+asked). Only the questions of the console are printed directly.
+
+Starting the server with the "multiplexed" argument avoids most of those ports: every Room serves all of its clients from its own
+port through a RoomSelector, which handles the packets of every Room on one thread.
  */
 public class RoomServer {
     private static String[] games = {"finger war"}; //we only have one game
+    static final int provisioningThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    static final int lobbyTimeoutInMS = 20000; //how long the lobby waits for a packet before it checks the rooms, and for a bare connect's room
 
-    private ArrayList<Room> roomsList = new ArrayList<Room>();
+    private RoomRegistry rooms;
+    private Matchmaker matchmaker;
+    private RoomListing listing;
+    ServerMetrics metrics;
     private ExecutorService roomThreads;
+    private String ip;
+    InetAddress bindAddress; //what the lobby, the rooms and the games are bound to, null for every address
+    long startedAt = System.nanoTime();
+
+    boolean multiplexed;
+    boolean persistent; //keep the lobby open when there aren't any rooms left
+    int lobbyShards; //how many threads receive the lobby's requests
+    RoomSelector roomSelector;
+    ExecutionMode executionMode;
+    Federation federation; //null if the server is on its own
+    RoomJournal journal; //null if the rooms aren't kept in a file
+    AdmissionControl admission;
+    ConnectCookies cookies = new ConnectCookies(); //what the rooms ask strangers for before they take them in
+    TickEngine tickEngine; //plays the games of the rooms that are full
+    PortAllocator ports; //the ports of the rooms, and of their clients in the one-socket-per-client mode
 
     public RoomServer(int serverPort){
-        String ip = "127.0.0.1";
-        int roomsStartingPort = serverPort + 2;
+        this(new ServerConfig(serverPort));
+    }
+
+    //The rooms of the config's templates are created at once, without asking anything on the console. Without templates (and
+    //without rooms to restore), the console is asked for the first rooms.
+    public RoomServer(ServerConfig config){
+        this(config, true);
+    }
 
-        createRoomThreads(roomsStartingPort, ip);
+    //A RoomServer with everything the config says. One that isn't started is only ready to have rooms: it doesn't ask for them on
+    //the console or open its lobby. Whoever creates it calls createRoom() and handleRoomThreads() itself (the benchmarks do), and
+    //shutdown() when it's done.
+    RoomServer(ServerConfig config, boolean start){
+        int serverPort = config.serverPort;
+        this.ip = config.bindAddress == null ? "127.0.0.1" : config.bindAddress.getHostAddress();
+        this.bindAddress = config.bindAddress;
+        this.lobbyShards = Math.max(1, config.lobbyShards);
+        this.multiplexed = config.multiplexed;
+        this.executionMode = config.executionMode;
+        this.persistent = config.persistent;
+        this.rooms = new RoomRegistry();
+        PortAllocator ports = config.ports();
+        this.ports = ports != null ? ports : new PortAllocator(serverPort + 2, serverPort + 1 + PortAllocator.defaultRangeSize);
+        this.matchmaker = new Matchmaker(this, rooms);
+        this.listing = new RoomListing(rooms);
+        this.metrics = new ServerMetrics(rooms);
+        this.admission = config.admission();
+        metrics.admission = admission;
+        metrics.ports = this.ports;
+        this.tickEngine = new TickEngine(serverPort + 1, config.ticksPerSecond, metrics); //the port between the lobby's and the rooms'
+        tickEngine.address = bindAddress;
+        metrics.tickEngine = tickEngine;
+        this.roomThreads = executionMode.newRoomExecutor();
+        Federation federation = config.federation();
+        if(federation != null){
+            this.federation = federation;
+            federation.serve(rooms, listing);
+        }
+
+        if(multiplexed){
+            try{
+                roomSelector = new RoomSelector();
+            }catch(IOException e){
+                EventLog.console.error("server", "couldn't open the room selector", e);
+                return;
+            }
+            new Thread(roomSelector, "room-selector").start();
+        }
+        if(start){
+            run(config);
+        }
+    }
+
+    //Open the first rooms and the lobby, and answer the lobby's requests until the server is shut down.
+    private void run(ServerConfig config){
+        int serverPort = config.serverPort;
+        RoomJournal journal = config.journal();
+        metrics.register(serverPort);
+
+        if(journal == null || restoreRooms(journal, serverPort) == 0){
+            if(config.rooms.isEmpty()){
+                createRoomThreads();
+            }else{
+                provisionRooms(config.rooms);
+            }
+        }
+        if(journal != null){
+            this.journal = journal; //whatever happens to the rooms while it starts is written after its first snapshot
+            try{
+                journal.start(rooms, multiplexed, serverPort);
+            }catch(IOException e){
+                EventLog.console.warn("server", "couldn't open " + journal.path + ", the rooms won't be kept", e.getMessage());
+                this.journal = null;
+            }
+        }
         handleRoomThreads(serverPort);
+        try{
+            tickEngine.awaitGames(); //the last rooms' games are still being played
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
 
-        System.out.println("Shutting down server...");
+        EventLog.console.info("server", "shutting down");
+        metrics.unregister(serverPort);
+        shutdown();
+    }
+
+    public void shutdown(){
         roomThreads.shutdownNow(); //make sure that all threads are closed, if some are still open for whatever reason.
+        tickEngine.close();
+        matchmaker.stop();
+        if(federation != null){
+            federation.stop();
+        }
+        if(journal != null){
+            journal.close();
+        }
+        if(roomSelector != null){
+            roomSelector.close();
+        }
     }
 
-    //Create rooms, which have ranges of ports.
-    //Must be synchronized because the roomsList value in this parent thread must be updated from a child Room thread before we interact with it
-    public synchronized void createRoomThreads(int roomsStartingPort, String ip){
+    //Create the first rooms, from the console. Each room reserves its own range of ports in the registry.
+    public void createRoomThreads(){
         System.out.println("Initializing Rooms...");
         Scanner scanner = new Scanner(System.in);
-        try{
-            int maximumNumberRooms = 3;
-            int maximumNumberPlayers = 5;
-
-            int numberOfRooms = 0;
-            System.out.println("Hello! How many rooms do you want to create? Up to "+maximumNumberRooms+".");
-            numberOfRooms = validInput(1, 3, "rooms", scanner);
-            roomThreads = Executors.newFixedThreadPool(numberOfRooms);
-
-            int numberOfPlayers = 0;
-            int currentRoom = 0;
-            String desiredGame = "";
-            for(int i = 1; i <= numberOfRooms; i++) {
-                System.out.println("What game do you want to play in room " + i + "?");
-                desiredGame = validStringInput(games, "game", scanner);
-
-                System.out.println("How many players do you want in room " + i + "? Up to " + maximumNumberPlayers + " players per room.");
-                numberOfPlayers = validInput(1, 5, "players", scanner);
-
-                System.out.println("room " + i + " has " + numberOfPlayers + " players for game '" + desiredGame + "'.");
-
-                try {
-                    int currentRoomPort = (roomsStartingPort + (i * maximumNumberPlayers));
-                    DatagramSocket roomSocket = new DatagramSocket(currentRoomPort); //each port has enough additional ports for players
-                    Room newRoom = new Room(this, roomSocket, ip, desiredGame, "Room " + i, numberOfPlayers, currentRoomPort);
-                    roomThreads.submit(newRoom);
-                    wait(); //make sure that the room is added to this class's arraylist from the child thread before continuing. Added from the thread's initializeRoom() function from run().
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+
+        int numberOfRooms = 0;
+        System.out.println("Hello! How many rooms do you want to create? More can be created later with \"admin create\".");
+        numberOfRooms = validInput(persistent ? 0 : 1, Integer.MAX_VALUE, "rooms", scanner);
+
+        int numberOfPlayers = 0;
+        String desiredGame = "";
+        for(int i = 1; i <= numberOfRooms; i++) {
+            System.out.println("What game do you want to play in room " + i + "?");
+            desiredGame = validStringInput(games, "game", scanner);
+
+            System.out.println("How many players do you want in room " + i + "?");
+            numberOfPlayers = validInput(1, Integer.MAX_VALUE, "players", scanner);
+
+            System.out.println("room " + i + " has " + numberOfPlayers + " players for game '" + desiredGame + "'.");
+            try {
+                createRoom(desiredGame, numberOfPlayers);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            roomThreads.shutdown(); //ensure that each thread terminates when it's done.
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
         //close the scanner after adding all of the rooms
         scanner.close();
     }
 
+    //The rooms of the journal, opened again on the same ports and with the same clients. Returns how many there were.
+    private int restoreRooms(RoomJournal journal, int serverPort){
+        long start = System.nanoTime();
+        Collection<RoomJournal.SavedRoom> saved;
+        try{
+            saved = journal.load(multiplexed, serverPort);
+        }catch(IOException e){
+            EventLog.console.warn("server", "couldn't read " + journal.path, e.getMessage());
+            return 0;
+        }
+        for(RoomJournal.SavedRoom room: saved){
+            rooms.restored(room.roomId); //before any of them takes a new id
+        }
+        int restored = 0;
+        for(RoomJournal.SavedRoom room: saved){
+            try{
+                openRoom(room.roomId, room.name, room.game, room.maxPlayers, null, room.serverPort, room.clients.values());
+                restored++;
+            }catch(IOException e){
+                EventLog.console.warn(room.name, "couldn't be opened again", e.getMessage());
+            }
+        }
+        if(restored > 0){
+            EventLog.console.info("server", "restored " + restored + " rooms and " + RoomJournal.numberOfClients(saved) + " waiting players from "
+                    + journal.path, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        return restored;
+    }
+
+    //Create the rooms of the templates all at once: every room's socket is bound and the room is registered and started by one of
+    //provisioningThreads threads, instead of one room after the other. Their ids are taken in the order of the templates first,
+    //so "Room 1" is always the first room of the first template. Returns how many rooms were opened.
+    int provisionRooms(List<ServerConfig.RoomTemplate> templates){
+        long start = System.nanoTime();
+        List<Callable<Room>> openings = new ArrayList<Callable<Room>>();
+        for(ServerConfig.RoomTemplate template: templates){
+            if(!contains(games, template.game)){
+                EventLog.console.warn("server", template.game + " isn't in the list of games, its rooms aren't created", template);
+                continue;
+            }
+            for(int i = 0; i < template.count; i++){
+                int roomId = rooms.nextId();
+                openings.add(() -> openRoom(roomId, "Room " + roomId, template.game, template.players, template.address, 0, List.of()));
+            }
+        }
+        if(openings.isEmpty()){
+            return 0;
+        }
+        ExecutorService openers = Executors.newFixedThreadPool(Math.min(openings.size(), provisioningThreads));
+        int opened = 0;
+        try{
+            for(Future<Room> room: openers.invokeAll(openings)){
+                try{
+                    room.get();
+                    opened++;
+                }catch(ExecutionException e){
+                    EventLog.console.warn("server", "couldn't create a room", e.getCause().getMessage());
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally{
+            openers.shutdown();
+        }
+        EventLog.console.info("server", "created " + opened + " of " + openings.size() + " rooms",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return opened;
+    }
+
+    //Create a room and start its thread. Can be called from any thread, at any time.
+    //The room is in the registry before its thread starts, so the lobby can send clients to it right away: their packets wait
+    //in the room's socket until the room reads them.
+    public Room createRoom(String game, int numberOfPlayers) throws IOException {
+        int roomId = rooms.nextId();
+        return openRoom(roomId, "Room " + roomId, game, numberOfPlayers, null, 0, List.of());
+    }
+
+    //A room on the port the PortAllocator gives it, or on roomPort if it isn't 0 (a restored room). It's bound to address, or to
+    //the server's bindAddress if that's null.
+    private Room openRoom(int roomId, String name, String game, int numberOfPlayers, InetAddress address, int roomPort,
+                          Collection<RoomJournal.SavedClient> savedClients) throws IOException {
+        if(address == null){
+            address = bindAddress;
+        }
+        if(roomPort != 0 && !ports.claim(roomPort)){
+            throw new IOException("port " + roomPort + " is taken");
+        }
+        Room newRoom;
+        try{
+            if(multiplexed){
+                //the room's clients all use this one port
+                DatagramChannel roomChannel = roomPort == 0 ? ports.openChannel(address) : DatagramChannel.open();
+                try{
+                    if(roomPort == 0){
+                        roomPort = roomChannel.socket().getLocalPort();
+                    }else{
+                        roomChannel.bind(new InetSocketAddress(address, roomPort));
+                    }
+                    roomChannel.configureBlocking(false);
+                }catch(IOException e){
+                    roomChannel.close();
+                    throw e;
+                }
+                newRoom = new Room(this, roomChannel, address == null ? ip : address.getHostAddress(), game, name, numberOfPlayers, roomPort);
+            }else{
+                //the ports of its players come from the PortAllocator too, as they join
+                DatagramSocket roomSocket = roomPort == 0 ? ports.openSocket(address) : new DatagramSocket(new InetSocketAddress(address, roomPort));
+                roomPort = roomSocket.getLocalPort();
+                newRoom = new Room(this, roomSocket, address == null ? ip : address.getHostAddress(), game, name, numberOfPlayers, roomPort);
+            }
+        }catch(IOException e){
+            ports.free(roomPort);
+            throw e;
+        }
+        newRoom.roomId = roomId;
+        newRoom.bindAddress = address;
+        addRoom(newRoom);
+        newRoom.restoreClients(savedClients);
+        roomThreads.submit(newRoom);
+        return newRoom;
+    }
+
     //Handle requests to the roomserver, offering different rooms to connect to and returning the port of the desired room.
     //When all rooms are closed, this function will also shut down the server.
+    //With more than one lobby shard, each shard is a thread with its own socket bound to the same port with SO_REUSEPORT, so the
+    //kernel spreads the clients over them. A client always lands on the same socket, so each shard keeps its own LobbySessions.
+    //If the system can't do that, the shards all receive from one socket and share their sessions instead.
     public void handleRoomThreads(int serverPort){
+        MessageSocket[] lobbySockets = new MessageSocket[lobbyShards];
+        LobbySessions[] lobbySessions = new LobbySessions[lobbyShards];
         try{
-            System.out.println("Starting server...");
-            DatagramSocket roomServerSocket = new DatagramSocket(serverPort);
-            boolean receivingRequests = true;
-            byte[] receiveBuffer = new byte[1024];
-            byte[] sendBuffer = new byte[0];
-            DatagramPacket dgPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            String msgFromClient = "";
-            String msgToClient = "";
-            int timeBeforeTimeout = 20000;
-
-            //blocking loop: one client at a time. Waits at receiveString() because .receive() is a blocking function
-            int latestClientPort;
-            InetAddress latestClientAddress;
-
-
-            while(receivingRequests && roomsList.size() >= 1){
-                if(roomsList.size() <= 2){ //so that we don't waste too many resources, only check if the rooms are closed if there are less than 3 rooms.
-                    roomServerSocket.setSoTimeout(timeBeforeTimeout);
+            openLobby(serverPort, lobbyShards > 1 && supportsReusePort(), lobbySockets, lobbySessions);
+            for(MessageSocket lobbySocket: lobbySockets){
+                lobbySocket.setSoTimeout(lobbyTimeoutInMS); //so that the server can check if the rooms are still open
+            }
+            if(federation != null){
+                federation.start(lobbySockets[0].socket); //the peers know us by the lobby's port, so we gossip from it
+            }
+        }catch(IOException e){
+            EventLog.console.error("lobby", "couldn't open port " + serverPort, e);
+            for(MessageSocket lobbySocket: lobbySockets){
+                if(lobbySocket != null){
+                    lobbySocket.close();
                 }
+            }
+            return;
+        }
+        metrics.readyInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        EventLog.console.info("server", "ready, " + rooms.size() + " rooms and the lobby on port " + serverPort, metrics.readyInMillis + " ms");
+
+        Thread[] shards = new Thread[lobbyShards - 1];
+        for(int i = 0; i < shards.length; i++){
+            MessageSocket lobbySocket = lobbySockets[i + 1]; //the first one is served by this thread
+            LobbySessions sessions = lobbySessions[i + 1];
+            shards[i] = new Thread(() -> serveLobby(lobbySocket, sessions), "lobby-shard-" + (i + 2));
+            shards[i].start();
+        }
+        serveLobby(lobbySockets[0], lobbySessions[0]);
+        for(Thread shard: shards){
+            try{
+                shard.join(); //the other shards notice that the rooms are gone at their next timeout
+            }catch(InterruptedException e){
+                break;
+            }
+        }
+
+        //after all rooms are closed, shutdown.
+        for(MessageSocket lobbySocket: lobbySockets){
+            lobbySocket.close();
+        }
+    }
+
+    //Fill in a socket and the LobbySessions of every shard: a socket and sessions each with reusePort, one socket and one table
+    //of sessions for all of them without it.
+    void openLobby(int serverPort, boolean reusePort, MessageSocket[] lobbySockets, LobbySessions[] lobbySessions) throws IOException {
+        if(reusePort){
+            for(int i = 0; i < lobbySockets.length; i++){
+                DatagramSocket socket = new DatagramSocket(null);
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(new InetSocketAddress(bindAddress, serverPort));
+                lobbySockets[i] = new MessageSocket(socket);
+                lobbySessions[i] = new LobbySessions(lobbyTimeoutInMS); //clients that still have to send the name of their room
+            }
+        }else{
+            DatagramSocket socket = new DatagramSocket(new InetSocketAddress(bindAddress, serverPort));
+            LobbySessions sharedSessions = new LobbySessions(lobbyTimeoutInMS);
+            for(int i = 0; i < lobbySockets.length; i++){
+                lobbySockets[i] = new MessageSocket(socket); //a MessageSocket for each thread, they have their own buffers
+                lobbySessions[i] = sharedSessions;
+            }
+        }
+    }
+
+    static boolean supportsReusePort() throws IOException {
+        try(DatagramSocket socket = new DatagramSocket(null)){
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    //The loop of one lobby shard. Every request is answered as soon as it arrives, so one client that is slow to answer doesn't
+    //hold up everyone else.
+    private void serveLobby(MessageSocket roomServerSocket, LobbySessions lobbySessions){
+        Message msgFromClient;
+        Message msgToClient = new Message();
+        InetSocketAddress latestClientAddress;
+
+        //Waits at receive() because .receive() is a blocking function
+        while(persistent || !rooms.isEmpty()){
+            try{
                 try{
-                    msgFromClient = receiveString(roomServerSocket, dgPacket, receiveBuffer); //wait 20 seconds
+                    msgFromClient = roomServerSocket.receive(); //wait 20 seconds
                 }catch(SocketTimeoutException e){
                     //We use socket timeouts to allow our server to check if rooms are still open
+                    lobbySessions.expire();
                     continue;
                 }
-                if(msgFromClient.equals("list")){ //if client wants to see all rooms
-                    System.out.println("Received request to list");
-                    latestClientAddress = dgPacket.getAddress();
-                    latestClientPort = dgPacket.getPort();
-
-                    msgToClient = returnRoomsString();
-                    sendString(roomServerSocket, dgPacket, sendBuffer, msgToClient, latestClientAddress, latestClientPort);
+                if(!admission.admit(roomServerSocket.senderAddress())){
+                    continue; //too much from there, or from everyone. Dropped before it costs anything else.
                 }
-                if(msgFromClient.equals("connect")){ //if client wants to connect to a room
-
-                    System.out.println("Received request to connect");
-                    latestClientAddress = dgPacket.getAddress();
-                    latestClientPort = dgPacket.getPort();
-
-                    //add a try catch for socket timeout in case someone a client lists and then tries to connect but doesn't specify a room
-                    try {
-                        //await client response. Client response must be a room listed.
-                        while(!contains(roomsList, (msgFromClient = receiveString(roomServerSocket, dgPacket, receiveBuffer)))){
-                            msgToClient = "That isn't a room listed. For example, the first room listed is " + roomsList.get(1).serverName + ".";
-                            sendString(roomServerSocket, dgPacket, sendBuffer, msgToClient, latestClientAddress, latestClientPort);
-                            //loop back to the above while condition to see if the response is correct.
-                        }
-                    }catch(SocketTimeoutException e){
-                        System.out.println("Client didn't respond to connect");
-                        continue;
-                    }
+                latestClientAddress = new InetSocketAddress(roomServerSocket.senderAddress(), roomServerSocket.senderPort());
+                if(handleLobbyRequest(msgFromClient, msgToClient, latestClientAddress, lobbySessions)){
+                    roomServerSocket.send(msgToClient, latestClientAddress.getAddress(), latestClientAddress.getPort());
+                    admission.charge(latestClientAddress.getAddress(), MessageCodec.headerLength + msgToClient.payload.limit());
+                }
+            }catch(IOException e){
+                EventLog.console.error("lobby", "couldn't receive", e);
+                return;
+            }
+        }
+    }
 
-                    //now send a string of the port of the room requested.
-                    Room desiredRoom = findRoom(roomsList, msgFromClient);
-                    msgToClient = String.valueOf(desiredRoom.serverPort);
-                    sendString(roomServerSocket, dgPacket, sendBuffer, msgToClient, latestClientAddress, latestClientPort);
+    //Answer one request to the lobby. Returns true if msgToClient has been filled in with a reply that should be sent back.
+    //Nothing here waits for another packet: a client that connects in two steps has its first step remembered in lobbySessions.
+    public boolean handleLobbyRequest(Message msgFromClient, Message msgToClient, InetSocketAddress clientAddress, LobbySessions lobbySessions){
+        if(msgFromClient.is(Opcode.LIST)){ //if client wants to see all rooms
+            EventLog.console.debug("lobby", "list", clientAddress);
+            metrics.listRequests.increment();
+            msgToClient.replyTo(msgFromClient, Opcode.ROOMS);
+            listing.answer(RoomListing.Request.parse(msgFromClient.getText()), msgToClient);
+            return true;
+        }
+        if(msgFromClient.is(Opcode.CONNECT)){ //if client wants to connect to a room
+            EventLog.console.debug("lobby", "connect", clientAddress);
+            metrics.connectRequests.increment();
+            if(msgFromClient.payload.limit() == 0){
+                //an older client: the name of the room will come in the next packet.
+                if(!lobbySessions.start(clientAddress, Opcode.CONNECT)){
+                    EventLog.console.debug("lobby", "too many unfinished connects, dropped", clientAddress);
                 }
+                return false;
+            }
+            return connectToRoom(msgFromClient, msgToClient, msgFromClient.getText(), clientAddress, lobbySessions);
+        }
+        if(msgFromClient.is(Opcode.QUICK_JOIN)){ //if client wants the lobby to pick a room of a game for them
+            EventLog.console.debug("lobby", "quick join", clientAddress);
+            metrics.quickJoinRequests.increment();
+            return quickJoin(msgFromClient, msgToClient, msgFromClient.getText(), clientAddress, lobbySessions);
+        }
+        if(msgFromClient.is(Opcode.STATS)){
+            if(!clientAddress.getAddress().isLoopbackAddress()){
+                return false; //the answer is much bigger than the request, so it's not sent to just anyone
+            }
+            metrics.statsRequests.increment();
+            msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText(handleStatsRequest(msgFromClient.getText()));
+            return true;
+        }
+        if(msgFromClient.is(Opcode.ADMIN)){
+            if(!clientAddress.getAddress().isLoopbackAddress()){
+                return false; //only the server's own machine can change its rooms
+            }
+            EventLog.console.info("lobby", "admin request", msgFromClient.getText());
+            msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText(handleAdminRequest(msgFromClient.getText()));
+            return true;
+        }
+        if(msgFromClient.is(Opcode.GOSSIP)){
+            if(federation != null){
+                federation.onGossip(msgFromClient, clientAddress);
+            }
+            return false; //gossip is never answered
+        }
+        if(msgFromClient.is(Opcode.TEXT)){
+            LobbySessions.LobbySession session = lobbySessions.find(clientAddress);
+            if(session != null && session.awaiting == Opcode.CONNECT){
+                return connectToRoom(msgFromClient, msgToClient, msgFromClient.getText(), clientAddress, lobbySessions);
+            }
+        }
+        return false; //not a request to the lobby, ignore it
+    }
+
+    //Reply with the port of the room requested. If the name isn't a room listed, the client can try again with another name.
+    //A room of another node of the Federation is answered with a redirect to that node's lobby.
+    private boolean connectToRoom(Message msgFromClient, Message msgToClient, String roomName, InetSocketAddress clientAddress, LobbySessions lobbySessions){
+        Room desiredRoom = rooms.find(federation == null ? roomName : federation.localName(roomName));
+        if(desiredRoom == null && federation != null){
+            Federation.RemoteRoom remoteRoom = federation.find(roomName);
+            if(remoteRoom != null){
+                lobbySessions.finish(clientAddress);
+                metrics.redirects.increment();
+                msgToClient.replyTo(msgFromClient, Opcode.REDIRECT).putText(remoteRoom.node + " " + remoteRoom.name);
+                return true;
             }
+        }
+        if(desiredRoom == null){
+            Room anyRoom = rooms.anyRoom();
+            if(anyRoom == null){
+                return false;
+            }
+            msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText("That isn't a room listed. For example, one of the rooms listed is " + anyRoom.serverName + ".");
+            return true;
+        }
+        lobbySessions.finish(clientAddress);
+        msgToClient.replyTo(msgFromClient, Opcode.PORT).putInt(desiredRoom.serverPort);
+        return true;
+    }
 
-            //after all rooms are closed, shutdown.
-            roomServerSocket.close();
+    //Reply with the port of the fullest room of the game that still has a seat, creating a room if there isn't one.
+    private boolean quickJoin(Message msgFromClient, Message msgToClient, String game, InetSocketAddress clientAddress, LobbySessions lobbySessions){
+        if(!contains(games, game)){
+            msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText(game + " isn't in the list of games.");
+            return true;
+        }
+        Room room;
+        try{
+            room = matchmaker.quickJoin(game);
         }catch(IOException e){
-            e.printStackTrace();
+            msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText("Couldn't find a room: " + e.getMessage());
+            return true;
         }
+        if(room == null){
+            msgToClient.replyTo(msgFromClient, Opcode.TEXT).putText("Every room of " + game + " is full, and the new ones are still waiting for players. Try again in a few seconds.");
+            return true;
+        }
+        lobbySessions.finish(clientAddress);
+        msgToClient.replyTo(msgFromClient, Opcode.PORT).putInt(room.serverPort);
+        return true;
     }
 
-    //inputs: port of server, maximum number of players per room, maximum number of rooms
-    public static void main(String[] args){
-        if(args.length == 0){
-            RoomServer roomServer = new RoomServer(38950);
+    //A page of every metric of the server ("", "page 2"), or of the round-trip time and jitter of every client of one room
+    //("Room 2", "Room 2 page 2"). Both can take more than one datagram, so they're sent a page at a time.
+    public String handleStatsRequest(String arguments){
+        String roomName = arguments.strip();
+        int page = 1;
+        int at = roomName.lastIndexOf("page ");
+        if(at == 0 || (at > 0 && roomName.charAt(at - 1) == ' ')){
+            try{
+                page = Integer.parseInt(roomName.substring(at + "page ".length()).strip());
+                roomName = roomName.substring(0, at).strip();
+            }catch(NumberFormatException e){
+                //it's part of the room's name
+            }
+        }
+        return ServerMetrics.page(statsText(roomName), page);
+    }
+
+    private String statsText(String roomName){
+        if(roomName.isEmpty()){
+            if(federation != null){
+                return metrics.report() + "federation: " + federation.numberOfNodes() + " nodes, " + federation.remoteRooms().size() + " rooms on the others\n";
+            }
+            return metrics.report();
+        }
+        Room room = rooms.find(roomName);
+        if(room == null){
+            return "There isn't a room " + roomName + ".";
         }
+        StringBuilder sb = new StringBuilder();
+        sb.append(room.serverName).append(": ").append(room.numberOfClients()).append("/").append(room.maxClientThreads).append(" players\n");
+        for(RoomClientHandler client: room.clients){
+            sb.append("client ").append(client.sessionId).append(" at port ").append(client.clientPort)
+                    .append(": rtt us ").append(Math.max(0, client.smoothedRttInNanos) / 1000)
+                    .append(", jitter us ").append(client.jitterInNanos / 1000).append("\n");
+        }
+        return sb.toString();
     }
 
-    public void sendString(DatagramSocket socket, DatagramPacket dgPacket, byte[] sendBuffer, String msg, InetAddress clientAddress, int clientPort) throws IOException {
-        sendBuffer = msg.getBytes();
-        dgPacket = new DatagramPacket(sendBuffer, sendBuffer.length, clientAddress, clientPort);
-        socket.send(dgPacket);
+    //"create <players> <game>" or "close <room name or id>". Returns what to tell whoever sent it.
+    public String handleAdminRequest(String request){
+        if(request.startsWith("create ")){
+            String[] arguments = request.substring("create ".length()).split(" ", 2);
+            int numberOfPlayers;
+            try{
+                numberOfPlayers = Integer.parseInt(arguments[0]);
+            }catch(NumberFormatException e){
+                numberOfPlayers = 0;
+            }
+            if(numberOfPlayers < 1 || arguments.length < 2){
+                return "Usage: admin create <players> <game>";
+            }
+            if(!contains(games, arguments[1])){
+                return arguments[1] + " isn't in the list of games.";
+            }
+            try{
+                Room room = createRoom(arguments[1], numberOfPlayers);
+                return "Created " + room.serverName + " at port " + room.serverPort + ".";
+            }catch(IOException e){
+                return "Couldn't create the room: " + e.getMessage();
+            }
+        }
+        if(request.startsWith("close ")){
+            Room room = rooms.find(request.substring("close ".length()));
+            if(room == null){
+                return "There isn't a room " + request.substring("close ".length()) + ".";
+            }
+            room.close();
+            return "Closing " + room.serverName + ".";
+        }
+        return "Usage: admin create <players> <game> | admin close <room>";
     }
-    public String receiveString(DatagramSocket socket, DatagramPacket dgPacket, byte[] receiveBuffer) throws IOException{
-        socket.receive(dgPacket);
-        String receivedData = new String(dgPacket.getData(), 0, dgPacket.getLength());
-        return receivedData;
+
+    //inputs: port of server, maximum number of players per room, maximum number of rooms
+    //"multiplexed": one port and no thread per waiting client. "virtual": run the rooms and their clients on virtual threads.
+    //"persistent": don't shut down when the last room is closed. "shards=<n>": receive lobby requests on n threads.
+    //"port=<n>": the lobby's port. "peers=<host:port>,...": the lobbies of the other nodes of a Federation. "host=<address>": the
+    //address of this server that they reach it at. "state=<file>": keep the rooms in a journal, and open them again from it.
+    //"limit=<bytes per second>" and "budget=<bytes per second>": what each source, and all of them together, get out of the server.
+    //"tickrate=<n>": how many times a second the games are ticked. "ports=<first>-<last>": the ports of the rooms and their
+    //clients, "ports=0" to let the system pick them all. "log=<debug|info|warn|error>": what the EventLog writes.
+    //"config=<file>": read the arguments from a file, one on each line. "rooms=<count>x<players>[@<address>] <game>": create
+    //these rooms at once instead of asking for them. "bind=<address>": listen on that address only. See ServerConfig.
+    public static void main(String[] args){
+        ServerConfig config;
+        try{
+            config = ServerConfig.parse(args);
+        }catch(IOException e){
+            System.out.println("Couldn't read the config: " + e.getMessage());
+            return;
+        }catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            System.out.println(ServerConfig.usage);
+            return;
+        }
+        RoomServer roomServer = new RoomServer(config);
     }
 
     public int validInput(int atLeast, int atMost, String thing, Scanner scanner){
@@ -204,18 +685,6 @@ public class RoomServer {
         return desiredThing;
     }
 
-    public String returnRoomsString(){
-        StringBuilder sb = new StringBuilder();
-        int i = 1;
-
-        sb.append("Available rooms:\n");
-        for(Room room:roomsList){
-            sb.append( + i + ", name: "+room.serverName+", game: "+room.serverGame+".\n");
-            i++;
-        }
-        return sb.toString();
-    }
-
     public boolean contains(String[] list, String string){
         for(int i =0; i < list.length; i++){
             if(string.equals(list[i])){
@@ -225,33 +694,52 @@ public class RoomServer {
         return false;
     }
 
-    public boolean contains(ArrayList<Room> list, String string){
-        for(int i =0; i <= list.size(); i++){
-            if(string.equals(list.get(i).serverName)){ //all the names of the roomsList
-                return true;
-            }
+    //Rooms call these when someone joins or leaves them: the list shows how many players they have, and the journal who they are.
+    public void clientJoined(Room room, RoomClientHandler client){
+        listing.changed();
+        if(journal != null){
+            journal.clientJoined(room, client);
         }
-        return false;
     }
 
-    public Room findRoom(ArrayList<Room> list, String roomName){
-        for(int i =0; i <= list.size(); i++){
-            if(list.get(i).serverName.equals(roomName)){
-                return list.get(i);
-            }
+    //the client sends from another address now. Written as if it joined again, which replaces where it was.
+    public void clientMoved(Room room, RoomClientHandler client){
+        metrics.clientsMoved.increment();
+        if(journal != null){
+            journal.clientJoined(room, client);
+        }
+    }
+
+    public void clientLeft(Room room, RoomClientHandler client){
+        listing.changed();
+        if(journal != null){
+            journal.clientLeft(room, client);
         }
-        return null;
     }
 
     //A child room thread will call this function so that they're removed from the list.
     public void removeRoom(Room room){
-        System.out.println("Closing room " + room.serverName);
+        if(!rooms.remove(room)){
+            return;
+        }
+        listing.changed();
+        if(journal != null){
+            journal.roomClosed(room);
+        }
+        EventLog.console.info(room.serverName, "closing");
         room.serverSocket.close();
-        roomsList.remove(room);
+        ports.free(room.serverPort);
     }
 
-    public synchronized void addRoom(Room room){
-        roomsList.add(room);
-        notify(); //notifies the createRoomsThread function at the end of the loop
+    public void addRoom(Room room){
+        if(!rooms.add(room)){
+            room.serverSocket.close();
+            ports.free(room.serverPort);
+            throw new IllegalStateException("There's already a room named " + room.serverName);
+        }
+        listing.changed();
+        if(journal != null){
+            journal.roomOpened(room);
+        }
     }
 }
@@ -0,0 +1,256 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/*
+Everything a RoomServer is started with, from its arguments and from a config file. The server used to ask for its first rooms
+on the console, one question at a time, so it couldn't be started by a script, and it always listened on every address.
+
+1) "config=<file>" reads the arguments from a file, one on each line, as if they had been given where "config=" is: the
+arguments after it override the file's. Empty lines, and lines starting with '#', are skipped.
+2) "rooms=<count>x<players> <game>" is a RoomTemplate: count rooms of game, for that many players each. There can be as many
+as needed, "rooms=200x4 finger war" and "rooms=20x8 finger war" make 220 rooms. A template can give the rooms their own
+address, "rooms=50x4@10.0.0.2 finger war". When there are templates the console isn't asked for anything, and the server
+creates all of their rooms at once (see RoomServer.provisionRooms()).
+3) "bind=<address>" is the address the lobby, the rooms and the games are bound to, instead of every address.
+
+The EventLog is the whole process's, so "log=" is set as soon as it's read, like before. Everything else is only this server's.
+
+An argument that isn't one of these, or whose value doesn't make sense, is an IllegalArgumentException that says which one it
+is (and where, in a config file), and RoomServer.main() prints it with the usage instead of starting. A config file that
+names itself, or a file that names it back, is one too.
+ */
+public class ServerConfig {
+    static final String usage = "Usage: RoomServer [multiplexed] [virtual] [persistent] [port=<n>] [shards=<n>] [bind=<address>]\n"
+            + "    [rooms=<count>x<players>[@<address>] <game>]... [config=<file>] [ports=<first>-<last>|0] [tickrate=<n>]\n"
+            + "    [limit=<bytes per second>] [budget=<bytes per second>] [state=<file>] [log=<debug|info|warn|error>]\n"
+            + "    [peers=<host:port>,...] [host=<address>] [gossipkey=<secret>]";
+
+    //count rooms of a game, with the same number of players
+    public static class RoomTemplate {
+        int count;
+        int players;
+        String game;
+        InetAddress address; //null to use the server's
+
+        public RoomTemplate(int count, int players, String game, InetAddress address){
+            this.count = count;
+            this.players = players;
+            this.game = game;
+            this.address = address;
+        }
+
+        //"200x4 finger war" or "200x4@10.0.0.2 finger war"
+        public static RoomTemplate parse(String template) throws UnknownHostException {
+            String[] sizeAndGame = template.strip().split(" ", 2);
+            String[] sizeAndAddress = sizeAndGame[0].split("@", 2);
+            String[] countAndPlayers = sizeAndAddress[0].split("x", 2);
+            if(sizeAndGame.length < 2 || countAndPlayers.length < 2){
+                throw new IllegalArgumentException("Usage: rooms=<count>x<players>[@<address>] <game>, not rooms=" + template);
+            }
+            int count = Integer.parseInt(countAndPlayers[0]);
+            int players = Integer.parseInt(countAndPlayers[1]);
+            if(count < 0 || players < 1){
+                throw new IllegalArgumentException("A room needs at least one player, and there can't be less than 0 of them: rooms=" + template);
+            }
+            InetAddress address = sizeAndAddress.length < 2 ? null : InetAddress.getByName(sizeAndAddress[1]);
+            return new RoomTemplate(count, players, sizeAndGame[1].strip(), address);
+        }
+
+        public String toString(){
+            return count + "x" + players + (address == null ? "" : "@" + address.getHostAddress()) + " " + game;
+        }
+    }
+
+    int serverPort = 38950;
+    boolean multiplexed = false;
+    ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    boolean persistent = false;
+    int lobbyShards = 1;
+    String host = "127.0.0.1"; //what the other nodes of a Federation reach us at
+    InetAddress bindAddress; //null for every address
+    List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+    String gossipKey; //what the nodes of a Federation sign their gossip with, null to only take a node's gossip from itself
+    Path statePath; //where the RoomJournal keeps the rooms, null if they aren't kept
+    long sourceLimit = AdmissionControl.defaultSourceBytesPerSecond;
+    long globalBudget = AdmissionControl.defaultGlobalBytesPerSecond;
+    String portRange;
+    int ticksPerSecond = TickEngine.defaultTicksPerSecond; //of the games
+    List<RoomTemplate> rooms = new ArrayList<RoomTemplate>();
+    private final Deque<Path> reading = new ArrayDeque<Path>(); //the config files being read, each one from the one before it
+
+    public ServerConfig(){
+    }
+
+    //everything as it is by default, with the lobby on this port
+    public ServerConfig(int serverPort){
+        this.serverPort = serverPort;
+    }
+
+    //The arguments of RoomServer.main(), and of the config files they name.
+    public static ServerConfig parse(String[] args) throws IOException {
+        ServerConfig config = new ServerConfig();
+        for(String arg: args){
+            config.set(arg);
+        }
+        return config;
+    }
+
+    //One argument, from the command line or a line of a config file.
+    public void set(String arg) throws IOException {
+        try{
+            apply(arg);
+        }catch(NumberFormatException e){
+            throw new IllegalArgumentException("Not a number in " + arg, e);
+        }catch(UnknownHostException e){
+            throw new IllegalArgumentException("Unknown address in " + arg, e);
+        }
+    }
+
+    private void apply(String arg) throws IOException {
+        if(arg.equals("multiplexed")){
+            multiplexed = true;
+        }else if(arg.equals("virtual")){
+            executionMode = ExecutionMode.VIRTUAL;
+        }else if(arg.equals("persistent")){
+            persistent = true;
+        }else if(arg.startsWith("config=")){
+            read(Path.of(arg.substring("config=".length())));
+        }else if(arg.startsWith("rooms=")){
+            rooms.add(RoomTemplate.parse(arg.substring("rooms=".length())));
+        }else if(arg.startsWith("bind=")){
+            bindAddress = InetAddress.getByName(arg.substring("bind=".length()));
+        }else if(arg.startsWith("shards=")){
+            lobbyShards = atLeast(1, Integer.parseInt(arg.substring("shards=".length())), arg);
+        }else if(arg.startsWith("port=")){
+            serverPort = port(Integer.parseInt(arg.substring("port=".length())), arg);
+        }else if(arg.startsWith("host=")){
+            host = arg.substring("host=".length());
+        }else if(arg.startsWith("state=")){
+            statePath = Path.of(arg.substring("state=".length()));
+        }else if(arg.startsWith("limit=")){
+            sourceLimit = atLeast(0, Long.parseLong(arg.substring("limit=".length())), arg);
+        }else if(arg.startsWith("budget=")){
+            globalBudget = atLeast(0, Long.parseLong(arg.substring("budget=".length())), arg);
+        }else if(arg.startsWith("ports=")){
+            portRange = arg.substring("ports=".length());
+            String[] ends = portRange.split("-");
+            if(ends.length == 2){
+                if(port(Integer.parseInt(ends[0].strip()), arg) > port(Integer.parseInt(ends[1].strip()), arg)){
+                    throw new IllegalArgumentException("The first port comes after the last one: " + arg);
+                }
+            }else if(!portRange.equals("0")){
+                throw new IllegalArgumentException("Usage: ports=<first>-<last> or ports=0, not " + arg);
+            }
+        }else if(arg.startsWith("log=")){
+            String level = arg.substring("log=".length()).toUpperCase();
+            try{
+                EventLog.console.level = EventLog.Level.valueOf(level);
+            }catch(IllegalArgumentException e){
+                throw new IllegalArgumentException("Usage: log=<debug|info|warn|error>, not " + arg);
+            }
+        }else if(arg.startsWith("tickrate=")){
+            ticksPerSecond = atLeast(1, Integer.parseInt(arg.substring("tickrate=".length())), arg);
+        }else if(arg.startsWith("gossipkey=")){
+            gossipKey = arg.substring("gossipkey=".length());
+            if(gossipKey.isEmpty()){
+                throw new IllegalArgumentException("gossipkey= needs a secret");
+            }
+        }else if(arg.startsWith("peers=")){
+            for(String peer: arg.substring("peers=".length()).split(",")){
+                if(peer.lastIndexOf(':') < 0){
+                    throw new IllegalArgumentException("Usage: peers=<host:port>,..., not " + arg);
+                }
+                InetSocketAddress node = Federation.parseNode(peer);
+                if(node.isUnresolved()){
+                    throw new IllegalArgumentException("Unknown address in " + arg);
+                }
+                peers.add(node);
+            }
+        }else{
+            throw new IllegalArgumentException("Unknown argument: " + arg);
+        }
+    }
+
+    private static int port(int port, String arg){
+        if(port < 1 || port > 65535){
+            throw new IllegalArgumentException("Not a port in " + arg);
+        }
+        return port;
+    }
+
+    private static int atLeast(int least, int value, String arg){
+        return (int) atLeast(least, (long) value, arg);
+    }
+
+    private static long atLeast(long least, long value, String arg){
+        if(value < least){
+            throw new IllegalArgumentException("It has to be at least " + least + ": " + arg);
+        }
+        return value;
+    }
+
+    private void read(Path file) throws IOException {
+        Path real = file.toRealPath();
+        if(reading.contains(real)){
+            throw new IllegalArgumentException("config=" + file + " includes itself");
+        }
+        reading.push(real);
+        try{
+            readLines(file);
+        }finally{
+            reading.pop();
+        }
+    }
+
+    private void readLines(Path file) throws IOException {
+        int lineNumber = 0;
+        for(String line: Files.readAllLines(file)){
+            lineNumber++;
+            line = line.strip();
+            if(line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            try{
+                set(line);
+            }catch(IllegalArgumentException e){
+                throw new IllegalArgumentException(file + ", line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public Federation federation(){
+        return peers.isEmpty() ? null : new Federation(host + ":" + serverPort, peers, gossipKey);
+    }
+
+    //nothing is opened until the server starts, so a "state=" that another one overrides never touches its file
+    public RoomJournal journal(){
+        return statePath == null ? null : new RoomJournal(statePath);
+    }
+
+    public AdmissionControl admission(){
+        return new AdmissionControl(sourceLimit, globalBudget);
+    }
+
+    public PortAllocator ports(){
+        return portRange == null ? null : PortAllocator.parse(portRange);
+    }
+
+    //how many rooms the templates make
+    public int numberOfRooms(){
+        int total = 0;
+        for(RoomTemplate template: rooms){
+            total += template.count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,298 @@
+package org.project;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+Everything the RoomServer counts and measures while it runs, so that what happens under load (how many requests, how long
+clients wait, how many are lost) can be seen without attaching a profiler:
+
+1) how many requests the lobby answered, of each kind,
+2) the round-trip time of every ping and the jitter of each client (how much its round-trip time changes from one ping to the
+next), as LatencyHistograms,
+3) how long it takes from a client joining a room to its game starting, and from a room being created to it being full,
+4) how many pings were missed, how many clients were dropped for missing too many, and how the start handshake went,
+5) how many packets the AdmissionControl dropped,
+6) how many games the TickEngine is playing, and how late its ticks are,
+7) how many of the PortAllocator's ports are in use, and how many it had to ask the system for.
+
+They can be read through JMX (see ServerMetricsMBean), or by sending "stats" to the lobby from the server's own machine. Counters
+are LongAdders, so the threads that count the same thing at the same time don't fight over one variable.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    static final int pageHeaderLength = 32; //room for "stats: page <int> of <int>\n"
+
+    RoomRegistry rooms;
+    AdmissionControl admission; //counts what it drops itself
+    TickEngine tickEngine; //knows how many games are being played
+    PortAllocator ports; //knows how many ports are in use
+    volatile long readyInMillis = -1; //from the server's creation to its lobby being open with its first rooms
+    private Thread registration; //with JMX
+
+    LongAdder listRequests = new LongAdder();
+    LongAdder connectRequests = new LongAdder();
+    LongAdder quickJoinRequests = new LongAdder();
+    LongAdder statsRequests = new LongAdder();
+    LongAdder redirects = new LongAdder(); //connects to a room of another node of the Federation
+    LongAdder cookiesSent = new LongAdder(); //connects to a room that were answered with a cookie instead of a seat
+    LongAdder badCookies = new LongAdder(); //connects to a room with a cookie that wasn't the one of their address (or was too old)
+
+    LongAdder missedPings = new LongAdder();
+    LongAdder heartbeatTimeouts = new LongAdder(); //clients dropped for missing too many pings in a row
+    LongAdder startRetransmits = new LongAdder(); //"done" sent again because it wasn't acked in time
+    LongAdder startAckTimeouts = new LongAdder(); //clients dropped because they never acked "done"
+    LongAdder gamesStarted = new LongAdder();
+    LongAdder clientsMoved = new LongAdder(); //waiting clients found by their session token at another address
+    LongAdder gamesFinished = new LongAdder();
+    LongAdder ticksSkipped = new LongAdder(); //ticks of a game that the TickEngine was too busy to run at all
+
+    LatencyHistogram rttInMicros = new LatencyHistogram();
+    LatencyHistogram jitterInMicros = new LatencyHistogram();
+    LatencyHistogram joinToStartInMillis = new LatencyHistogram();
+    LatencyHistogram roomFillInMillis = new LatencyHistogram();
+    LatencyHistogram tickLatenessInMicros = new LatencyHistogram(); //how long after it was due each tick of a game ran
+
+    public ServerMetrics(RoomRegistry rooms){
+        this.rooms = rooms;
+    }
+
+    //Make the metrics visible through JMX. A second server in the same process (on another port) gets its own name.
+    //Starting the platform's MBean server takes a few hundred ms, so it's done on a thread of its own while the server opens its
+    //rooms and its lobby.
+    public void register(int serverPort){
+        registration = new Thread(() -> {
+            try{
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.project:type=ServerMetrics,port=" + serverPort));
+            }catch(JMException e){
+                EventLog.console.warn("server", "couldn't register the metrics with JMX", e.getMessage());
+            }
+        }, "jmx-registration");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    public void unregister(int serverPort){
+        if(registration != null){
+            try{
+                registration.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName("org.project:type=ServerMetrics,port=" + serverPort));
+        }catch(JMException e){
+            //it was never registered
+        }
+    }
+
+    //A client answered a ping: its round-trip time, and its jitter after this ping.
+    public void pingAnswered(long rttInNanos, long jitterInNanos){
+        rttInMicros.record(rttInNanos / 1000);
+        jitterInMicros.record(jitterInNanos / 1000);
+    }
+
+    //The text of a report, cut at the end of a line into pages that each fit in one datagram with their header ("stats: page 1
+    //of 2"), the same way RoomListing pages the rooms. A page past the last one is the last one.
+    public static String page(String report, int page){
+        int bodyLength = RoomListing.pageLength - pageHeaderLength;
+        List<String> pages = new ArrayList<String>();
+        StringBuilder body = new StringBuilder();
+        int length = 0; //of the body, in bytes: names of rooms aren't always ASCII
+        for(String line: report.split("\n")){
+            int lineLength = line.getBytes(StandardCharsets.UTF_8).length + 1;
+            if(lineLength > bodyLength){
+                line = line.substring(0, Math.min(line.length(), bodyLength / 4)); //never more than a page, even in 4-byte characters
+                lineLength = line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+            if(length + lineLength > bodyLength){
+                pages.add(body.toString());
+                body.setLength(0);
+                length = 0;
+            }
+            body.append(line).append('\n');
+            length += lineLength;
+        }
+        pages.add(body.toString());
+        int index = Math.max(1, Math.min(page, pages.size()));
+        return "stats: page " + index + " of " + pages.size() + "\n" + pages.get(index - 1);
+    }
+
+    //What "stats" answers, a page at a time (see page()): with the percentiles of every histogram, it doesn't fit in one datagram.
+    public String report(){
+        return "requests: list " + listRequests.sum() + ", connect " + connectRequests.sum() + ", quick join " + quickJoinRequests.sum()
+                + ", stats " + statsRequests.sum() + ", redirected " + redirects.sum() + "\n"
+                + "rooms: " + rooms.size() + ", ready in ms " + readyInMillis + ", games started " + gamesStarted.sum() + ", playing " + getGamesPlaying()
+                + ", finished " + gamesFinished.sum() + ", ticks skipped " + ticksSkipped.sum() + "\n"
+                + "pings: missed " + missedPings.sum() + ", clients timed out " + heartbeatTimeouts.sum() + ", clients moved " + clientsMoved.sum() + "\n"
+                + "start: retransmits " + startRetransmits.sum() + ", clients that never acked " + startAckTimeouts.sum() + "\n"
+                + "ports: in use " + getPortsInUse() + ", taken by others " + getPortsTakenByOthers() + ", picked by the system "
+                + getPortsFromSystem() + "\n"
+                + "log: sampled out " + getLogEventsSampledOut() + ", dropped " + getLogEventsDropped() + "\n"
+                + "cookies: sent " + cookiesSent.sum() + ", bad " + badCookies.sum() + "\n"
+                + "dropped: over their source's limit " + getDroppedOverSourceLimit() + ", over the global budget " + getDroppedOverGlobalBudget() + "\n"
+                + "rtt us: " + rttInMicros.summary() + "\n"
+                + "jitter us: " + jitterInMicros.summary() + "\n"
+                + "join to start ms: " + joinToStartInMillis.summary() + "\n"
+                + "room fill ms: " + roomFillInMillis.summary() + "\n"
+                + "tick lateness us: " + tickLatenessInMicros.summary() + "\n";
+    }
+
+    public long getRedirects(){
+        return redirects.sum();
+    }
+
+    public long getCookiesSent(){
+        return cookiesSent.sum();
+    }
+
+    public long getBadCookies(){
+        return badCookies.sum();
+    }
+
+    public long getDroppedOverSourceLimit(){
+        return admission == null ? 0 : admission.overSourceLimit.sum();
+    }
+
+    public long getDroppedOverGlobalBudget(){
+        return admission == null ? 0 : admission.overGlobalBudget.sum();
+    }
+
+    public long getListRequests(){
+        return listRequests.sum();
+    }
+
+    public long getConnectRequests(){
+        return connectRequests.sum();
+    }
+
+    public long getQuickJoinRequests(){
+        return quickJoinRequests.sum();
+    }
+
+    public long getStatsRequests(){
+        return statsRequests.sum();
+    }
+
+    public long getMissedPings(){
+        return missedPings.sum();
+    }
+
+    public long getHeartbeatTimeouts(){
+        return heartbeatTimeouts.sum();
+    }
+
+    public long getStartRetransmits(){
+        return startRetransmits.sum();
+    }
+
+    public long getStartAckTimeouts(){
+        return startAckTimeouts.sum();
+    }
+
+    public long getClientsMoved(){
+        return clientsMoved.sum();
+    }
+
+    public long getGamesStarted(){
+        return gamesStarted.sum();
+    }
+
+    public int getGamesPlaying(){
+        return tickEngine == null ? 0 : tickEngine.running.get();
+    }
+
+    public long getGamesFinished(){
+        return gamesFinished.sum();
+    }
+
+    public long getTicksSkipped(){
+        return ticksSkipped.sum();
+    }
+
+    public int getPortsInUse(){
+        return ports == null ? 0 : ports.inUse();
+    }
+
+    public long getPortsTakenByOthers(){
+        return ports == null ? 0 : ports.takenByOthers.sum();
+    }
+
+    public long getPortsFromSystem(){
+        return ports == null ? 0 : ports.fromSystem.sum();
+    }
+
+    //the events the console's EventLog didn't keep, because it was falling behind
+    public long getLogEventsSampledOut(){
+        return EventLog.console.sampledOut.sum();
+    }
+
+    public long getLogEventsDropped(){
+        return EventLog.console.dropped.sum();
+    }
+
+    public long getReadyInMillis(){
+        return readyInMillis;
+    }
+
+    public int getRooms(){
+        return rooms.size();
+    }
+
+    public long getRttP50Micros(){
+        return rttInMicros.percentile(50);
+    }
+
+    public long getRttP99Micros(){
+        return rttInMicros.percentile(99);
+    }
+
+    public long getRttP999Micros(){
+        return rttInMicros.percentile(99.9);
+    }
+
+    public long getRttMaxMicros(){
+        return rttInMicros.max();
+    }
+
+    public long getJitterP50Micros(){
+        return jitterInMicros.percentile(50);
+    }
+
+    public long getJitterP99Micros(){
+        return jitterInMicros.percentile(99);
+    }
+
+    public long getJoinToStartP50Millis(){
+        return joinToStartInMillis.percentile(50);
+    }
+
+    public long getJoinToStartP99Millis(){
+        return joinToStartInMillis.percentile(99);
+    }
+
+    public long getRoomFillP50Millis(){
+        return roomFillInMillis.percentile(50);
+    }
+
+    public long getRoomFillP99Millis(){
+        return roomFillInMillis.percentile(99);
+    }
+
+    public long getTickLatenessP50Micros(){
+        return tickLatenessInMicros.percentile(50);
+    }
+
+    public long getTickLatenessP99Micros(){
+        return tickLatenessInMicros.percentile(99);
+    }
+
+    public String getReport(){
+        return report();
+    }
+}
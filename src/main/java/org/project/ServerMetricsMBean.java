@@ -0,0 +1,49 @@
+package org.project;
+
+/*
+What the ServerMetrics show through JMX (jconsole, VisualVM...), under org.project:type=ServerMetrics,port=<lobby port>.
+Latencies are in microseconds, except for the ones that take as long as people do, which are in milliseconds.
+ */
+public interface ServerMetricsMBean {
+    long getListRequests();
+    long getConnectRequests();
+    long getQuickJoinRequests();
+    long getStatsRequests();
+    long getRedirects();
+    long getCookiesSent();
+    long getBadCookies();
+    long getDroppedOverSourceLimit();
+    long getDroppedOverGlobalBudget();
+
+    long getMissedPings();
+    long getHeartbeatTimeouts();
+    long getStartRetransmits();
+    long getStartAckTimeouts();
+    long getClientsMoved();
+    long getGamesStarted();
+    int getGamesPlaying();
+    long getGamesFinished();
+    long getTicksSkipped();
+    int getRooms();
+    long getReadyInMillis();
+    int getPortsInUse();
+    long getPortsTakenByOthers();
+    long getPortsFromSystem();
+    long getLogEventsSampledOut();
+    long getLogEventsDropped();
+
+    long getRttP50Micros();
+    long getRttP99Micros();
+    long getRttP999Micros();
+    long getRttMaxMicros();
+    long getJitterP50Micros();
+    long getJitterP99Micros();
+    long getJoinToStartP50Millis();
+    long getJoinToStartP99Millis();
+    long getRoomFillP50Millis();
+    long getRoomFillP99Millis();
+    long getTickLatenessP50Micros();
+    long getTickLatenessP99Micros();
+
+    String getReport();
+}
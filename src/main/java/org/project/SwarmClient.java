@@ -0,0 +1,502 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+A load generator: thousands of Clients playing at once, without anyone typing on a console. Every player is a Client of its
+own, with its own socket, that goes through decideRoom(), connectToRoom() and waitForGame() like any other, on a virtual thread.
+
+1) The players arrive at a fixed rate, and stay until their game starts, until they drop out, or until they give up. A room
+that never fills up (because some of its players were lost on the way) would otherwise keep its players, and the swarm, forever.
+2) Each of them picks its room the same way: "quick join <game>", a random room of the list that still has free seats, or
+always the same room.
+3) Any packet a player sends or receives can be lost on purpose, and some players can leave their room before it's full.
+4) Some players can switch to a new socket while they wait, as if their NAT had given them another port, and resume() in their
+room with their session token.
+
+Once their game starts, the players play it to its end, tapping at random like any Client.
+
+At the end (and every 5 seconds before that) it reports how long it took to join a room, how many of the heartbeats (and of the
+snapshots of the games) were lost, and how many rooms were filled per second. Lost heartbeats and snapshots are counted from
+the gaps in their sequence numbers, so they're only counted in the binary protocol, which is what the players talk unless
+they're told "text".
+
+Every player has an open socket, so the number of open files has to allow for as many players as there are waiting at once.
+
+With "async", the players are AsyncClients that all share one ClientLoop instead of having a thread each. They join, wait and
+play the same way, but they don't lose packets, drop out or switch sockets on purpose: loss, dropout and rebind are ignored.
+
+Usage: SwarmClient [players=<n>] [rate=<players per second>] [join=quick:<game> | random | <room name>] [loss=<0 to 1>]
+                   [dropout=<0 to 1>] [rebind=<0 to 1>] [patience=<seconds>] [server=<host>] [port=<lobby port>] [text]
+                   [async]
+Any other argument, or a value that doesn't make sense ("players=abc", "loss=2"), is refused with this usage, like the
+RoomServer does, instead of the swarm starting with something else than what was asked.
+ */
+public class SwarmClient extends Client {
+    static final int dropOutWithinInMS = 30000; //a player that drops out leaves at some point in that long after joining
+    static final int rebindWithinInMS = 10000; //a player that switches sockets does it at some point in that long after joining
+    static final int sameRoomWindowInMS = 10000; //games started in the same room port that close together are the same room
+    static final int reportIntervalInMS = 5000;
+    static final String usage = "Usage: SwarmClient [players=<n>] [rate=<players per second>] [join=quick:<game> | random | <room name>]\n"
+            + "    [loss=<0 to 1>] [dropout=<0 to 1>] [rebind=<0 to 1>] [patience=<seconds>] [server=<host>] [port=<lobby port>]\n"
+            + "    [text] [async]";
+
+    //what every player does
+    static int players = 100;
+    static double arrivalsPerSecond = 10;
+    static String join = "quick:finger war";
+    static double loss = 0;
+    static double dropOut = 0;
+    static double rebind = 0;
+    static int patienceInMS = 60000; //how long a player waits in a room before it gives up
+
+    //what happened to all of them
+    static final LatencyHistogram joinLatencyInMicros = new LatencyHistogram();
+    static final LongAdder joined = new LongAdder();
+    static final LongAdder gamesStarted = new LongAdder();
+    static final LongAdder droppedOut = new LongAdder();
+    static final LongAdder gaveUp = new LongAdder();
+    static final LongAdder failed = new LongAdder();
+    static final LongAdder pingsReceived = new LongAdder();
+    static final LongAdder pingsLost = new LongAdder();
+    static final LongAdder roomsFilled = new LongAdder();
+    static final LongAdder resumed = new LongAdder();
+    static final LongAdder resumesFailed = new LongAdder();
+    static final LongAdder gamesFinished = new LongAdder();
+    static final LongAdder snapshotsReceived = new LongAdder();
+    static final LongAdder snapshotsLost = new LongAdder();
+    static final AtomicInteger waiting = new AtomicInteger();
+    static final AtomicInteger playing = new AtomicInteger();
+    static final ConcurrentHashMap<Integer, Long> roomFilledAt = new ConcurrentHashMap<>();
+    static volatile long lastGameStartedAt;
+
+    long arrivedAt;
+    long leaveAt = 0; //when this player leaves its room if the game hasn't started yet
+    boolean dropsOut = false;
+    long rebindAt = 0; //when this player switches to a new socket, 0 if it doesn't (anymore)
+    int lastPingSequence = -1;
+    int lastSnapshotSequence = -1;
+    boolean left = false;
+
+    SwarmClient(boolean binary, InetAddress serverAddress, int serverPort){
+        super(binary, serverAddress, serverPort);
+    }
+
+    //One player, from its arrival to its game or its leaving.
+    void arrive(){
+        arrivedAt = System.nanoTime();
+        play();
+        if(gameStarted){
+            if(gameOver){
+                gamesFinished.increment();
+            }
+        }else if(left){
+            (dropsOut ? droppedOut : gaveUp).increment();
+        }else{
+            failed.increment();
+        }
+    }
+
+    //All the players of a room start their game within a few seconds of each other: count the room once.
+    static void filledRoom(int roomPort){
+        long now = System.nanoTime();
+        lastGameStartedAt = now;
+        roomFilledAt.compute(roomPort, (port, filledAt) -> {
+            if(filledAt == null || now - filledAt > TimeUnit.MILLISECONDS.toNanos(sameRoomWindowInMS)){
+                roomsFilled.increment();
+                return now;
+            }
+            return filledAt;
+        });
+    }
+
+    @Override
+    MessageSocket openSocket() throws IOException {
+        return new LossySocket(new DatagramSocket());
+    }
+
+    @Override
+    void log(Object message){
+        //thousands of players printing every ping would only measure the console
+    }
+
+    //One player that's an AsyncClient on the swarm's ClientLoop: no thread of its own, and no blocking socket.
+    static void arrive(ClientLoop loop, InetSocketAddress lobby, CountDownLatch finished) throws IOException {
+        long arrivedAt = System.nanoTime();
+        AsyncClient player = new AsyncClient(loop, lobby);
+        player.onGameStart(() -> {
+            waiting.decrementAndGet();
+            playing.incrementAndGet();
+            gamesStarted.increment();
+            filledRoom(player.room.getPort());
+        }).onState(snapshot -> {
+            snapshotsReceived.increment();
+            int tapped = ThreadLocalRandom.current().nextInt(2);
+            if(tapped > 0){
+                player.input(String.valueOf(tapped));
+            }
+        });
+        CompletableFuture<InetSocketAddress> seat;
+        if(join.startsWith("quick:")){
+            seat = player.quickJoin(join.substring("quick:".length()));
+        }else if(join.equals("random")){
+            seat = player.listRooms().thenCompose(rooms -> {
+                String room = pickRoom(rooms);
+                return player.join(room == null ? "Room 1" : room);
+            });
+        }else{
+            seat = player.join(join);
+        }
+        seat.whenComplete((room, error) -> {
+            if(error != null){
+                player.close(); //the listing never came, ended() hasn't heard of it
+                return;
+            }
+            joinLatencyInMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - arrivedAt));
+            joined.increment();
+            waiting.incrementAndGet();
+            CompletableFuture.delayedExecutor(patienceInMS, TimeUnit.MILLISECONDS).execute(player::leave);
+        });
+        player.ended().whenComplete((lastSnapshot, error) -> {
+            if(player.gameStarted){
+                playing.decrementAndGet();
+            }else if(player.room != null){
+                waiting.decrementAndGet();
+            }
+            if(error == null){
+                gamesFinished.increment();
+            }else if(error instanceof CancellationException && !player.gameStarted && player.room != null){
+                gaveUp.increment();
+            }else{
+                failed.increment();
+            }
+            pingsReceived.add(player.pings);
+            pingsLost.add(player.pingsLost);
+            snapshotsLost.add(player.snapshotsLost);
+            player.close();
+            finished.countDown();
+        });
+    }
+
+    @Override
+    String chooseRoom(String rooms){
+        if(join.startsWith("quick:")){
+            return "quick join " + join.substring("quick:".length());
+        }
+        if(!join.equals("random")){
+            return join;
+        }
+        String room = pickRoom(rooms);
+        if(room == null){
+            //every room is full for now. Wait a little before asking for one, so that we don't flood the lobby.
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            List<String> allRooms = roomNames(rooms, false);
+            room = allRooms.isEmpty() ? "Room 1" : allRooms.get(ThreadLocalRandom.current().nextInt(allRooms.size()));
+        }
+        return room;
+    }
+
+    //A random room of the listing that still has free seats, null if there isn't any.
+    static String pickRoom(String rooms){
+        List<String> freeRooms = roomNames(rooms, true);
+        return freeRooms.isEmpty() ? null : freeRooms.get(ThreadLocalRandom.current().nextInt(freeRooms.size()));
+    }
+
+    static List<String> roomNames(String rooms, boolean onlyFree){
+        //"12, name: Room 12, game: finger war, players: 1/4."
+        List<String> names = new ArrayList<>();
+        for(String line: rooms.split("\n")){
+            int name = line.indexOf(", name: ");
+            int game = line.indexOf(", game: ");
+            int seats = line.lastIndexOf(", players: ");
+            if(name < 0 || game < name || seats < game){
+                continue;
+            }
+            String[] players = line.substring(seats + ", players: ".length(), line.length() - 1).split("/");
+            if(!onlyFree || Integer.parseInt(players[0]) < Integer.parseInt(players[1])){
+                names.add(line.substring(name + ", name: ".length(), game));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public int connectToRoom(MessageSocket clientSocket, InetAddress receiverAddress, int roomPort) throws IOException {
+        int roomClientPort = super.connectToRoom(clientSocket, receiverAddress, roomPort);
+        if(roomClientPort != 0){
+            joinLatencyInMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - arrivedAt));
+            joined.increment();
+            int stayInMS = patienceInMS;
+            if(dropOut > 0 && ThreadLocalRandom.current().nextDouble() < dropOut){
+                stayInMS = Math.min(stayInMS, ThreadLocalRandom.current().nextInt(dropOutWithinInMS));
+                dropsOut = true;
+            }
+            leaveAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stayInMS);
+            if(rebind > 0 && binary && ThreadLocalRandom.current().nextDouble() < rebind){
+                rebindAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextInt(rebindWithinInMS));
+            }
+        }
+        return roomClientPort;
+    }
+
+    @Override
+    public void waitForGame(MessageSocket clientSocket, InetAddress receiverAddress, int roomClientPort) throws IOException {
+        waiting.incrementAndGet();
+        try{
+            super.waitForGame(clientSocket, receiverAddress, roomClientPort);
+        }finally{
+            waiting.decrementAndGet();
+        }
+    }
+
+    //counted as soon as it starts, the game itself can take a while
+    @Override
+    public void playGame(MessageSocket clientSocket, InetAddress receiverAddress, int roomClientPort) throws IOException {
+        gamesStarted.increment();
+        filledRoom(roomPort);
+        playing.incrementAndGet();
+        try{
+            super.playGame(clientSocket, receiverAddress, roomClientPort);
+        }finally{
+            playing.decrementAndGet();
+        }
+    }
+
+    @Override
+    boolean wantsToLeave(){
+        left = System.nanoTime() - leaveAt >= 0;
+        return left;
+    }
+
+    @Override
+    boolean wantsNewSocket(){
+        if(rebindAt == 0 || System.nanoTime() - rebindAt < 0){
+            return false;
+        }
+        rebindAt = 0;
+        return true;
+    }
+
+    @Override
+    public boolean resume(InetAddress receiverAddress, int roomClientPort) throws IOException {
+        boolean resumedHere = super.resume(receiverAddress, roomClientPort);
+        (resumedHere ? resumed : resumesFailed).increment();
+        return resumedHere;
+    }
+
+    //the room numbers its pings to us one after the other, a gap is pings that never got here
+    @Override
+    void gotPing(Message ping){
+        if(!ping.binary || !ping.is(Opcode.PING)){
+            return;
+        }
+        pingsReceived.increment();
+        if(lastPingSequence >= 0 && ping.sequence - lastPingSequence > 1){
+            pingsLost.add(ping.sequence - lastPingSequence - 1);
+        }
+        lastPingSequence = ping.sequence;
+    }
+
+    //the sequence number of a snapshot is its tick, a gap is snapshots that never got here
+    @Override
+    void gotState(Message state){
+        if(!state.binary){
+            return;
+        }
+        snapshotsReceived.increment();
+        if(lastSnapshotSequence >= 0 && state.sequence - lastSnapshotSequence > 1){
+            snapshotsLost.add(state.sequence - lastSnapshotSequence - 1);
+        }
+        lastSnapshotSequence = state.sequence;
+    }
+
+    //A MessageSocket that loses a share of the packets it sends and receives.
+    static class LossySocket extends MessageSocket {
+        LossySocket(DatagramSocket socket){
+            super(socket);
+        }
+
+        static boolean lost(){
+            return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+        }
+
+        @Override
+        public Message receive() throws IOException {
+            Message msg;
+            do{
+                msg = super.receive();
+            }while(lost());
+            return msg;
+        }
+
+        @Override
+        public void send(Message msg, InetAddress address, int port) throws IOException {
+            if(!lost()){
+                super.send(msg, address, port);
+            }
+        }
+    }
+
+    static String report(long startedAt, boolean last){
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        long received = pingsReceived.sum();
+        long lost = pingsLost.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%.1fs: %d joined, %d waiting, %d games started, %d playing, %d finished, %d dropped out, %d gave up, %d failed%n",
+                seconds, joined.sum(), waiting.get(), gamesStarted.sum(), playing.get(), gamesFinished.sum(), droppedOut.sum(), gaveUp.sum(), failed.sum()));
+        if(last){
+            double fillSeconds = lastGameStartedAt == 0 ? 0 : (lastGameStartedAt - startedAt) / 1e9;
+            sb.append("join latency (us): ").append(joinLatencyInMicros.summary()).append("\n");
+            sb.append(String.format("heartbeats: %d received, %d lost (%.2f%%)%n", received, lost,
+                    received + lost == 0 ? 0.0 : 100.0 * lost / (received + lost)));
+            long snapshots = snapshotsReceived.sum();
+            sb.append(String.format("snapshots: %d received, %d lost (%.2f%%)%n", snapshots, snapshotsLost.sum(),
+                    snapshots + snapshotsLost.sum() == 0 ? 0.0 : 100.0 * snapshotsLost.sum() / (snapshots + snapshotsLost.sum())));
+            if(rebind > 0){
+                sb.append(String.format("new sockets: %d resumed, %d failed%n", resumed.sum(), resumesFailed.sum()));
+            }
+            sb.append(String.format("rooms filled: %d in %.1fs (%.2f per second)", roomsFilled.sum(), fillSeconds,
+                    fillSeconds == 0 ? 0.0 : roomsFilled.sum() / fillSeconds));
+        }
+        return sb.toString().strip();
+    }
+
+    public static void main(String[] args){
+        try{
+            swarm(args);
+        }catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            System.out.println(usage);
+        }catch(IOException | InterruptedException e){
+            e.printStackTrace();
+        }
+    }
+
+    private static double number(String arg, String name){
+        try{
+            return Double.parseDouble(arg.substring(name.length()));
+        }catch(NumberFormatException e){
+            throw new IllegalArgumentException("Not a number in " + arg);
+        }
+    }
+
+    private static int whole(String arg, String name){
+        try{
+            return Integer.parseInt(arg.substring(name.length()));
+        }catch(NumberFormatException e){
+            throw new IllegalArgumentException("Not a whole number in " + arg);
+        }
+    }
+
+    //the value, if it makes sense for the argument
+    private static double check(double value, boolean makesSense, String what, String arg){
+        if(!makesSense){
+            throw new IllegalArgumentException(what + ", not " + arg);
+        }
+        return value;
+    }
+
+    static void swarm(String[] args) throws IOException, InterruptedException {
+        boolean binary = true;
+        boolean async = false;
+        InetAddress serverAddress = InetAddress.getLoopbackAddress();
+        int serverPort = 38950;
+        for(String arg: args){
+            if(arg.startsWith("players=")){
+                int n = whole(arg, "players=");
+                players = (int) check(n, n >= 1, "There has to be at least one player", arg);
+            }else if(arg.startsWith("rate=")){
+                double rate = number(arg, "rate=");
+                arrivalsPerSecond = check(rate, rate > 0 && !Double.isInfinite(rate), "The rate has to be more than 0", arg);
+            }else if(arg.startsWith("join=")){
+                join = arg.substring("join=".length());
+                if(join.isEmpty() || join.equals("quick:")){
+                    throw new IllegalArgumentException("join= needs a game, \"random\" or a room: " + arg);
+                }
+            }else if(arg.startsWith("loss=")){
+                double p = number(arg, "loss=");
+                loss = check(p, p >= 0 && p <= 1, "loss= is from 0 to 1", arg);
+            }else if(arg.startsWith("dropout=")){
+                double p = number(arg, "dropout=");
+                dropOut = check(p, p >= 0 && p <= 1, "dropout= is from 0 to 1", arg);
+            }else if(arg.startsWith("rebind=")){
+                double p = number(arg, "rebind=");
+                rebind = check(p, p >= 0 && p <= 1, "rebind= is from 0 to 1", arg);
+            }else if(arg.startsWith("patience=")){
+                int seconds = whole(arg, "patience=");
+                patienceInMS = (int) check(seconds, seconds >= 1 && seconds <= Integer.MAX_VALUE / 1000, "patience= is at least a second", arg) * 1000;
+            }else if(arg.startsWith("server=")){
+                try{
+                    serverAddress = InetAddress.getByName(arg.substring("server=".length()));
+                }catch(UnknownHostException e){
+                    throw new IllegalArgumentException("Unknown address in " + arg);
+                }
+            }else if(arg.startsWith("port=")){
+                int port = whole(arg, "port=");
+                serverPort = (int) check(port, port >= 1 && port <= 65535, "port= is from 1 to 65535", arg);
+            }else if(arg.equals("text")){
+                binary = false;
+            }else if(arg.equals("async")){
+                async = true;
+            }else{
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        System.out.println(players + " players at " + arrivalsPerSecond + " per second, join=" + join + ", loss=" + loss
+                + ", dropout=" + dropOut + ", rebind=" + rebind + ", patience=" + patienceInMS / 1000 + "s, " + (binary || async ? "binary" : "text") + " protocol"
+                + (async ? ", async clients on one loop" : ""));
+
+        ClientLoop loop = async ? new ClientLoop() : null;
+        InetSocketAddress lobby = new InetSocketAddress(serverAddress, serverPort);
+        CountDownLatch finished = new CountDownLatch(players);
+        long startedAt = System.nanoTime();
+        long nextReportAt = startedAt + TimeUnit.MILLISECONDS.toNanos(reportIntervalInMS);
+        for(int i = 0; i < players; i++){
+            //player i arrives i / rate seconds after the first one, however long starting the others took
+            long arrival = startedAt + (long) (i * 1e9 / arrivalsPerSecond);
+            long now;
+            while((now = System.nanoTime()) < arrival){
+                LockSupport.parkNanos(Math.min(arrival, nextReportAt) - now);
+                if(System.nanoTime() >= nextReportAt){
+                    System.out.println(report(startedAt, false));
+                    nextReportAt += TimeUnit.MILLISECONDS.toNanos(reportIntervalInMS);
+                }
+            }
+            if(loop != null){
+                arrive(loop, lobby, finished);
+                continue;
+            }
+            SwarmClient player = new SwarmClient(binary, serverAddress, serverPort);
+            Thread.ofVirtual().name("player-" + i).start(() -> {
+                try{
+                    player.arrive();
+                }finally{
+                    finished.countDown();
+                }
+            });
+        }
+        while(!finished.await(Math.max(nextReportAt - System.nanoTime(), 0), TimeUnit.NANOSECONDS)){
+            System.out.println(report(startedAt, false));
+            nextReportAt += TimeUnit.MILLISECONDS.toNanos(reportIntervalInMS);
+        }
+        System.out.println(report(startedAt, true));
+        if(loop != null){
+            loop.close();
+        }
+    }
+}
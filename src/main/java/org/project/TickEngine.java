@@ -0,0 +1,264 @@
+package org.project;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Where the games are played once their room is full. Room.startGame() used to be the end of it: the clients heard "done", and
+that was all. Now the players that acked "done" are handed over to the TickEngine, which plays their room's Game with them.
+
+1) Every game is a GameSession, and they're all run by one thread, on one non-blocking channel on the port after the lobby's
+(or any free port, if that one is taken). Clients don't need to be told the port: the first snapshot comes from it, and they
+send their inputs back to where the snapshots come from.
+2) Every session ticks the engine's ticks times a second (its server's "tickrate="), from when it started. The sessions wait
+in a queue ordered by when their next tick is due, and the thread sleeps until the first one is, or until an input comes in.
+A tick is due at a fixed time after the one before it, not after the thread got around to it, so being late once doesn't make
+every tick after it late. A session that's more than a whole tick behind (the thread was busy with too many) skips the ticks
+it missed instead of catching up with a burst of them.
+3) Inputs are read as they come in and given to their game right away: the next tick sees all of them.
+4) After every tick, the snapshot of the game is sent to every player, encoded once for each protocol like a RoomBroadcast.
+The sequence number of a binary snapshot is its tick, so a client can tell that it missed some. Every second, each player is
+also told which one it is: "game <player> <players> <ticks per second> <game>".
+5) When the game is over, its last snapshot is sent for another second, in case the first ones are lost, and the session is
+dropped.
+
+Only the engine's thread touches the sessions once they've started, so nothing in them is locked. Starting the thread and
+binding the channel wait for the first game, so a server whose rooms never fill never opens them.
+ */
+public class TickEngine implements Runnable {
+    public static final int defaultTicksPerSecond = 20;
+
+    int port;
+    InetAddress address; //null for every address
+    int ticks; //per second, of this engine
+    long tickInNanos;
+    ServerMetrics metrics;
+    DatagramChannel channel;
+    Selector selector;
+    Thread thread;
+    volatile boolean closed = false;
+    AtomicInteger running = new AtomicInteger(); //the games that were started and aren't over yet
+
+    private final ConcurrentLinkedQueue<GameSession> starting = new ConcurrentLinkedQueue<GameSession>();
+    private final PriorityQueue<GameSession> schedule = new PriorityQueue<GameSession>((a, b) -> Long.signum(a.nextTickAt - b.nextTickAt));
+    private final HashMap<SocketAddress, GameSession.Player> players = new HashMap<SocketAddress, GameSession.Player>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    private final ByteBuffer textBuffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    private final ByteBuffer binaryBuffer = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    private final Message received = new Message();
+    private final Message msg = new Message();
+
+    public TickEngine(int port, int ticksPerSecond, ServerMetrics metrics){
+        this.port = port;
+        this.ticks = Math.max(1, ticksPerSecond);
+        this.tickInNanos = TimeUnit.SECONDS.toNanos(1) / ticks;
+        this.metrics = metrics;
+    }
+
+    //Play the room's game with these clients. Called by the room's thread once they've acked "done".
+    public void start(Room room, List<RoomClientHandler> clients){
+        if(clients.isEmpty()){
+            return;
+        }
+        Game game = Game.create(room.serverGame);
+        if(game == null){
+            EventLog.console.warn(room.serverName, "was full, but there's no game called " + room.serverGame + " to play");
+            return;
+        }
+        GameSession session = new GameSession(room, game, clients, ticks);
+        synchronized(this){
+            if(closed || (thread == null && !open())){
+                return;
+            }
+            running.incrementAndGet();
+        }
+        starting.add(session);
+        selector.wakeup();
+    }
+
+    private boolean open(){
+        try{
+            selector = Selector.open();
+            channel = DatagramChannel.open();
+            try{
+                channel.bind(new InetSocketAddress(address, port));
+            }catch(IOException e){
+                channel.bind(new InetSocketAddress(address, 0)); //the clients find it by where the snapshots come from, any port will do
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }catch(IOException e){
+            EventLog.console.warn("games", "couldn't open the port the games are played on", e.getMessage());
+            close();
+            return false;
+        }
+        EventLog.console.info("games", "played on port " + channel.socket().getLocalPort(), ticks + " ticks per second");
+        thread = new Thread(this, "tick-engine");
+        thread.start();
+        return true;
+    }
+
+    public void run(){
+        while(!closed){
+            try{
+                GameSession session;
+                while((session = starting.poll()) != null){
+                    session.nextTickAt = System.nanoTime() + tickInNanos;
+                    for(GameSession.Player player: session.players){
+                        players.put(player.address, player);
+                    }
+                    schedule.add(session);
+                }
+
+                while((session = schedule.peek()) != null && System.nanoTime() - session.nextTickAt >= 0){
+                    schedule.poll();
+                    tick(session);
+                }
+
+                //sleep until the next tick is due, or an input comes in. select() only counts in milliseconds, so the last one is parked.
+                long waitInNanos = session == null ? TimeUnit.SECONDS.toNanos(1) : session.nextTickAt - System.nanoTime();
+                if(waitInNanos >= 1_000_000){
+                    selector.select(waitInNanos / 1_000_000);
+                }else if(waitInNanos > 0){
+                    LockSupport.parkNanos(waitInNanos);
+                    selector.selectNow();
+                }
+                selector.selectedKeys().clear();
+                readInputs();
+            }catch(ClosedSelectorException e){
+                break; //close() was called
+            }catch(IOException e){
+                if(!closed){
+                    EventLog.console.error("games", "the tick engine couldn't read", e);
+                }
+            }
+        }
+    }
+
+    private void tick(GameSession session){
+        long now = System.nanoTime();
+        metrics.tickLatenessInMicros.record(TimeUnit.NANOSECONDS.toMicros(now - session.nextTickAt));
+        boolean wasOver = session.game.isOver();
+        if(!session.tick()){
+            if(!wasOver){
+                metrics.gamesFinished.increment();
+            }
+            if(session.finalSnapshots++ >= ticks){
+                finish(session);
+                return;
+            }
+        }
+        if((session.tick - 1) % ticks == 0){
+            sendSeats(session);
+        }
+        broadcast(session, session.game.snapshot());
+
+        session.nextTickAt += tickInNanos;
+        long behind = (now - session.nextTickAt) / tickInNanos;
+        if(behind > 0){
+            metrics.ticksSkipped.add(behind);
+            session.nextTickAt += behind * tickInNanos;
+        }
+        schedule.add(session);
+    }
+
+    private void finish(GameSession session){
+        for(GameSession.Player player: session.players){
+            players.remove(player.address, player);
+        }
+        synchronized(this){
+            running.decrementAndGet();
+            notifyAll(); //awaitGames()
+        }
+    }
+
+    //The snapshot of one tick, to every player of the session. Only the session id and the sequence number of a binary
+    //snapshot differ from one player to the next.
+    private void broadcast(GameSession session, String snapshot){
+        msg.set(Opcode.STATE).putText(snapshot);
+        msg.binary = false;
+        MessageCodec.encode(msg, textBuffer);
+        msg.binary = true;
+        MessageCodec.encode(msg, binaryBuffer);
+        for(GameSession.Player player: session.players){
+            ByteBuffer buffer = textBuffer;
+            if(player.binary){
+                buffer = binaryBuffer;
+                buffer.putInt(2, player.sessionId);
+                buffer.putInt(6, session.tick);
+            }
+            buffer.rewind();
+            send(buffer, player.address);
+        }
+    }
+
+    private void sendSeats(GameSession session){
+        for(GameSession.Player player: session.players){
+            msg.set(Opcode.GAME).putText(player.index + " " + session.players.length + " " + ticks + " " + session.gameName);
+            msg.binary = player.binary;
+            msg.sessionId = player.sessionId;
+            msg.sequence = session.tick;
+            MessageCodec.encode(msg, textBuffer);
+            send(textBuffer, player.address);
+        }
+    }
+
+    private void send(ByteBuffer buffer, SocketAddress address){
+        try{
+            channel.send(buffer, address); //if the socket's buffer is full, it's lost like any other packet
+        }catch(IOException e){
+            if(!closed){
+                EventLog.console.warn("games", "couldn't send to " + address, e.getMessage());
+            }
+        }
+    }
+
+    private void readInputs() throws IOException {
+        SocketAddress sender;
+        receiveBuffer.clear();
+        while((sender = channel.receive(receiveBuffer)) != null){
+            receiveBuffer.flip();
+            GameSession.Player player = players.get(sender);
+            if(player != null && MessageCodec.decode(receiveBuffer, received) && received.is(Opcode.INPUT)){
+                player.session.input(player, received);
+            }
+            receiveBuffer.clear();
+        }
+    }
+
+    //Wait for the games that are being played to be over, before the server shuts down.
+    public synchronized void awaitGames() throws InterruptedException {
+        while(running.get() > 0 && !closed){
+            wait();
+        }
+    }
+
+    public synchronized void close(){
+        closed = true;
+        notifyAll();
+        try{
+            if(selector != null){
+                selector.close();
+            }
+            if(channel != null){
+                channel.close();
+            }
+        }catch(IOException e){
+            EventLog.console.error("games", "couldn't close the tick engine", e);
+        }
+    }
+}
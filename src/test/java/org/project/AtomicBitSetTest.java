@@ -0,0 +1,63 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class AtomicBitSetTest {
+    @Test
+    void addsAndRemovesEachIntOnce(){
+        AtomicBitSet set = new AtomicBitSet(100);
+        assertTrue(set.add(70));
+        assertFalse(set.add(70)); //already there
+        assertTrue(set.contains(70));
+        assertFalse(set.contains(6)); //the same bit of the word before
+        assertEquals(1, set.cardinality());
+        assertTrue(set.remove(70));
+        assertFalse(set.remove(70));
+        assertFalse(set.contains(70));
+    }
+
+    @Test
+    void ignoresIntsOutsideItsSize(){
+        AtomicBitSet set = new AtomicBitSet(100);
+        assertFalse(set.add(-1));
+        assertFalse(set.add(100));
+        assertFalse(set.contains(100));
+        assertEquals(0, set.cardinality());
+    }
+
+    @Test
+    void claimsTheLowestClearIntOfTheHintsWord(){
+        AtomicBitSet set = new AtomicBitSet(200);
+        set.add(64);
+        set.add(65);
+        assertEquals(66, set.claimClear(100)); //100 is in the word of 64 to 127
+        assertEquals(0, set.claimClear(-1)); //no hint starts at the first word
+        assertTrue(set.contains(66));
+    }
+
+    @Test
+    void wrapsAroundToTheFirstWord(){
+        AtomicBitSet set = new AtomicBitSet(130);
+        for(int i = 0; i < 130; i++){
+            if(i != 3){
+                set.add(i);
+            }
+        }
+        assertEquals(3, set.claimClear(129));
+        assertEquals(-1, set.claimClear(129)); //full
+    }
+
+    @Test
+    void neverClaimsPastItsSize(){
+        AtomicBitSet set = new AtomicBitSet(70); //the second word only has 6 ints
+        for(int i = 0; i < 70; i++){
+            assertEquals(i, set.claimClear(i));
+        }
+        assertEquals(-1, set.claimClear(69));
+        assertEquals(70, set.cardinality());
+    }
+}
@@ -0,0 +1,58 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import org.junit.jupiter.api.Test;
+
+//Every cookie is made and checked at a given time instead of now, so an epoch never changes in the middle of a test.
+class ConnectCookiesTest {
+    static final long epochStart = 1000000 * ConnectCookies.epochInMS;
+    static final int roomPort = 40000;
+
+    ConnectCookies cookies = new ConnectCookies();
+    InetSocketAddress client = new InetSocketAddress("10.0.0.7", 51000);
+
+    @Test
+    void isSixteenHexDigits(){
+        String cookie = cookies.issue(client, roomPort, epochStart);
+        assertEquals(16, cookie.length());
+        assertTrue(cookie.matches("[0-9a-f]{16}"), cookie);
+    }
+
+    @Test
+    void isGoodForThisEpochAndTheNext(){
+        String cookie = cookies.issue(client, roomPort, epochStart);
+        assertTrue(cookies.isValid(cookie, client, roomPort, epochStart));
+        assertTrue(cookies.isValid(cookie, client, roomPort, epochStart + ConnectCookies.epochInMS));
+        assertTrue(cookies.isValid(cookie, client, roomPort, epochStart + 2 * ConnectCookies.epochInMS - 1));
+    }
+
+    @Test
+    void expiresAfterTwoEpochs(){
+        String cookie = cookies.issue(client, roomPort, epochStart);
+        assertFalse(cookies.isValid(cookie, client, roomPort, epochStart + 2 * ConnectCookies.epochInMS));
+        assertFalse(cookies.isValid(cookie, client, roomPort, epochStart - 1)); //nor before it was given
+    }
+
+    @Test
+    void onlyWorksForItsAddressPortAndRoom(){
+        String cookie = cookies.issue(client, roomPort, epochStart);
+        assertFalse(cookies.isValid(cookie, new InetSocketAddress("10.0.0.8", 51000), roomPort, epochStart));
+        assertFalse(cookies.isValid(cookie, new InetSocketAddress("10.0.0.7", 51001), roomPort, epochStart));
+        assertFalse(cookies.isValid(cookie, client, roomPort + 1, epochStart));
+    }
+
+    @Test
+    void cantBeForged(){
+        String cookie = cookies.issue(client, roomPort, epochStart);
+        char last = cookie.charAt(15);
+        String changed = cookie.substring(0, 15) + (last == '0' ? '1' : '0');
+        assertFalse(cookies.isValid(changed, client, roomPort, epochStart));
+        assertFalse(cookies.isValid(cookie.substring(1), client, roomPort, epochStart));
+        assertFalse(cookies.isValid("not a cookie 123", client, roomPort, epochStart));
+        assertFalse(new ConnectCookies().isValid(cookie, client, roomPort, epochStart)); //another server's key
+    }
+}
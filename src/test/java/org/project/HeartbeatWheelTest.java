@@ -0,0 +1,51 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+//The wheel isn't started: the test turns it one tick at a time with advance(), so nothing depends on how long anything takes.
+class HeartbeatWheelTest {
+    List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+
+    //half a tick short of 'ticks', so that the nanoseconds since the wheel was made don't round it up to the tick after
+    private HeartbeatWheel.Timeout schedule(HeartbeatWheel wheel, String name, int ticks){
+        return wheel.schedule(() -> fired.add(name), ticks * 60 - 30, TimeUnit.MINUTES);
+    }
+
+    @Test
+    void firesInTheOrderTheyreDue() throws InterruptedException {
+        HeartbeatWheel wheel = new HeartbeatWheel(1, TimeUnit.HOURS, 4, 1); //one worker runs them in the order they're handed over
+        schedule(wheel, "A", 3);
+        schedule(wheel, "B", 1);
+        schedule(wheel, "C", 2);
+        schedule(wheel, "D", 6); //more than a turn of the wheel: it passes its bucket once at tick 2
+        schedule(wheel, "E", 1).cancel();
+        for(int tick = 1; tick <= 7; tick++){
+            wheel.advance();
+            String marker = "tick " + tick;
+            wheel.workers.execute(() -> fired.add(marker));
+        }
+        wheel.workers.shutdown();
+        assertTrue(wheel.workers.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(List.of("B", "tick 1", "C", "tick 2", "A", "tick 3", "tick 4", "tick 5", "D", "tick 6", "tick 7"), fired);
+    }
+
+    @Test
+    void aLateTimeoutFiresOnTheNextTick() throws InterruptedException {
+        HeartbeatWheel wheel = new HeartbeatWheel(1, TimeUnit.HOURS, 4, 1);
+        wheel.advance();
+        wheel.advance();
+        HeartbeatWheel.Timeout late = schedule(wheel, "late", 1);
+        late.dueTick = 1; //already passed
+        wheel.advance();
+        wheel.workers.shutdown();
+        assertTrue(wheel.workers.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(List.of("late"), fired);
+    }
+}
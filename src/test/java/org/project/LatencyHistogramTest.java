@@ -0,0 +1,54 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    @Test
+    void smallValuesHaveABucketEach(){
+        for(int value = 0; value < LatencyHistogram.subBuckets * 2; value++){
+            assertEquals(value, LatencyHistogram.indexOf(value));
+            assertEquals(value, LatencyHistogram.lowestValueAt(value));
+        }
+    }
+
+    @Test
+    void everyValueIsInABucketAtMostASixteenthWider(){
+        long[] values = {32, 33, 63, 64, 100, 1000, 4095, 4096, 123456789L, 1L << 40, (1L << 40) - 1};
+        for(long value: values){
+            int index = LatencyHistogram.indexOf(value);
+            long lowest = LatencyHistogram.lowestValueAt(index);
+            long next = LatencyHistogram.lowestValueAt(index + 1);
+            assertTrue(lowest <= value && value < next, value + " isn't in [" + lowest + ", " + next + ")");
+            assertTrue((next - lowest) * LatencyHistogram.subBuckets <= lowest, "the bucket of " + value + " is too wide");
+        }
+        assertEquals(LatencyHistogram.indexOf(32), LatencyHistogram.indexOf(33)); //from 32 on, buckets are 2 wide
+        assertTrue(LatencyHistogram.indexOf(Long.MAX_VALUE) < 64 * LatencyHistogram.subBuckets);
+    }
+
+    @Test
+    void percentilesArePreciseToTheirBucket(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(50)); //nothing recorded yet
+        for(int value = 1; value <= 100; value++){
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50, histogram.mean());
+        assertEquals(100, histogram.max());
+        assertEquals(10, histogram.percentile(10)); //under 16, exact
+        assertEquals(51, histogram.percentile(50)); //the top of the bucket of 50 and 51
+        assertEquals(100, histogram.percentile(100)); //the bucket goes to 103, but nothing was over 100
+    }
+
+    @Test
+    void recordsNegativeValuesAsZero(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(99));
+    }
+}
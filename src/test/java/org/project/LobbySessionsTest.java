@@ -0,0 +1,55 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import org.junit.jupiter.api.Test;
+
+class LobbySessionsTest {
+    static final long timeout = 20000;
+
+    private static InetSocketAddress client(int port){
+        return new InetSocketAddress("10.0.0.7", port);
+    }
+
+    @Test
+    void refusesNewSessionsWhenFull(){
+        LobbySessions sessions = new LobbySessions(timeout, 10);
+        for(int port = 1; port <= 10; port++){
+            assertTrue(sessions.start(client(port), Opcode.CONNECT, 0));
+        }
+        assertFalse(sessions.start(client(11), Opcode.CONNECT, 0));
+        assertNull(sessions.find(client(11)));
+        assertTrue(sessions.start(client(3), Opcode.CONNECT, 0)); //it already had one
+        assertEquals(10, sessions.size());
+    }
+
+    @Test
+    void sweepsWhileTheLobbyIsBusy(){
+        LobbySessions sessions = new LobbySessions(timeout, 10);
+        for(int port = 1; port <= 10; port++){
+            sessions.start(client(port), Opcode.CONNECT, 0);
+        }
+        //a stream of new connects long after: refused until the sweep that comes with one of them forgets the old ones
+        int refused = 0;
+        for(int i = 11; i < LobbySessions.sweepEvery; i++){
+            assertFalse(sessions.start(client(1000 + i), Opcode.CONNECT, timeout + 1));
+            refused++;
+        }
+        assertEquals(LobbySessions.sweepEvery - 11, refused);
+        assertTrue(sessions.start(client(2000), Opcode.CONNECT, timeout + 1)); //the sweepEvery-th start
+        assertEquals(1, sessions.size());
+    }
+
+    @Test
+    void forgetsSessionsThatTakeTooLong(){
+        LobbySessions sessions = new LobbySessions(timeout);
+        sessions.start(client(1), Opcode.CONNECT, 0);
+        sessions.start(client(2), Opcode.CONNECT, timeout);
+        assertEquals(1, sessions.expire(timeout + 1));
+        assertEquals(1, sessions.size());
+    }
+}
@@ -0,0 +1,81 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+//How handleRoomThreads() sets up the shards of the lobby, on loopback. Nothing is sent.
+class LobbyShardsTest {
+    static final int shards = 3;
+
+    RoomServer roomServer;
+    MessageSocket[] lobbySockets = new MessageSocket[shards];
+    LobbySessions[] lobbySessions = new LobbySessions[shards];
+    InetSocketAddress client = new InetSocketAddress("10.0.0.7", 51000);
+
+    LobbyShardsTest() throws IOException {
+        ServerConfig config = new ServerConfig(freePort());
+        config.lobbyShards = shards;
+        config.bindAddress = InetAddress.getLoopbackAddress();
+        config.persistent = true;
+        roomServer = new RoomServer(config, false);
+    }
+
+    private static int freePort() throws IOException {
+        try(DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())){
+            return socket.getLocalPort();
+        }
+    }
+
+    @AfterEach
+    void tearDown(){
+        for(MessageSocket lobbySocket: lobbySockets){
+            if(lobbySocket != null){
+                lobbySocket.close();
+            }
+        }
+        roomServer.shutdown();
+    }
+
+    @Test
+    void eachShardHasItsOwnSocketAndSessions() throws IOException {
+        assumeTrue(RoomServer.supportsReusePort(), "SO_REUSEPORT isn't supported here");
+        int port = freePort();
+        roomServer.openLobby(port, true, lobbySockets, lobbySessions);
+        for(int i = 0; i < shards; i++){
+            assertEquals(port, lobbySockets[i].socket.getLocalPort());
+            for(int j = 0; j < i; j++){
+                assertNotEquals(lobbySockets[i].socket, lobbySockets[j].socket);
+                assertNotEquals(lobbySessions[i], lobbySessions[j]);
+            }
+        }
+        //a client always lands on the same socket, so only its shard needs to know about its bare connect
+        lobbySessions[0].start(client, Opcode.CONNECT);
+        assertEquals(Opcode.CONNECT, lobbySessions[0].find(client).awaiting);
+        assertNull(lobbySessions[1].find(client));
+    }
+
+    @Test
+    void withoutReusePortTheShardsShareEverything() throws IOException {
+        int port = freePort();
+        roomServer.openLobby(port, false, lobbySockets, lobbySessions);
+        for(int i = 1; i < shards; i++){
+            assertTrue(lobbySockets[i].socket == lobbySockets[0].socket, "shard " + i + " has its own socket");
+            assertTrue(lobbySessions[i] == lobbySessions[0], "shard " + i + " has its own sessions");
+            assertTrue(lobbySockets[i] != lobbySockets[0], "shard " + i + " shares the buffers of the first one");
+        }
+        assertEquals(port, lobbySockets[0].socket.getLocalPort());
+        //a client's second packet can be received by another shard than its first
+        lobbySessions[0].start(client, Opcode.CONNECT);
+        assertEquals(Opcode.CONNECT, lobbySessions[2].find(client).awaiting);
+    }
+}
@@ -0,0 +1,112 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MessageCodecTest {
+    ByteBuffer packet = ByteBuffer.allocate(MessageCodec.maxDatagramSize);
+    Message received = new Message();
+
+    private static ByteBuffer text(String text){
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String textOf(ByteBuffer packet){
+        return new String(packet.array(), 0, packet.limit(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void binaryMessagesComeBackTheSame(){
+        Message sent = new Message();
+        sent.binary = true;
+        sent.sessionId = 0x12345678;
+        sent.sequence = -7;
+        sent.set(Opcode.CONNECT).putText("Room 1");
+        MessageCodec.encode(sent, packet);
+        assertEquals(MessageCodec.headerLength + 6, packet.limit());
+        assertEquals(MessageCodec.version, packet.get(0));
+        assertEquals(Opcode.CONNECT.code, packet.get(1));
+
+        assertTrue(MessageCodec.decode(packet, received));
+        assertTrue(received.binary);
+        assertEquals(Opcode.CONNECT, received.opcode);
+        assertEquals(0x12345678, received.sessionId);
+        assertEquals(-7, received.sequence);
+        assertEquals("Room 1", received.getText());
+    }
+
+    @Test
+    void binaryPortsAreAnInt(){
+        Message sent = new Message();
+        sent.binary = true;
+        sent.set(Opcode.PORT).putInt(38957);
+        MessageCodec.encode(sent, packet);
+        assertEquals(MessageCodec.headerLength + 4, packet.limit());
+        assertTrue(MessageCodec.decode(packet, received));
+        assertEquals(Opcode.PORT, received.opcode);
+        assertEquals(38957, received.getInt());
+    }
+
+    @Test
+    void textMessagesComeBackTheSame(){
+        Message sent = new Message();
+        sent.set(Opcode.CONNECT).putText("Room 1");
+        MessageCodec.encode(sent, packet);
+        assertEquals("connect Room 1", textOf(packet));
+
+        assertTrue(MessageCodec.decode(packet, received));
+        assertFalse(received.binary);
+        assertEquals(Opcode.CONNECT, received.opcode);
+        assertEquals("Room 1", received.getText());
+        assertEquals(0, received.sessionId);
+    }
+
+    @Test
+    void textPortsAreDigits(){
+        Message sent = new Message();
+        sent.set(Opcode.PORT).putInt(38957);
+        MessageCodec.encode(sent, packet);
+        assertEquals("38957", textOf(packet));
+        assertTrue(MessageCodec.decode(packet, received));
+        assertEquals(Opcode.PORT, received.opcode);
+        assertEquals(38957, received.getInt());
+    }
+
+    @Test
+    void readsTheOldTextCommands(){
+        assertTrue(MessageCodec.decode(text("ping"), received));
+        assertEquals(Opcode.PING, received.opcode);
+        assertEquals(0, received.payload.limit());
+
+        assertTrue(MessageCodec.decode(text("-1"), received));
+        assertEquals(Opcode.DISCONNECT, received.opcode);
+
+        assertTrue(MessageCodec.decode(text("quick join finger war"), received));
+        assertEquals(Opcode.QUICK_JOIN, received.opcode);
+        assertEquals("finger war", received.getText());
+
+        assertTrue(MessageCodec.decode(text("Available rooms: Room 1"), received));
+        assertEquals(Opcode.ROOMS, received.opcode);
+        assertEquals("Available rooms: Room 1", received.getText());
+
+        assertTrue(MessageCodec.decode(text("Room 1"), received));
+        assertEquals(Opcode.TEXT, received.opcode);
+        assertEquals("Room 1", received.getText());
+    }
+
+    @Test
+    void dropsWhatIsntAMessage(){
+        assertFalse(MessageCodec.decode(ByteBuffer.allocate(0), received));
+        assertFalse(MessageCodec.decode(ByteBuffer.wrap(new byte[]{MessageCodec.version, 1, 0}), received)); //too short for a header
+        assertFalse(MessageCodec.decode(ByteBuffer.wrap(new byte[MessageCodec.headerLength]), received)); //version 0
+        byte[] unknown = new byte[MessageCodec.headerLength];
+        unknown[0] = MessageCodec.version;
+        unknown[1] = 99;
+        assertFalse(MessageCodec.decode(ByteBuffer.wrap(unknown), received));
+    }
+}
@@ -0,0 +1,64 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+//Only allocate(), claim() and free(): nothing here binds a port.
+class PortAllocatorTest {
+    @Test
+    void handsOutTheRangeInOrder(){
+        PortAllocator ports = new PortAllocator(40000, 40009);
+        for(int i = 0; i < 10; i++){
+            assertEquals(40000 + i, ports.allocate());
+        }
+        assertEquals(0, ports.allocate()); //full: the operating system picks
+        assertEquals(10, ports.inUse());
+    }
+
+    @Test
+    void keepsLookingWhereTheLastPortWasFound(){
+        PortAllocator ports = new PortAllocator(40000, 40199);
+        for(int i = 0; i < 65; i++){
+            ports.allocate();
+        }
+        ports.free(40005);
+        assertEquals(40065, ports.allocate()); //not 40005: the last one was found in the next 64 ports
+    }
+
+    @Test
+    void wrapsAroundToAFreedPort(){
+        PortAllocator ports = new PortAllocator(40000, 40129);
+        for(int i = 0; i < 130; i++){
+            ports.allocate();
+        }
+        ports.free(40003);
+        assertEquals(40003, ports.allocate());
+        assertEquals(0, ports.allocate());
+    }
+
+    @Test
+    void claimsRestoredPortsOnlyOnce(){
+        PortAllocator ports = new PortAllocator(40000, 40009);
+        assertTrue(ports.claim(40004));
+        assertFalse(ports.claim(40004));
+        assertTrue(ports.claim(50000)); //outside the range, nothing to keep
+        ports.free(40004);
+        assertTrue(ports.claim(40004));
+        assertEquals(1, ports.inUse());
+    }
+
+    @Test
+    void parsesARangeOrNone(){
+        PortAllocator ports = PortAllocator.parse("40000 - 40009");
+        assertEquals(10, ports.rangeSize());
+        assertEquals(40000, ports.allocate());
+
+        PortAllocator none = PortAllocator.parse("0");
+        assertEquals(0, none.rangeSize());
+        assertEquals(0, none.allocate());
+        assertTrue(none.claim(40000));
+    }
+}
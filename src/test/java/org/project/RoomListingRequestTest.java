@@ -0,0 +1,46 @@
+package org.project;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class RoomListingRequestTest {
+    @Test
+    void aPlainListIsTheFirstPageOfEverything(){
+        RoomListing.Request request = RoomListing.Request.parse("");
+        assertEquals(-1, request.sinceVersion);
+        assertEquals(1, request.page);
+        assertNull(request.game);
+    }
+
+    @Test
+    void readsEveryPartInAnyOrder(){
+        RoomListing.Request request = RoomListing.Request.parse("page 3 since 12 game finger war");
+        assertEquals(12, request.sinceVersion);
+        assertEquals(3, request.page);
+        assertEquals("finger war", request.game);
+    }
+
+    @Test
+    void theGameIsEverythingAfterIt(){
+        RoomListing.Request request = RoomListing.Request.parse("game finger war page 2");
+        assertEquals("finger war page 2", request.game);
+        assertEquals(1, request.page);
+    }
+
+    @Test
+    void keepsPagesInRange(){
+        assertEquals(1, RoomListing.Request.parse("page 0").page);
+        assertEquals(1, RoomListing.Request.parse("page -4").page);
+        assertEquals(Integer.MAX_VALUE, RoomListing.Request.parse("page 99999999999").page);
+    }
+
+    @Test
+    void skipsWhatItDoesntKnow(){
+        RoomListing.Request request = RoomListing.Request.parse("since abc please page 2 game");
+        assertEquals(-1, request.sinceVersion);
+        assertEquals(2, request.page);
+        assertNull(request.game); //"game" with nothing after it
+    }
+}